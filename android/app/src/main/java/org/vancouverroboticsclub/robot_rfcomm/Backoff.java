@@ -0,0 +1,52 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.util.Random;
+
+/**
+ * Delays between attempts to reconnect to the robot, exponential backoff with jitter.
+ *
+ * The first attempt after the link was lost is made right away, most dropouts are
+ * over by the time the connection could be made again. Each further attempt doubles
+ * the delay, starting at initialMS and limited to maxMS. The actual delay is picked at
+ * random between half and all of that, so several apps (or robots) that lost their
+ * links at the same time don't keep retrying in lock step.
+ *
+ * \c reset once a connection has been established.
+ */
+
+public class Backoff {
+
+    private final int initial;
+    private final int max;
+    private final Random random;
+    private int attempts;
+
+    public Backoff(int initialMS, int maxMS) {
+        this(initialMS, maxMS, new Random());
+    }
+
+    public Backoff(int initialMS, int maxMS, Random r) {
+        initial = Math.max(1, initialMS);
+        max = Math.max(initial, maxMS);
+        random = r;
+    }
+
+    // Delay before the next attempt, in ms.
+    public int nextDelayMS() {
+        int n = attempts++;
+        if (0 == n) {
+            return 0;
+        }
+        long delay = Math.min(max, (long)initial << Math.min(n - 1, 30));
+        return (int)(delay / 2 + random.nextInt((int)(delay - delay / 2) + 1));
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+
+    // Number of attempts since the last reset.
+    public int attempts() {
+        return attempts;
+    }
+}
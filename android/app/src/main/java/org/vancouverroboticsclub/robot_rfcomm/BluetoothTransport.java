@@ -0,0 +1,51 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transport over an rfcomm socket to a (bonded) Bluetooth device.
+ */
+
+public class BluetoothTransport implements Transport {
+
+    // This is the public, well known SPP uuid, and it seems the RN-42 requires this UUID.
+    // Using any other uuid fails to connect.
+    private final static UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice device;
+    // closed from other threads to abort a connect, see Transport
+    private volatile BluetoothSocket socket;
+
+    public BluetoothTransport(BluetoothDevice dev) {
+        device = dev;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        socket = device.createRfcommSocketToServiceRecord(MY_UUID);
+        socket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (null != socket) {
+            socket.close();
+        }
+    }
+}
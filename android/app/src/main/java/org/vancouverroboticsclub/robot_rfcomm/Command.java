@@ -4,24 +4,101 @@ package org.vancouverroboticsclub.robot_rfcomm;
  * Definition of the robot specific commands.
  *
  * The commands, their IDs and the length of their responses should match
- * the actual robot. For the sample implementations look for commands.h
+ * the actual robot. The IDs and the data structures are generated from
+ * protocol/commands.schema into Protocol and each firmware's protocol.h.
  *
  * The NONE command is internally used by the framework, it's id is arbitrary
  * but the response size should be 0.
+ *
+ * A response size of -1 is a response of variable size, which the robot sends with its
+ * size in front (see commands.schema). The size isn't part of the response, the
+ * biggest one the robot may send is given as well (rmax, with the size in front).
+ *
+ * Pushed commands are never sent to the robot, they describe frames the robot
+ * sends on its own while streaming (see SUBSCRIBE). Their id is the tag the frame
+ * starts with and the response size is the size of the frame's payload.
+ *
+ * Each command is queued in a lane of the CommandQueue, which decides its priority
+ * over the other queued commands. Commands which set the robot's state (coalesce) are
+ * only sent once if they're queued again before they got sent - the latest one wins.
+ *
+ * A command is idempotent if the robot ends up in the same state no matter how often
+ * it receives it. Idempotent commands whose response got lost with the connection are
+ * sent again after reconnecting (see RobotBase), the others are aborted. PING isn't,
+ * it increments the robot's value.
  */
 
 public enum Command {
-    NONE(         -1,  0),
-    PING(       0x00,  1),
-    ID(         0x01, 30),
-    VALUE_GET(  0x02,  4),
-    VALUE_SET(  0x82,  0);
+    NONE(        command(-1,                        0)),
+    PING(        command(Protocol.CMD_PING,         1)),
+    ID(          command(Protocol.CMD_ID,           Protocol.AppId.SIZE).idempotent()),
+    VALUE_GET(   command(Protocol.CMD_VALUE_GET,    4).lane(CommandQueue.TELEMETRY).idempotent()),
+    UNSUBSCRIBE( command(Protocol.CMD_UNSUBSCRIBE,  1).lane(CommandQueue.CONTROL).idempotent()),
+    VALUE_SET(   command(Protocol.CMD_VALUE_SET,    0).lane(CommandQueue.CONTROL).coalesce().idempotent()),
+    SUBSCRIBE(   command(Protocol.CMD_SUBSCRIBE,    1).lane(CommandQueue.CONTROL).idempotent()),
+    ARRAY_GET(   command(Protocol.CMD_ARRAY_GET,   -1).lane(CommandQueue.TELEMETRY).maxResponseSize(1 + SensorArray.MAX_SIZE).idempotent()),
+    ARRAY_SET(   command(Protocol.CMD_ARRAY_SET,    0).lane(CommandQueue.CONTROL).coalesce().idempotent()),
+    VALUE_STREAM(command(Protocol.TAG_VALUE,        4).pushed());
 
     public final int nr;
     public final int rsize;
+    public final int rmax;
+    public final boolean pushed;
+    public final int lane;
+    public final boolean coalesce;
+    public final boolean idempotent;
+
+    // The definition of a command, its id and response size followed by whichever of
+    // the settings differ from the defaults: the NORMAL lane, neither coalesced, pushed
+    // nor idempotent, and a response of at most the response size.
+    private static final class Spec {
+        final int nr;
+        final int rsize;
+        int rmax;
+        int lane = CommandQueue.NORMAL;
+        boolean coalesce;
+        boolean pushed;
+        boolean idempotent;
+
+        Spec(int cmdId, int responseSize) {
+            nr = cmdId;
+            rsize = responseSize;
+            rmax = responseSize;
+        }
+
+        Spec lane(int queueLane) {
+            lane = queueLane;
+            return this;
+        }
+        Spec maxResponseSize(int size) {
+            rmax = size;
+            return this;
+        }
+        Spec coalesce() {
+            coalesce = true;
+            return this;
+        }
+        Spec pushed() {
+            pushed = true;
+            return this;
+        }
+        Spec idempotent() {
+            idempotent = true;
+            return this;
+        }
+    }
+
+    private static Spec command(int cmdId, int responseSize) {
+        return new Spec(cmdId, responseSize);
+    }
 
-    Command(int cmdId, int responseSize) {
-        nr = cmdId;
-        rsize = responseSize;
+    Command(Spec spec) {
+        nr = spec.nr;
+        rsize = spec.rsize;
+        rmax = spec.rmax;
+        lane = spec.lane;
+        coalesce = spec.coalesce;
+        pushed = spec.pushed;
+        idempotent = spec.idempotent;
     }
 }
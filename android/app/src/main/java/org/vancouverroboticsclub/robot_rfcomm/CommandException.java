@@ -0,0 +1,35 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * Failure of a command, see CommandFuture.
+ *
+ * The status is the outcome reported to CommandStream.Callback: the command timed out,
+ * it was aborted because its response (e.g. a frame failed the CRC) or the link was
+ * lost, the robot rejected it as too long, or it was never sent because the queue was
+ * full or a newer command replaced it.
+ */
+
+public class CommandException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public final Command command;
+    public final int status;
+
+    public CommandException(Command cmd, int s) {
+        super(cmd + " " + describe(s));
+        command = cmd;
+        status = s;
+    }
+
+    private static String describe(int status) {
+        switch (status) {
+            case CommandStream.TIMED_OUT: return "timed out";
+            case CommandStream.ABORTED:   return "aborted, its response or the link was lost";
+            case CommandStream.DROPPED:   return "dropped, the queue was full";
+            case CommandStream.REPLACED:  return "replaced by a newer command";
+            case CommandStream.REJECTED:  return "rejected by the robot, too long";
+        }
+        return "failed (" + status + ")";
+    }
+}
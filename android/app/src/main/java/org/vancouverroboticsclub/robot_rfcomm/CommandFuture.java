@@ -0,0 +1,261 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a command sent to the robot, along the lines of CompletableFuture (which
+ * needs API level 24).
+ *
+ * The future is completed on the thread RobotBase runs on, with the decoded response
+ * once it has been processed, or with a CommandException if the command failed (see
+ * CommandStream.Callback). Listeners run on the Executor given to \c addListener: DIRECT
+ * runs them right away on the completing thread, \c on(Handler) posts them to a Looper,
+ * e.g. the UI's. Listeners added after completion are run immediately.
+ *
+ * Requests can be chained with \c thenApply (transform the result) and \c thenCompose
+ * (send the next command once the result is known), a failure skips the rest of the
+ * chain and fails the last future.
+ *
+ * Cancelling a future doesn't stop its command from being sent, only its result is
+ * discarded.
+ *
+ * \c get waits on a CountDownLatch rather than the future's monitor, so it can be
+ * called from a virtual thread without pinning it to its carrier (see RobotGateway).
+ */
+
+public class CommandFuture<T> implements Future<T>, CommandStream.Callback {
+
+    public interface Listener<T> {
+        void onDone(CommandFuture<T> future);
+    }
+
+    public interface Function<T, U> {
+        U apply(T value) throws Exception;
+    }
+
+    // Runs the listener on the thread completing the future.
+    public final static Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    // Runs the listener on the handler's Looper.
+    public static Executor on(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                handler.post(r);
+            }
+        };
+    }
+
+    private final static int PENDING = 0;
+    private final static int SUCCEEDED = 1;
+    private final static int FAILED = 2;
+    private final static int CANCELLED = 3;
+
+    private int state = PENDING;
+    private T value;
+    private Throwable failure;
+    private Registration<T> listeners;
+    private final CountDownLatch completed = new CountDownLatch(1);
+
+    private static class Registration<T> {
+        final Listener<T> listener;
+        final Executor executor;
+        final Registration<T> next;
+
+        Registration(Listener<T> l, Executor e, Registration<T> n) {
+            listener = l;
+            executor = e;
+            next = n;
+        }
+    }
+
+    public boolean complete(T result) {
+        return finish(SUCCEEDED, result, null);
+    }
+
+    public boolean fail(Throwable cause) {
+        return finish(FAILED, null, cause);
+    }
+
+    // CommandStream.Callback, a command which completed without a decoded result
+    // (e.g. VALUE_SET) completes the future with null.
+    @Override
+    public void onDone(CommandStream cmd, int status) {
+        if (CommandStream.COMPLETED == status) {
+            complete(null);
+        } else {
+            fail(new CommandException(cmd.command(), status));
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return CANCELLED == state;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return PENDING != state;
+    }
+
+    public synchronized boolean isSuccess() {
+        return SUCCEEDED == state;
+    }
+
+    // The result, null unless the future succeeded.
+    public synchronized T result() {
+        return value;
+    }
+
+    // Why the future failed, null unless it did.
+    public synchronized Throwable failure() {
+        return failure;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        completed.await();
+        synchronized (this) {
+            return report();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completed.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        synchronized (this) {
+            return report();
+        }
+    }
+
+    public void addListener(Listener<T> listener) {
+        addListener(listener, DIRECT);
+    }
+
+    public void addListener(Listener<T> listener, Executor executor) {
+        synchronized (this) {
+            if (PENDING == state) {
+                listeners = new Registration<>(listener, executor, listeners);
+                return;
+            }
+        }
+        dispatch(listener, executor);
+    }
+
+    // A future completed with the result of this one, transformed by fn.
+    public <U> CommandFuture<U> thenApply(final Function<? super T, ? extends U> fn) {
+        final CommandFuture<U> next = new CommandFuture<>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onDone(CommandFuture<T> future) {
+                if (!future.isSuccess()) {
+                    next.fail(future.failure());
+                    return;
+                }
+                try {
+                    next.complete(fn.apply(future.result()));
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+        });
+        return next;
+    }
+
+    // A future completed with the result of the future fn returns, typically the next
+    // command sent to the robot.
+    public <U> CommandFuture<U> thenCompose(final Function<? super T, CommandFuture<U>> fn) {
+        final CommandFuture<U> next = new CommandFuture<>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onDone(CommandFuture<T> future) {
+                if (!future.isSuccess()) {
+                    next.fail(future.failure());
+                    return;
+                }
+                try {
+                    fn.apply(future.result()).addListener(new Listener<U>() {
+                        @Override
+                        public void onDone(CommandFuture<U> f) {
+                            if (f.isSuccess()) {
+                                next.complete(f.result());
+                            } else {
+                                next.fail(f.failure());
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+        });
+        return next;
+    }
+
+    private boolean finish(int s, T result, Throwable cause) {
+        Registration<T> done;
+        synchronized (this) {
+            if (PENDING != state) {
+                return false;
+            }
+            state = s;
+            value = result;
+            failure = cause;
+            done = listeners;
+            listeners = null;
+        }
+        completed.countDown();
+        // listeners were pushed in front, run them in the order they were added
+        Registration<T> ordered = null;
+        for (; null != done; done = done.next) {
+            ordered = new Registration<>(done.listener, done.executor, ordered);
+        }
+        for (; null != ordered; ordered = ordered.next) {
+            dispatch(ordered.listener, ordered.executor);
+        }
+        return true;
+    }
+
+    private void dispatch(final Listener<T> listener, Executor executor) {
+        if (DIRECT == executor) {
+            listener.onDone(this);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDone(CommandFuture.this);
+            }
+        });
+    }
+
+    private T report() throws ExecutionException {
+        if (CANCELLED == state) {
+            throw new CancellationException();
+        }
+        if (FAILED == state) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+}
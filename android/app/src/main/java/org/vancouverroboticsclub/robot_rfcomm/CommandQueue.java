@@ -0,0 +1,364 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bounded queue of the commands waiting to be sent to the robot, split into priority
+ * lanes.
+ *
+ * Each command is queued in the lane of its Command (see Command.lane), CONTROL
+ * being the highest priority and TELEMETRY the lowest. Which lane the next command
+ * is taken from is up to the policy:
+ *  - STRICT: the highest priority lane which isn't empty. A control command only
+ *    ever waits for the commands already sent, no matter how much telemetry is queued.
+ *  - WEIGHTED: weighted round robin, each lane in turn sends up to its weight in
+ *    commands before the next lane gets its turn. No lane is starved and each
+ *    lane gets at least its share of the link.
+ *  - FIFO: the order the commands were queued in, ignoring the lanes.
+ * Within a lane commands are always sent in the order they were queued.
+ *
+ * A command whose Command.coalesce is set replaces a command of the same Command
+ * still waiting in its lane, and takes its place. E.g. only the latest VALUE_SET is
+ * sent, and it goes out no later than the first one would have.
+ *
+ * The queue holds at most \c capacity commands, which bounds the time a command can
+ * spend in the queue. What happens to a command that doesn't fit depends on Overflow:
+ *  - BLOCK: the sender waits until there is room (see RobotBase.sendCommand). The
+ *    queue itself can't wait, it drops the new command like DROP_NEWEST.
+ *  - DROP_OLDEST: the oldest command of the lowest priority lane is dropped to make
+ *    room, as long as that lane's priority isn't higher than the new command's.
+ *    Otherwise the new command is dropped.
+ *  - DROP_NEWEST: the new command is dropped.
+ *  - COALESCE: the new command replaces the oldest queued command of the same
+ *    Command. If there is none the new command is dropped.
+ * Each lane is a ring buffer which grows up to the capacity, nothing is allocated
+ * once the queue has been full.
+ *
+ * The queue owns the commands until they're taken out with \c poll. Commands which
+ * are replaced or dropped are finished (see CommandStream.Callback) and recycled.
+ *
+ * Not thread safe, only to be used on the thread RobotBase runs on.
+ */
+
+public class CommandQueue implements Iterable<CommandStream> {
+
+    public final static int CONTROL = 0;
+    public final static int NORMAL = 1;
+    public final static int TELEMETRY = 2;
+    public final static int LANES = 3;
+
+    // result of \c add
+    public final static int QUEUED = 0;
+    public final static int REPLACED = 1;
+    public final static int DROPPED = 2;
+
+    public enum Policy {
+        FIFO,
+        STRICT,
+        WEIGHTED,
+    }
+
+    public enum Overflow {
+        BLOCK,
+        DROP_OLDEST,
+        DROP_NEWEST,
+        COALESCE,
+    }
+
+    private final Lane[] lanes;
+    private final int[] weights = { 4, 2, 1 };
+    private Policy policy = Policy.STRICT;
+    private Overflow overflow = Overflow.DROP_OLDEST;
+    private int capacity = 64;
+    private int size;
+    // lane currently sending in WEIGHTED mode, and how many more commands it may send
+    private int turn = LANES - 1;
+    private int credit;
+
+    CommandQueue() {
+        lanes = new Lane[LANES];
+        for (int i = 0; i < LANES; ++i) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    // Commands already queued keep their relative order within their lane.
+    public void setPolicy(Policy p) {
+        Lane queued = new Lane();
+        for (Lane lane : lanes) {
+            while (!lane.isEmpty()) {
+                queued.add(lane.removeFirst());
+            }
+        }
+        policy = p;
+        while (!queued.isEmpty()) {
+            CommandStream cmd = queued.removeFirst();
+            lanes[lane(cmd)].add(cmd);
+        }
+        restart();
+    }
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // Number of commands each lane may send in a row in WEIGHTED mode, highest
+    // priority first. Missing weights are 1.
+    public void setWeights(int... w) {
+        for (int i = 0; i < LANES; ++i) {
+            weights[i] = i < w.length ? Math.max(1, w[i]) : 1;
+        }
+        restart();
+    }
+
+    // The next round of WEIGHTED starts with the highest priority lane.
+    private void restart() {
+        turn = LANES - 1;
+        credit = 0;
+    }
+
+    // Commands already queued beyond a reduced capacity stay queued.
+    public void setCapacity(int max, Overflow o) {
+        capacity = Math.max(1, max);
+        overflow = o;
+    }
+    public int capacity() {
+        return capacity;
+    }
+    public Overflow overflow() {
+        return overflow;
+    }
+
+    // Queue a command, applying the Overflow policy if the queue is full.
+    int add(CommandStream cmd) {
+        return add(cmd, false);
+    }
+
+    // Queue a command. If reserved the sender has already waited for room, which might
+    // have been taken since - it's queued even if the queue is full.
+    int add(CommandStream cmd, boolean reserved) {
+        int index = lane(cmd);
+        Lane lane = lanes[index];
+        if (cmd.command().coalesce && replace(lane, cmd)) {
+            return REPLACED;
+        }
+        if (size >= capacity && !reserved) {
+            switch (overflow) {
+                case COALESCE:
+                    if (replace(lane, cmd)) {
+                        return REPLACED;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    for (int i = LANES - 1; i >= index; --i) {
+                        if (!lanes[i].isEmpty()) {
+                            discard(lanes[i].removeFirst(), CommandStream.DROPPED);
+                            --size;
+                            lane.add(cmd);
+                            ++size;
+                            return DROPPED;
+                        }
+                    }
+                    break;
+            }
+            discard(cmd, CommandStream.DROPPED);
+            return DROPPED;
+        }
+        lane.add(cmd);
+        ++size;
+        return QUEUED;
+    }
+
+    // Put a command which has already been sent back in front of its lane, it is sent
+    // again before anything queued in that lane. The queue's capacity doesn't apply,
+    // the command has been admitted before.
+    void requeue(CommandStream cmd) {
+        lanes[lane(cmd)].addFirst(cmd);
+        ++size;
+    }
+
+    // The command to be sent next, without taking it out of the queue.
+    CommandStream peek() {
+        int lane = next();
+        return -1 == lane ? null : lanes[lane].get(0);
+    }
+
+    CommandStream poll() {
+        int lane = next();
+        if (-1 == lane) {
+            return null;
+        }
+        if (lane != turn || credit <= 0) {
+            turn = lane;
+            credit = weights[lane];
+        }
+        --credit;
+        --size;
+        return lanes[lane].removeFirst();
+    }
+
+    // Finish all queued commands of the given lane and those of lower priority with the
+    // given status (see CommandStream.Callback).
+    void clear(int fromLane, int status) {
+        for (Lane lane : lanes) {
+            for (int n = lane.count; n > 0; --n) {
+                CommandStream cmd = lane.removeFirst();
+                if (cmd.command().lane >= fromLane) {
+                    discard(cmd, status);
+                    --size;
+                } else {
+                    lane.add(cmd);
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return 0 == size;
+    }
+    public boolean isFull() {
+        return size >= capacity;
+    }
+    public int size() {
+        return size;
+    }
+    public int size(int lane) {
+        int count = 0;
+        for (Lane l : lanes) {
+            for (int i = 0; i < l.count; ++i) {
+                if (l.get(i).command().lane == lane) {
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    // All queued commands, highest priority lane first. This is the order they will
+    // be sent in, except in WEIGHTED mode.
+    @Override
+    public Iterator<CommandStream> iterator() {
+        return new Iterator<CommandStream>() {
+            private int lane;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (index >= lanes[lane].count && lane + 1 < LANES) {
+                    ++lane;
+                    index = 0;
+                }
+                return index < lanes[lane].count;
+            }
+
+            @Override
+            public CommandStream next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return lanes[lane].get(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int lane(CommandStream cmd) {
+        return Policy.FIFO == policy ? 0 : cmd.command().lane;
+    }
+
+    // Replace the oldest command in the lane of the same Command, if there is one.
+    private static boolean replace(Lane lane, CommandStream cmd) {
+        for (int i = 0; i < lane.count; ++i) {
+            CommandStream queued = lane.get(i);
+            if (queued.command() == cmd.command()) {
+                lane.set(i, cmd);
+                discard(queued, CommandStream.REPLACED);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void discard(CommandStream cmd, int status) {
+        cmd.finish(status);
+        cmd.recycle();
+    }
+
+    // Lane the next command is taken from, -1 if there is none.
+    private int next() {
+        if (0 == size) {
+            return -1;
+        }
+        if (Policy.WEIGHTED == policy) {
+            if (credit > 0 && !lanes[turn].isEmpty()) {
+                return turn;
+            }
+            for (int i = 1; i <= LANES; ++i) {
+                int lane = (turn + i) % LANES;
+                if (!lanes[lane].isEmpty()) {
+                    return lane;
+                }
+            }
+        }
+        for (int i = 0; i < LANES; ++i) {
+            if (!lanes[i].isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Ring buffer of the commands in one lane, the size is always a power of 2.
+    private static class Lane {
+        private CommandStream[] ring = new CommandStream[8];
+        private int head;
+        private int count;
+
+        boolean isEmpty() {
+            return 0 == count;
+        }
+
+        CommandStream get(int i) {
+            return ring[(head + i) & (ring.length - 1)];
+        }
+
+        void set(int i, CommandStream cmd) {
+            ring[(head + i) & (ring.length - 1)] = cmd;
+        }
+
+        void add(CommandStream cmd) {
+            grow();
+            set(count++, cmd);
+        }
+
+        void addFirst(CommandStream cmd) {
+            grow();
+            head = (head - 1) & (ring.length - 1);
+            ring[head] = cmd;
+            ++count;
+        }
+
+        private void grow() {
+            if (count == ring.length) {
+                CommandStream[] grown = new CommandStream[ring.length * 2];
+                for (int i = 0; i < count; ++i) {
+                    grown[i] = get(i);
+                }
+                ring = grown;
+                head = 0;
+            }
+        }
+
+        CommandStream removeFirst() {
+            CommandStream cmd = ring[head];
+            ring[head] = null;
+            head = (head + 1) & (ring.length - 1);
+            --count;
+            return cmd;
+        }
+    }
+}
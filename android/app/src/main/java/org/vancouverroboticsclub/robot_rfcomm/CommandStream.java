@@ -2,9 +2,6 @@ package org.vancouverroboticsclub.robot_rfcomm;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 /**
@@ -18,34 +15,201 @@ import java.nio.ByteOrder;
  *
  * CommandStream makes the assumption that the first byte to transfer to the robot is
  * the associated Command's id - and that it's value is not included by the checksum.
+ *
+ * The structs defined in the protocol schema are encoded and decoded by the generated
+ * Protocol class, which works on the buffers directly (see \c claim and
+ * \c responseBuffer) rather than one value at a time.
+ *
+ * The request is encoded into a fixed size buffer (MAX_REQUEST_SIZE), writes beyond
+ * that fail. Streams can be taken from a pool with \c obtain (or from the robot's own
+ * Pool with RobotBase.obtain), in which case RobotBase returns them to the pool once
+ * the command is done - written and the response processed. Don't hold on to a pooled stream past \c processResponse.
+ *
+ * If the command is sent in a frame (see FrameCodec) the frame's CRC takes the place
+ * of the checksum, the payload of the frame is the request without the checksum.
+ *
+ * A Callback set with \c setCallback is told the outcome of the command exactly once:
+ * the response was processed (or the command was written, if it has no response), the
+ * response timed out or was lost, the command was aborted before it got sent (after a
+ * lost response or with the link), the robot rejected a framed command too long for it
+ * (TAG_REJECTED), or it never got sent because the queue was full or a newer command
+ * replaced it (see CommandQueue). A CommandFuture is such a
+ * Callback. It is called on the thread RobotBase
+ * runs on, for a COMPLETED command with the response still readable.
  */
 
 public class CommandStream {
 
+    public final static int MAX_REQUEST_SIZE = 64;
+
+    // outcome of a command, see Callback
+    public final static int COMPLETED = 0;
+    public final static int ABORTED = 1;
+    public final static int DROPPED = 2;
+    public final static int REPLACED = 3;
+    public final static int TIMED_OUT = 4;
+    public final static int REJECTED = 5;
+
+    public interface Callback {
+        void onDone(CommandStream cmd, int status);
+    }
+    private final static int MAX_POOL_SIZE = 16;
+
+    // A pool of streams. Each RobotBase has one of its own, so robots running on
+    // different threads (e.g. in a RobotGateway) don't contend for a single lock, the
+    // static \c obtain takes streams from one shared by all.
+    public static final class Pool {
+        private CommandStream head;
+        private int size;
+
+        // Return a stream for the given command from the pool, or a new one if it's empty.
+        public CommandStream obtain(Command c) {
+            CommandStream cs = null;
+            synchronized (this) {
+                if (null != head) {
+                    cs = head;
+                    head = cs.next;
+                    cs.next = null;
+                    --size;
+                }
+            }
+            if (null == cs) {
+                cs = new CommandStream(c);
+            } else {
+                cs.init(c);
+            }
+            cs.pool = this;
+            return cs;
+        }
+
+        private synchronized void put(CommandStream cs) {
+            if (size < MAX_POOL_SIZE) {
+                cs.next = head;
+                head = cs;
+                ++size;
+            }
+        }
+    }
+
+    private static final Pool shared = new Pool();
+
     private Command cmd;
     private byte[] resp;
     private int roff;
-    private ByteArrayOutputStream os;
+    private final byte[] req;
+    private int rlen;
     private int checksum;
+    private boolean checksummed;
+    // the pool the stream is returned to, null if it isn't pooled
+    private Pool pool;
+    private Callback callback;
+    // time (ns) the command was handed to RobotBase, used to measure the time it's queued
+    long queuedAt;
+    // time (ns) the request went out, used by RobotBase to measure the round trip
+    long writtenAt;
+    // sequence number of the frame the request was sent in, -1 if it wasn't framed
+    int seq;
+    // what the response is decoded into, e.g. the SensorArray of an ARRAY_GET
+    Object target;
+    // told about the outcome after the callback, used by RobotBase for the ResponseCache
+    Callback observer;
+    // requests merged onto this one by the ResponseCache, answered with its response
+    CommandStream merged;
+    private CommandStream next;
 
     CommandStream(Command c) {
+        req = new byte[MAX_REQUEST_SIZE];
+        init(c);
+    }
+
+    // Return a stream for the given command from the shared pool, or a new one if the
+    // pool is empty.
+    public static CommandStream obtain(Command c) {
+        return shared.obtain(c);
+    }
+
+    // Return the stream to its pool, only streams acquired through \c obtain are pooled.
+    public void recycle() {
+        Pool p = pool;
+        if (null == p) {
+            return;
+        }
+        pool = null;
+        resp = null;
+        callback = null;
+        target = null;
+        observer = null;
+        merged = null;
+        p.put(this);
+    }
+
+    private void init(Command c) {
         cmd = c;
-        os = new ByteArrayOutputStream();
-        os.write(cmd.nr);
+        req[0] = (byte)cmd.nr;
+        rlen = 1;
         checksum = 0;
+        checksummed = false;
+        resp = null;
+        roff = 0;
+        callback = null;
+        queuedAt = 0;
+        writtenAt = 0;
+        seq = -1;
+        target = null;
+        observer = null;
+        merged = null;
     }
 
     public Command command() {
         return cmd;
     }
 
+    public void setCallback(Callback cb) {
+        callback = cb;
+    }
+    public Callback callback() {
+        return callback;
+    }
+
+    // Report the outcome of the command, only the first call has any effect.
+    void finish(int status) {
+        Callback cb = callback;
+        if (null != cb) {
+            callback = null;
+            cb.onDone(this, status);
+        }
+        cb = observer;
+        if (null != cb) {
+            observer = null;
+            cb.onDone(this, status);
+        }
+    }
+
     // All commands are expected to respond within 500ms.
     public int timeoutMS() {
         return 500;
     }
 
     public byte[] getRequest() {
-        return os.toByteArray();
+        byte[] data = new byte[rlen];
+        System.arraycopy(req, 0, data, 0, rlen);
+        return data;
+    }
+
+    // The request without copying it, only the first \c requestLength() bytes are valid.
+    public byte[] requestBuffer() {
+        return req;
+    }
+    public int requestLength() {
+        return rlen;
+    }
+    // The request without the checksum, which is what goes into a frame.
+    public int payloadLength() {
+        return checksummed ? rlen - 2 : rlen;
+    }
+
+    public boolean isFramed() {
+        return 0 <= seq;
     }
 
     public boolean requiresResponse() {
@@ -64,48 +228,111 @@ public class CommandStream {
     }
 
     public boolean writeByte(int value) {
-        byte[] data = new byte[1];
-        data[0] = (byte)value;
-        return write(data);
+        if (!reserve(1)) {
+            return false;
+        }
+        put(value);
+        return true;
     }
     public boolean writeShort(int value) {
-        return write(ByteBuffer.allocate(2).order(targetOrder()).putShort((short)value).array());
+        if (!reserve(2)) {
+            return false;
+        }
+        if (ByteOrder.LITTLE_ENDIAN == targetOrder()) {
+            put(value);
+            put(value >> 8);
+        } else {
+            put(value >> 8);
+            put(value);
+        }
+        return true;
     }
     public boolean writeInt(int value) {
-        return write(ByteBuffer.allocate(4).order(targetOrder()).putInt(value).array());
+        if (!reserve(4)) {
+            return false;
+        }
+        if (ByteOrder.LITTLE_ENDIAN == targetOrder()) {
+            put(value);
+            put(value >> 8);
+            put(value >> 16);
+            put(value >> 24);
+        } else {
+            put(value >> 24);
+            put(value >> 16);
+            put(value >> 8);
+            put(value);
+        }
+        return true;
     }
     public boolean writeFloat(float value) {
-        return write(ByteBuffer.allocate(4).order(targetOrder()).putFloat(value).array());
+        return writeInt(Float.floatToIntBits(value));
     }
     public boolean writeChecksum() {
         // use big endian byte order for checksum, just do something different
-        return write(ByteBuffer.allocate(2).order(ByteOrder.BIG_ENDIAN).putShort((short)checksum).array(), false);
+        if (!reserve(2)) {
+            return false;
+        }
+        int cs = checksum;
+        req[rlen++] = (byte)(cs >> 8);
+        req[rlen++] = (byte)cs;
+        checksummed = true;
+        return true;
     }
     public boolean write(byte[] data) {
         return write(data, true);
     }
     public boolean write(byte[] data, boolean updateChecksum) {
-        try {
+        if (!reserve(data.length)) {
+            return false;
+        }
+        for (byte b : data) {
             if (updateChecksum) {
-                for (byte b : data) {
-                    checksum += (int) b & 0xFF;
-                }
+                put(b);
+            } else {
+                req[rlen++] = b;
             }
-            os.write(data);
-        } catch (IOException e) {
-            Log.e("CommandStream", "io error", e);
+        }
+        return true;
+    }
+
+    // Append size bytes to the request, returns the offset in \c requestBuffer they
+    // have to be written to, or -1 if they don't fit. Bytes written this way are only
+    // covered by the checksum once they're passed to \c addToChecksum.
+    int claim(int size) {
+        if (!reserve(size)) {
+            return -1;
+        }
+        int offset = rlen;
+        rlen += size;
+        return offset;
+    }
+    void addToChecksum(int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            checksum += req[i] & 0xFF;
+        }
+    }
+
+    // The response without copying it, see Protocol.
+    byte[] responseBuffer() {
+        return resp;
+    }
+
+    private boolean reserve(int size) {
+        if (rlen + size > req.length) {
+            Log.e("CommandStream", cmd + " request exceeds " + req.length + " bytes");
             return false;
         }
         return true;
     }
 
+    private void put(int value) {
+        req[rlen++] = (byte)value;
+        checksum += value & 0xFF;
+    }
+
     public float readFloat() { return readFloat(-1); }
     public float readFloat(int offset) {
-        if (-1 == offset) {
-            offset = roff;
-            roff += 4;
-        }
-        return ByteBuffer.wrap(resp, offset, 4).order(targetOrder()).getFloat();
+        return Float.intBitsToFloat(readInt(offset));
     }
     public int readInt() { return readInt(-1); }
     public int readInt(int offset) {
@@ -113,7 +340,16 @@ public class CommandStream {
             offset = roff;
             roff += 4;
         }
-        return ByteBuffer.wrap(resp, offset, 4).order(targetOrder()).getInt();
+        if (ByteOrder.LITTLE_ENDIAN == targetOrder()) {
+            return (resp[offset] & 0xFF)
+                    | (resp[offset + 1] & 0xFF) << 8
+                    | (resp[offset + 2] & 0xFF) << 16
+                    | (resp[offset + 3] & 0xFF) << 24;
+        }
+        return (resp[offset] & 0xFF) << 24
+                | (resp[offset + 1] & 0xFF) << 16
+                | (resp[offset + 2] & 0xFF) << 8
+                | (resp[offset + 3] & 0xFF);
     }
     public int readShort() { return readShort(-1); }
     public int readShort(int offset) {
@@ -121,7 +357,10 @@ public class CommandStream {
             offset = roff;
             roff += 2;
         }
-        return ByteBuffer.wrap(resp, offset, 2).order(targetOrder()).getShort();
+        if (ByteOrder.LITTLE_ENDIAN == targetOrder()) {
+            return (short)((resp[offset] & 0xFF) | (resp[offset + 1] & 0xFF) << 8);
+        }
+        return (short)((resp[offset] & 0xFF) << 8 | (resp[offset + 1] & 0xFF));
     }
     public int readByte() { return readByte(-1); }
     public int readByte(int offset) {
@@ -139,7 +378,7 @@ public class CommandStream {
         }
         if (-1 == length) {
             length = 0;
-            for (int i=offset; 0 != resp[i] && i < resp.length; ++i, ++length) ;
+            for (int i=offset; i < resp.length && 0 != resp[i]; ++i, ++length) ;
         }
         if (offset == roff) {
             roff += length;
@@ -0,0 +1,398 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Services the links to any number of robots with a fixed number of threads.
+ *
+ * A ConnectionThread costs two threads per robot, which adds up with a whole team of
+ * robots. The Links opened by a ConnectionPool share a bounded set of threads instead:
+ *    readers    ... each services its share of the links. The streams of a Transport
+ *                   only block, there is nothing to select on, so a reader polls the
+ *                   \c available bytes of its links and only reads what is there.
+ *                   While none of its links has anything to read the reader parks,
+ *                   for MIN_POLL_NS at first and up to MAX_POLL_NS, which is the
+ *                   latency the pool adds to a response arriving at an idle link.
+ *                   Once nothing has been read or written for IDLE_NS the reader
+ *                   parks for IDLE_POLL_NS, until a write to one of its links (or
+ *                   a cancel) wakes it up again. Idle links don't keep the CPU
+ *                   awake, only bytes the robot sends on its own (e.g. streamed
+ *                   values after a long pause) wait up to IDLE_POLL_NS.
+ *    writers    ... each drains the WriteQueues of its share of the links, one
+ *                   message per link in turn, and parks while they're all empty.
+ *                   A link always belongs to the same writer, so each WriteQueue
+ *                   still has a single consumer. A write blocking on a congested
+ *                   link holds up the other links of the same writer.
+ *    connectors ... connecting blocks (for seconds if a robot is out of range), so
+ *                   connects are made on a thread pool of their own.
+ * A link is assigned to the reader and the writer with the fewest links once it is
+ * connected.
+ *
+ * The Links report exactly the messages a ConnectionThread does, so RobotBase can't
+ * tell the difference - each robot keeps its own command queue, metrics, keepalive and
+ * reconnects (see RobotManager). MSG_CLOSED is sent by the writer once the reader is
+ * done with the link, nothing follows it.
+ *
+ * The readers rely on InputStream.available: it has to report the bytes which can be
+ * read without blocking, and fail once the link is closed (as a BluetoothSocket's
+ * does). A link whose input only ever reports 0 is still closed by the keepalive.
+ */
+
+public class ConnectionPool implements Link.Pool {
+
+    private final static String LOGTAG = "POOL";
+
+    // how long an idle reader parks before it polls its links again, doubling from
+    // MIN_POLL_NS up to MAX_POLL_NS while there's nothing to read
+    private final static long MIN_POLL_NS = 50000L;
+    private final static long MAX_POLL_NS = 1000000L;
+    // after IDLE_NS without anything read or written an idle reader parks for IDLE_POLL_NS
+    private final static long IDLE_NS = 200000000L;
+    private final static long IDLE_POLL_NS = 100000000L;
+
+    private final Reader[] readers;
+    private final Writer[] writers;
+    private final ExecutorService connector;
+    private volatile boolean shutdown;
+
+    public ConnectionPool(int readerThreads, int writerThreads, int connectThreads) {
+        readers = new Reader[Math.max(1, readerThreads)];
+        for (int i = 0; i < readers.length; ++i) {
+            readers[i] = new Reader("ConnectionPool.reader" + i);
+            readers[i].start();
+        }
+        writers = new Writer[Math.max(1, writerThreads)];
+        for (int i = 0; i < writers.length; ++i) {
+            writers[i] = new Writer("ConnectionPool.writer" + i);
+            writers[i].start();
+        }
+        connector = Executors.newFixedThreadPool(Math.max(1, connectThreads), new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ConnectionPool.connect" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public Link open(Transport transport, Handler handler) {
+        return new PooledLink(transport, handler);
+    }
+
+    // Number of links currently connected.
+    public int size() {
+        int count = 0;
+        for (Reader r : readers) {
+            count += r.links.size();
+        }
+        return count;
+    }
+
+    // Number of threads servicing connected links, the connect threads aren't counted.
+    public int threads() {
+        return readers.length + writers.length;
+    }
+
+    // Closes all links and stops the threads once they have sent MSG_CLOSED for each.
+    // Links started afterwards are closed right away.
+    public synchronized void shutdown() {
+        shutdown = true;
+        connector.shutdown();
+        for (Reader r : readers) {
+            for (PooledLink link : r.links) {
+                link.cancel();
+            }
+            LockSupport.unpark(r);
+        }
+        for (Writer w : writers) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    private static <T extends Thread & Service> T leastBusy(T[] threads) {
+        T best = threads[0];
+        for (T t : threads) {
+            if (t.links().size() < best.links().size()) {
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    private interface Service {
+        CopyOnWriteArrayList<PooledLink> links();
+    }
+
+    private class PooledLink implements Link, Runnable {
+        private final Transport transport;
+        private final Handler handler;
+        private final RingBuffer buffer = new RingBuffer(1024);
+        private final WriteQueue writeQueue = new WriteQueue(Link.QUEUE_SIZE, CommandStream.MAX_REQUEST_SIZE);
+        // set by the connect thread before the link is handed to its reader and writer
+        private InputStream is;
+        private OutputStream os;
+        private volatile Writer writer;
+        private volatile Reader reader;
+        private volatile boolean cancelled;
+        // set by the reader once it's done with the link, the writer sends MSG_CLOSED
+        private volatile boolean readDone;
+        // writer only: a write failed, nothing more is written
+        private boolean failed;
+
+        PooledLink(Transport t, Handler h) {
+            transport = t;
+            handler = h;
+        }
+
+        @Override
+        public void start() {
+            try {
+                connector.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.e(LOGTAG, "Pool is shut down", e);
+                closed();
+            }
+        }
+
+        // Connect thread: connect and hand the link to a reader and a writer.
+        @Override
+        public void run() {
+            try {
+                transport.connect();
+                is = transport.getInputStream();
+                os = transport.getOutputStream();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Connection to socket failed", e);
+                cancel();
+                closed();
+                return;
+            }
+            synchronized (ConnectionPool.this) {
+                // cancel might have been called while connecting, before there was anything to close
+                if (cancelled || shutdown) {
+                    cancel();
+                    closed();
+                    return;
+                }
+                Message msg = handler.obtainMessage(ConnectionThread.MSG_STARTED, 0, 0, this);
+                msg.sendToTarget();
+                Writer w = leastBusy(writers);
+                writer = w;
+                w.links.add(this);
+                LockSupport.unpark(w);
+                Reader r = leastBusy(readers);
+                reader = r;
+                r.links.add(this);
+            }
+        }
+
+        @Override
+        public boolean write(byte[] bytes, int offset, int length) {
+            if (!writeQueue.offer(bytes, offset, length)) {
+                return false;
+            }
+            Writer w = writer;
+            if (null != w) {
+                LockSupport.unpark(w);
+            }
+            Reader r = reader;
+            if (null != r) {
+                r.written();
+            }
+            return true;
+        }
+
+        // Can be called from any thread, MSG_CLOSED is sent once the link is done.
+        @Override
+        public void cancel() {
+            cancelled = true;
+            try {
+                transport.close();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Closing socket failed", e);
+            }
+            Reader r = reader;
+            if (null != r) {
+                LockSupport.unpark(r);
+            }
+        }
+
+        private void closed() {
+            Message msg = handler.obtainMessage(ConnectionThread.MSG_CLOSED, 0, 0, this);
+            msg.sendToTarget();
+        }
+    }
+
+    private class Reader extends Thread implements Service {
+        private final CopyOnWriteArrayList<PooledLink> links = new CopyOnWriteArrayList<>();
+        // bumped by each write to one of the links, only ever compared (a lost update
+        // from concurrent writes still changes it)
+        private volatile int writes;
+        // parked for IDLE_POLL_NS, a write has to wake the reader
+        private volatile boolean idle;
+
+        Reader(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public CopyOnWriteArrayList<PooledLink> links() {
+            return links;
+        }
+
+        // A response is on its way, poll for it.
+        void written() {
+            ++writes;
+            if (idle) {
+                LockSupport.unpark(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            long poll = 0;
+            long activeAt = System.nanoTime();
+            int seen = writes;
+            while (!(shutdown && links.isEmpty())) {
+                boolean busy = false;
+                for (PooledLink link : links) {
+                    if (read(link)) {
+                        busy = true;
+                    }
+                }
+                int w = writes;
+                if (busy || w != seen) {
+                    seen = w;
+                    poll = 0;
+                    activeAt = System.nanoTime();
+                    if (busy) {
+                        continue;
+                    }
+                }
+                if (System.nanoTime() - activeAt < IDLE_NS) {
+                    poll = Math.min(MAX_POLL_NS, Math.max(MIN_POLL_NS, 2 * poll));
+                    LockSupport.parkNanos(this, poll);
+                } else {
+                    // either the writer sees idle and unparks, or the write is seen here
+                    idle = true;
+                    if (writes == seen) {
+                        LockSupport.parkNanos(this, IDLE_POLL_NS);
+                    }
+                    idle = false;
+                }
+            }
+        }
+
+        // Reads whatever the link has received, returns true if there was anything.
+        private boolean read(PooledLink link) {
+            if (link.cancelled) {
+                done(link);
+                return false;
+            }
+            RingBuffer buffer = link.buffer;
+            // the handler hasn't caught up yet, the bytes wait in the socket
+            if (buffer.isFull()) {
+                return false;
+            }
+            try {
+                if (0 == link.is.available()) {
+                    return false;
+                }
+                int count = buffer.fill(link.is);
+                if (count < 0) {
+                    Log.d(LOGTAG, "Connection closed");
+                    done(link);
+                    return false;
+                }
+                Message msg = link.handler.obtainMessage(ConnectionThread.MSG_READ, count, -1, buffer);
+                msg.sendToTarget();
+                return true;
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Reading message", e);
+                done(link);
+                return false;
+            }
+        }
+
+        private void done(PooledLink link) {
+            links.remove(link);
+            link.cancel();
+            link.readDone = true;
+            LockSupport.unpark(link.writer);
+        }
+    }
+
+    private class Writer extends Thread implements Service {
+        private final CopyOnWriteArrayList<PooledLink> links = new CopyOnWriteArrayList<>();
+
+        Writer(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public CopyOnWriteArrayList<PooledLink> links() {
+            return links;
+        }
+
+        @Override
+        public void run() {
+            while (!(shutdown && links.isEmpty())) {
+                boolean busy = false;
+                for (PooledLink link : links) {
+                    if (write(link)) {
+                        busy = true;
+                    }
+                }
+                // whoever queues a message, or is done reading, unparks the writer
+                if (!busy) {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        // Writes the link's oldest queued message, returns true if there was one.
+        private boolean write(PooledLink link) {
+            if (link.readDone) {
+                // the reader has sent its last MSG_READ, and this thread its last MSG_WRITE
+                links.remove(link);
+                link.closed();
+                return false;
+            }
+            WriteQueue queue = link.writeQueue;
+            if (link.failed || 0 == queue.size()) {
+                return false;
+            }
+            int length = queue.length();
+            try {
+                link.os.write(queue.buffer(), 0, length);
+                Message msg = link.handler.obtainMessage(ConnectionThread.MSG_WRITE, length, -1, queue.origin());
+                msg.sendToTarget();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Writing message", e);
+                // the connection is gone, make sure the reader notices
+                link.failed = true;
+                link.cancel();
+            }
+            queue.remove();
+            return true;
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package org.vancouverroboticsclub.robot_rfcomm;
 
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -9,139 +7,214 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
 
 /**
- * Implementation of the thread to service the rfcomm socket.
+ * Implementation of the thread to service the rfcomm socket, or whatever other
+ * Transport is used to talk to the robot. This is the Link RobotBase uses unless it
+ * was given a ConnectionPool to share with other robots.
+ *
+ * The thread connects the Transport itself, so establishing the connection never
+ * blocks the thread creating it. Bytes written before the connection is up are sent
+ * once it is.
+ *
+ * Reading and writing each take a thread which spends its life blocked in the stream.
+ * By default these are plain threads, given a ThreadFactory they're made by that
+ * instead - e.g. virtual threads on a JVM gateway with thousands of links (see
+ * RobotGateway), which only occupy a carrier thread while there's something to do.
  *
  * The thread requires a Handler for construction which it uses to send
- * one of 3 messages to:
- *    MSG_STARTED ... sent once the service thread is up and running.
- *                    can be used to start communication.
- *                    No further information is provided by the message.
+ * one of 4 messages to:
+ *    MSG_STARTED ... sent once the connection has been established and the service
+ *                    thread is up and running. Can be used to start communication.
+ *                        obj  ... the ConnectionThread
  *    MSG_READ    ... sent whenever some bytes were received over the socket.
  *                    Note that the thread has no concept of a message and
  *                    therefore cannot determine if a message is complete or
  *                    more bytes need to be received. These are responsibilities
  *                    of the receiving Handler.
- *                       arg1 ... # bytes in the buffer
+ *                    The received bytes are stored in the thread's RingBuffer,
+ *                    the receiving Handler is expected to accept them (see
+ *                    RingBuffer.accept) and take them out of the buffer - the
+ *                    thread stops reading if the buffer is full.
+ *                       arg1 ... # bytes received
  *                       arg2 ... -1
- *                       obj  ... byte[] with the received bytes
+ *                       obj  ... RingBuffer with the received bytes
  *    MSG_WRITE   ... sent when a message has been sent over the socket. Used to
  *                    initiate sending the next message.
- *                        arg1 ... -1
+ *                    Note that \c write only queues the message, it is sent by
+ *                    a separate writer thread so the caller never blocks on the
+ *                    socket. \c write must always be called from the same thread.
+ *                        arg1 ... # bytes written
  *                        arg2 ... -1
- *                        obj  ... byte[] the original message
+ *                        obj  ... byte[] the original message (see arg1 for
+ *                                 the number of valid bytes). The message was
+ *                                 copied by \c write, the caller might have
+ *                                 re-used the array in the meantime.
+ *    MSG_CLOSED  ... sent when the connection couldn't be established, was lost or
+ *                    closed with \c cancel. This is the last message of the thread, no
+ *                    MSG_READ or MSG_WRITE follows it. A thread can't be restarted,
+ *                    reconnecting takes a new ConnectionThread (see RobotBase).
+ *                        obj  ... the ConnectionThread
  *    MSG_USER    ... this message is never sent but if the handler wants to use
  *                    additional messages their IDs can be based on MSG_USER and
  *                    bigger.
  */
 
-public class ConnectionThread extends Thread {
+public class ConnectionThread implements Link {
     public final static int MSG_STARTED = 0;
     public final static int MSG_READ = 1;
     public final static int MSG_WRITE = 2;
+    public final static int MSG_CLOSED = 3;
     public final static int MSG_USER = 10;
 
-    // This is the public, well known SPP uuid, and it seems the RN-42 requires this UUID.
-    // Using any other uuid fails to connect.
-    private final static UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
     private final static String LOGTAG = "THREAD";
 
-    private final BluetoothDevice device;
-    private final BluetoothSocket socket;
-    private final InputStream is;
-    private final OutputStream os;
+    private final Transport transport;
+    private InputStream is;
+    private OutputStream os;
+    private volatile boolean cancelled;
 
     private final Handler handler;
 
-    private byte[] buffer;
+    private final RingBuffer buffer;
+    private final WriteQueue writeQueue;
+    private final Thread reader;
+    private final Thread writer;
 
-    public ConnectionThread(BluetoothDevice dev, Handler hndlr) {
-        device = dev;
-        handler = hndlr;
+    public ConnectionThread(Transport t, Handler hndlr) {
+        this(t, hndlr, null);
+    }
 
-        BluetoothSocket s = null;
-        InputStream i = null;
-        OutputStream o = null;
-        try {
-            s = device.createRfcommSocketToServiceRecord(MY_UUID);
-            try {
-                s.connect();
+    // The reader and the writer are made by the given factory, plain threads if it's null.
+    public ConnectionThread(Transport t, Handler hndlr, ThreadFactory threads) {
+        transport = t;
+        handler = hndlr;
+        buffer = new RingBuffer(1024);
+        writeQueue = new WriteQueue(Link.QUEUE_SIZE, CommandStream.MAX_REQUEST_SIZE);
+        Runnable read = new Runnable() {
+            @Override
+            public void run() {
+                ConnectionThread.this.run();
+            }
+        };
+        Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        if (null == threads) {
+            reader = new Thread(read, "ConnectionThread");
+            writer = new Thread(write, "ConnectionThread.writer");
+        } else {
+            reader = threads.newThread(read);
+            writer = threads.newThread(write);
+        }
+    }
 
-                try {
-                    i = s.getInputStream();
-                } catch (IOException e) {
-                    Log.e(LOGTAG, "Input stream failed", e);
-                }
+    @Override
+    public void start() {
+        reader.start();
+    }
 
+    // Reader thread: connect, start the writer and read until the link is gone. Whatever
+    // ends the reading, the link is closed and MSG_CLOSED sent.
+    private void run() {
+        try {
+            if (connect()) {
+                writer.start();
+                Message msg = handler.obtainMessage(MSG_STARTED, 0, 0, this);
+                msg.sendToTarget();
                 try {
-                    o = s.getOutputStream();
+                    readLoop();
                 } catch (IOException e) {
-                    Log.e(LOGTAG, "Output stream failed", e);
+                    Log.e(LOGTAG, "Reading message", e);
+                } finally {
+                    // make sure the writer is done, nothing is sent after MSG_CLOSED
+                    cancel();
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
-
-            } catch (IOException e) {
-                Log.e(LOGTAG, "Connection to socket faile", e);
             }
-        } catch (IOException e) {
-            Log.e(LOGTAG, "Socket creation failed.", e);
+        } finally {
+            Message msg = handler.obtainMessage(MSG_CLOSED, 0, 0, this);
+            msg.sendToTarget();
         }
-        socket = s;
+    }
 
-        // assuming everything went OK there should be an input and output
-        // stream - clean up if that's not the case.
-        is = i;
-        os = o;
-        if ((null == is || null == os) && null != socket) {
+    // Returns false if there is no connection, or it was cancelled in the meantime.
+    private boolean connect() {
+        try {
+            transport.connect();
+            is = transport.getInputStream();
+            os = transport.getOutputStream();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Connection to socket failed", e);
+            cancel();
+            return false;
+        }
+        // cancel might have been called while connecting, before there was anything to close
+        if (cancelled) {
             cancel();
+            return false;
         }
+        return true;
     }
 
-    @Override
-    public void run() {
-        buffer = new byte[1024];
-
-        {
-            Message msg = handler.obtainMessage(MSG_STARTED, 0, 0, null);
+    // Returns at the end of the stream, any IOException (e.g. the socket was closed) means
+    // the link is lost just the same.
+    private void readLoop() throws IOException {
+        while (true) {
+            int count = buffer.fill(is);
+            if (count < 0) {
+                Log.d(LOGTAG, "Connection closed");
+                return;
+            }
+            Message msg = handler.obtainMessage(MSG_READ, count, -1, buffer);
             msg.sendToTarget();
         }
+    }
 
-        while (true) {
+    public boolean write(byte[] bytes) {
+        return write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public boolean write(byte[] bytes, int offset, int length) {
+        return writeQueue.offer(bytes, offset, length);
+    }
+
+    // Writer thread: send queued messages and report them as done
+    private void writeLoop() {
+        while (writeQueue.await()) {
+            int length = writeQueue.length();
             try {
-                int count = is.read(buffer);
-                byte[] data = new byte[count];
-                System.arraycopy(buffer, 0, data, 0, count);
-                Message msg = handler.obtainMessage(MSG_READ, count, -1, data);
+                os.write(writeQueue.buffer(), 0, length);
+                Message msg = handler.obtainMessage(MSG_WRITE, length, -1, writeQueue.origin());
                 msg.sendToTarget();
             } catch (IOException e) {
-                Log.e(LOGTAG, "Reading message", e);
+                Log.e(LOGTAG, "Writing message", e);
+                // the connection is gone, make sure the reader notices
+                cancel();
                 break;
             }
+            writeQueue.remove();
         }
     }
 
-    public void write(byte[] bytes) {
+    // Can be called from any thread, MSG_CLOSED is sent once the thread is done.
+    @Override
+    public void cancel() {
+        cancelled = true;
+        writer.interrupt();
         try {
-            if (2 == bytes.length) {
-                Log.d(LOGTAG, "write(" + bytes.length + ": " + bytes[0] + " " + bytes[1] + ")");
-            }
-            os.write(bytes);
-            Message msg = handler.obtainMessage(MSG_WRITE, -1, -1, bytes);
-            msg.sendToTarget();
+            transport.close();
         } catch (IOException e) {
-            Log.e(LOGTAG, "Writing message", e);
-        }
-    }
-
-    public void cancel() {
-        if (null != socket) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                Log.e(LOGTAG, "Closing socket failed", e);
-            }
+            Log.e(LOGTAG, "Closing socket failed", e);
         }
     }
 }
@@ -0,0 +1,146 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * Encoding and decoding of the framed wire format, see frame.h on the robot.
+ *
+ * A frame looks like this:
+ *    SYNC      0x7E
+ *    LENGTH    size of the payload, 1..MAX_PAYLOAD
+ *    SEQUENCE  sequence number of the request, echoed in the response
+ *    PAYLOAD   command id (or tag for pushed frames) followed by the data
+ *    CRC       CRC-16/CCITT-FALSE (big endian) over LENGTH, SEQUENCE and PAYLOAD
+ *
+ * The decoder is self-synchronizing: if the bytes at the front of the buffer can't
+ * be the start of a valid frame, or the CRC of a complete frame doesn't match, the
+ * sync byte is dropped and decoding restarts at the next sync byte. A false sync byte
+ * within the payload of a lost frame costs at most the bytes up to the next frame.
+ */
+
+public class FrameCodec {
+
+    public final static int SYNC = 0x7E;
+    public final static int MAX_PAYLOAD = 64;
+    public final static int HEADER_SIZE = 3;
+    public final static int CRC_SIZE = 2;
+    public final static int OVERHEAD = HEADER_SIZE + CRC_SIZE;
+
+    private final static int CRC_INIT = 0xFFFF;
+    private final static char[] crcTable = new char[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i << 8;
+            for (int b = 0; b < 8; ++b) {
+                crc = 0 != (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            crcTable[i] = (char)crc;
+        }
+    }
+
+    private int seq;
+    private int size;
+    private long frames;
+    private long dropped;
+    private long crcErrors;
+
+    public static int crc16(int crc, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            crc = ((crc << 8) ^ crcTable[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    private static int crc16(int crc, RingBuffer data, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            crc = ((crc << 8) ^ crcTable[((crc >> 8) ^ data.get(i)) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    // Encode a frame with the given payload into dst, returns the size of the frame.
+    // The payload must not exceed MAX_PAYLOAD bytes and dst must have room for
+    // OVERHEAD additional bytes.
+    public static int encode(int seq, byte[] payload, int length, byte[] dst, int offset) {
+        dst[offset] = (byte)SYNC;
+        dst[offset + 1] = (byte)length;
+        dst[offset + 2] = (byte)seq;
+        System.arraycopy(payload, 0, dst, offset + HEADER_SIZE, length);
+        int crc = crc16(CRC_INIT, dst, offset + 1, length + 2);
+        dst[offset + HEADER_SIZE + length] = (byte)(crc >> 8);
+        dst[offset + HEADER_SIZE + length + 1] = (byte)crc;
+        return length + OVERHEAD;
+    }
+
+    // Look for the next valid frame at the front of the buffer, dropping whatever can't
+    // be part of one. Returns the size of the payload once a complete frame is available
+    // or -1 if more bytes are needed. The frame is left in the buffer, the caller is
+    // expected to skip HEADER_SIZE bytes, consume the payload and skip CRC_SIZE bytes.
+    public int next(RingBuffer rcvd) {
+        while (0 < rcvd.available()) {
+            if (SYNC != (rcvd.get(0) & 0xFF)) {
+                resync(rcvd);
+                continue;
+            }
+            if (rcvd.available() < 2) {
+                return -1;
+            }
+            int length = rcvd.get(1) & 0xFF;
+            if (0 == length || MAX_PAYLOAD < length) {
+                resync(rcvd);
+                continue;
+            }
+            if (rcvd.available() < length + OVERHEAD) {
+                return -1;
+            }
+            int crc = (rcvd.get(HEADER_SIZE + length) & 0xFF) << 8 | (rcvd.get(HEADER_SIZE + length + 1) & 0xFF);
+            if (crc != crc16(CRC_INIT, rcvd, 1, length + 2)) {
+                ++crcErrors;
+                resync(rcvd);
+                continue;
+            }
+            seq = rcvd.get(2) & 0xFF;
+            size = length;
+            ++frames;
+            return length;
+        }
+        return -1;
+    }
+
+    // Drop the sync byte at the front of the buffer and everything up to the next one.
+    public void resync(RingBuffer rcvd) {
+        int skip = 1;
+        while (skip < rcvd.available() && SYNC != (rcvd.get(skip) & 0xFF)) {
+            ++skip;
+        }
+        dropped += rcvd.skip(skip);
+    }
+
+    // The header of the (possibly incomplete) frame at the front of the buffer, -1 if
+    // not enough bytes have been received.
+    public static int peekSequence(RingBuffer rcvd) {
+        return rcvd.available() < HEADER_SIZE ? -1 : rcvd.get(2) & 0xFF;
+    }
+    public static int peekId(RingBuffer rcvd) {
+        return rcvd.available() <= HEADER_SIZE ? -1 : rcvd.get(HEADER_SIZE) & 0xFF;
+    }
+
+    // Sequence number and payload size of the frame last returned by \c next.
+    public int sequence() {
+        return seq;
+    }
+    public int size() {
+        return size;
+    }
+
+    // Statistics: valid frames, bytes dropped while resynchronizing and frames with a
+    // CRC mismatch.
+    public long frames() {
+        return frames;
+    }
+    public long dropped() {
+        return dropped;
+    }
+    public long crcErrors() {
+        return crcErrors;
+    }
+}
@@ -0,0 +1,76 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * Liveness of the link, maintained by RobotBase.
+ *
+ * Any bytes received prove the link is alive, so regular traffic doubles as heartbeat
+ * and a heartbeat request (an ID, see RobotBase) is only sent once nothing has been
+ * received for an interval and nothing is outstanding. A heartbeat is missed for every
+ * interval that passes without a byte received while a response is expected, be it to
+ * the heartbeat request or to any other command.
+ * Once \c maxMissed heartbeats in a row are missed the link is considered dead, which
+ * is usually long before the Bluetooth stack notices (its supervision timeout can be
+ * as long as 20s).
+ *
+ * All times are SystemClock.elapsedRealtimeNanos.
+ */
+
+public class Keepalive {
+
+    private final long interval;
+    private final int maxMissed;
+    private long lastHeard;
+    // when the oldest write still waiting for any bytes was made, 0 if none is
+    private long waitingSince;
+
+    public Keepalive(int intervalMS, int missed) {
+        interval = Math.max(1, intervalMS) * 1000000L;
+        maxMissed = Math.max(1, missed);
+    }
+
+    public int intervalMS() {
+        return (int)(interval / 1000000L);
+    }
+    public int maxMissed() {
+        return maxMissed;
+    }
+
+    // A new connection, nothing is expected yet.
+    void reset(long now) {
+        lastHeard = now;
+        waitingSince = 0;
+    }
+
+    void heard(long now) {
+        lastHeard = now;
+        waitingSince = 0;
+    }
+
+    // A command which expects a response has been written.
+    void expect(long now) {
+        if (0 == waitingSince) {
+            waitingSince = now;
+        }
+    }
+
+    // Number of heartbeats missed in a row.
+    int missed(long now) {
+        return 0 == waitingSince ? 0 : (int)((now - waitingSince) / interval);
+    }
+
+    boolean isDead(long now) {
+        return missed(now) >= maxMissed;
+    }
+
+    // Nothing received for an interval, and nothing expected.
+    boolean isIdle(long now) {
+        return 0 == waitingSince && now - lastHeard >= interval;
+    }
+
+    // Time from now until the state changes: the next heartbeat is missed, or a heartbeat
+    // request is due.
+    long nextCheck(long now) {
+        long due = 0 == waitingSince ? lastHeard + interval : waitingSince + (missed(now) + 1) * interval;
+        return Math.max(0, due - now);
+    }
+}
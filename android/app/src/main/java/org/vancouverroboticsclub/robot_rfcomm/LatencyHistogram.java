@@ -0,0 +1,130 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * Histogram of latencies in microseconds with a bounded relative error, along the
+ * lines of HdrHistogram.
+ *
+ * Values below 64us are counted exactly, above that each power of 2 is split into 32
+ * linear buckets, which keeps the error below 1/32 (~3%) up to 2^32us (over an hour).
+ * Larger values are counted in the last bucket.
+ *
+ * Recording is lock-free but there must only be a single thread recording values.
+ * Any number of threads can take a \c snapshot concurrently, which might miss the
+ * values recorded while it's being taken but never sees a torn count. The volatile
+ * \c count publishes the buckets to them, it's written last and read first.
+ */
+
+public class LatencyHistogram {
+
+    private final static int SUB_BITS = 6;
+    private final static int HALF = 1 << (SUB_BITS - 1);
+    private final static int MAX_SHIFT = 32 - SUB_BITS;
+    private final static int BUCKETS = (MAX_SHIFT + 2) * HALF;
+
+    // int counts so a reader on a 32 bit platform can't see half of an update
+    private final int[] counts = new int[BUCKETS];
+    private volatile long count;
+    private volatile long sum;
+    private volatile long max;
+
+    static int index(long us) {
+        if (us <= 0) {
+            return 0;
+        }
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(us) - (SUB_BITS - 1));
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return shift * HALF + (int)(us >>> shift);
+    }
+
+    // Smallest and largest value counted in the given bucket.
+    static long lowest(int index) {
+        int shift = Math.max(0, index / HALF - 1);
+        return (long)(index - shift * HALF) << shift;
+    }
+    static long highest(int index) {
+        int shift = Math.max(0, index / HALF - 1);
+        return ((long)(index - shift * HALF + 1) << shift) - 1;
+    }
+
+    // Writer: count one value.
+    public void record(long us) {
+        int i = index(us);
+        counts[i] = counts[i] + 1;
+        sum = sum + us;
+        if (us > max) {
+            max = us;
+        }
+        count = count + 1;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public Snapshot snapshot() {
+        // count is written last, reading it first makes the counts recorded before visible
+        if (0 == count) {
+            return new Snapshot(new int[BUCKETS], 0, 0);
+        }
+        return new Snapshot(counts.clone(), sum, max);
+    }
+
+    // The sum of the given snapshots, e.g. the latencies of a whole fleet of robots.
+    public static Snapshot merge(Snapshot... snapshots) {
+        int[] c = new int[BUCKETS];
+        long s = 0;
+        long m = 0;
+        for (Snapshot snapshot : snapshots) {
+            for (int i = 0; i < BUCKETS; ++i) {
+                c[i] += snapshot.counts[i];
+            }
+            s += snapshot.sum;
+            m = Math.max(m, snapshot.max);
+        }
+        return new Snapshot(c, s, m);
+    }
+
+    /**
+     * Immutable copy of the histogram.
+     */
+    public static class Snapshot {
+        private final int[] counts;
+        public final long count;
+        public final long sum;
+        public final long max;
+
+        Snapshot(int[] c, long s, long m) {
+            counts = c;
+            long n = 0;
+            for (int v : c) {
+                n += v;
+            }
+            count = n;
+            sum = s;
+            max = m;
+        }
+
+        public double mean() {
+            return 0 == count ? 0 : (double)sum / count;
+        }
+
+        // The value below which the given fraction (0..1) of the values are, within the
+        // precision of the histogram.
+        public long percentile(double fraction) {
+            if (0 == count) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(highest(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+
+/**
+ * One connection to a robot as seen by RobotBase.
+ *
+ * A Link is either serviced by threads of its own (ConnectionThread) or by the shared
+ * threads of a Pool, e.g. a ConnectionPool. Either way it reports to a Handler with the
+ * messages documented in ConnectionThread: MSG_STARTED once it's connected, MSG_READ
+ * and MSG_WRITE while it is, and MSG_CLOSED as its last message. A Link is only used
+ * for a single connection, reconnecting takes a new one.
+ *
+ * \c write must always be called from the same thread, \c cancel from any thread. It
+ * queues a copy of the bytes and returns right away, or returns false if QUEUE_SIZE
+ * writes are pending already. RobotBase never has more commands outstanding than
+ * that (see setWindow), so a full queue means the link is stuck.
+ */
+
+public interface Link {
+    // writes a link queues at most
+    int QUEUE_SIZE = 64;
+
+    void start();
+    boolean write(byte[] bytes, int offset, int length);
+    void cancel();
+
+    // Opens the links of any number of robots, which share its threads.
+    interface Pool {
+        // A new link over the given Transport, reporting to the given Handler. Nothing
+        // happens until the link is started.
+        Link open(Transport transport, Handler handler);
+    }
+}
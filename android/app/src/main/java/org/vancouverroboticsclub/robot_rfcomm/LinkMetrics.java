@@ -0,0 +1,213 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.util.Locale;
+
+/**
+ * Metrics of the communication with the robot, maintained by RobotBase.
+ *
+ * Tracks the round trip latency of each Command in a LatencyHistogram, the depth of
+ * the command queue, the time commands wait in it and the number of commands in
+ * flight, the bytes received and sent, commands coalesced in or dropped from the
+ * queue, the number of timeouts, aborted responses and frames with a CRC mismatch, and
+ * how long the link was down each time it was lost and how many commands were sent
+ * again because of that. For the keepalive (see Keepalive) the heartbeats sent, the
+ * jitter of their round trips and how often the link was declared dead are counted.
+ * The jitter is the smoothed difference between consecutive round trips, as in RTP
+ * (RFC 3550). Requests answered by the ResponseCache, or merged onto the same request
+ * already on its way, are counted as cache hits and merged requests.
+ * Together they tell whether a slow robot is waiting for the queue, the link or the
+ * firmware.
+ *
+ * All values are updated by the thread RobotBase runs on, without any locking, and
+ * can be read from any thread with \c snapshot. Recording doesn't allocate, so the
+ * metrics can stay enabled all the time.
+ */
+
+public class LinkMetrics {
+
+    private final LatencyHistogram[] latency;
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram outage = new LatencyHistogram();
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long timeouts;
+    private volatile long aborts;
+    private volatile long checksumFailures;
+    private volatile long coalesced;
+    private volatile long dropped;
+    private volatile long reconnects;
+    private volatile long replayed;
+    private volatile long heartbeats;
+    private volatile long deadLinks;
+    private volatile long cacheHits;
+    private volatile long cacheMerged;
+    private volatile float jitter;
+    private long lastHeartbeat = -1;
+    private volatile int queueDepth;
+    private volatile int maxQueueDepth;
+    private volatile int inFlight;
+    private final long started;
+
+    public LinkMetrics() {
+        latency = new LatencyHistogram[Command.values().length];
+        for (int i = 0; i < latency.length; ++i) {
+            latency[i] = new LatencyHistogram();
+        }
+        started = System.nanoTime();
+    }
+
+    // Writer side, only to be called from the thread RobotBase runs on.
+    void roundTrip(Command cmd, long us) {
+        latency[cmd.ordinal()].record(us);
+    }
+    void queueWait(long us) {
+        queueWait.record(us);
+    }
+    void received(int count) {
+        bytesIn = bytesIn + count;
+    }
+    void sent(int count) {
+        bytesOut = bytesOut + count;
+    }
+    void timeout() {
+        timeouts = timeouts + 1;
+    }
+    void abort() {
+        aborts = aborts + 1;
+    }
+    void checksumFailures(long count) {
+        checksumFailures = checksumFailures + count;
+    }
+    void coalesced() {
+        coalesced = coalesced + 1;
+    }
+    void dropped() {
+        dropped = dropped + 1;
+    }
+    // The link is back after being down for the given time.
+    void reconnect(long us) {
+        outage.record(us);
+        reconnects = reconnects + 1;
+    }
+    void replayed() {
+        replayed = replayed + 1;
+    }
+    void heartbeat() {
+        heartbeats = heartbeats + 1;
+    }
+    void heartbeatAnswered(long us) {
+        if (-1 != lastHeartbeat) {
+            jitter = jitter + (Math.abs(us - lastHeartbeat) - jitter) / 16;
+        }
+        lastHeartbeat = us;
+    }
+    void linkDead() {
+        deadLinks = deadLinks + 1;
+    }
+    void cacheHit() {
+        cacheHits = cacheHits + 1;
+    }
+    void cacheMerged() {
+        cacheMerged = cacheMerged + 1;
+    }
+    void queue(int queued, int outstanding) {
+        queueDepth = queued;
+        inFlight = outstanding;
+        if (queued > maxQueueDepth) {
+            maxQueueDepth = queued;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable copy of all metrics at (roughly) one point in time.
+     */
+    public static class Snapshot {
+        public final LatencyHistogram.Snapshot[] latency;
+        public final LatencyHistogram.Snapshot queueWait;
+        public final LatencyHistogram.Snapshot outage;
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long timeouts;
+        public final long aborts;
+        public final long checksumFailures;
+        public final long coalesced;
+        public final long dropped;
+        public final long reconnects;
+        public final long replayed;
+        public final long heartbeats;
+        public final long deadLinks;
+        public final long cacheHits;
+        public final long cacheMerged;
+        public final float jitterUS;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final int inFlight;
+        public final long uptimeMS;
+
+        Snapshot(LinkMetrics m) {
+            latency = new LatencyHistogram.Snapshot[m.latency.length];
+            for (int i = 0; i < latency.length; ++i) {
+                latency[i] = m.latency[i].snapshot();
+            }
+            queueWait = m.queueWait.snapshot();
+            outage = m.outage.snapshot();
+            bytesIn = m.bytesIn;
+            bytesOut = m.bytesOut;
+            timeouts = m.timeouts;
+            aborts = m.aborts;
+            checksumFailures = m.checksumFailures;
+            coalesced = m.coalesced;
+            dropped = m.dropped;
+            reconnects = m.reconnects;
+            replayed = m.replayed;
+            heartbeats = m.heartbeats;
+            deadLinks = m.deadLinks;
+            cacheHits = m.cacheHits;
+            cacheMerged = m.cacheMerged;
+            jitterUS = m.jitter;
+            queueDepth = m.queueDepth;
+            maxQueueDepth = m.maxQueueDepth;
+            inFlight = m.inFlight;
+            uptimeMS = (System.nanoTime() - m.started) / 1000000L;
+        }
+
+        public LatencyHistogram.Snapshot latency(Command cmd) {
+            return latency[cmd.ordinal()];
+        }
+
+        // One line per Command with responses, followed by the counters. Latencies in ms.
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Command c : Command.values()) {
+                LatencyHistogram.Snapshot h = latency[c.ordinal()];
+                if (0 != h.count) {
+                    sb.append(String.format(Locale.US, "%-12s n=%d p50=%.1f p99=%.1f max=%.1f\n", c, h.count,
+                            h.percentile(0.5) / 1000.0, h.percentile(0.99) / 1000.0, h.max / 1000.0));
+                }
+            }
+            sb.append(String.format(Locale.US, "queue %d (max %d), in flight %d, coalesced %d, dropped %d\n", queueDepth, maxQueueDepth, inFlight, coalesced, dropped));
+            if (0 != queueWait.count) {
+                sb.append(String.format(Locale.US, "queued       p50=%.1f p99=%.1f max=%.1f\n",
+                        queueWait.percentile(0.5) / 1000.0, queueWait.percentile(0.99) / 1000.0, queueWait.max / 1000.0));
+            }
+            sb.append(String.format(Locale.US, "in %d B, out %d B in %d s\n", bytesIn, bytesOut, uptimeMS / 1000));
+            sb.append(String.format(Locale.US, "timeouts %d, aborts %d, crc errors %d", timeouts, aborts, checksumFailures));
+            if (0 != reconnects) {
+                sb.append(String.format(Locale.US, "\nreconnects %d, replayed %d, outage p50=%.0f max=%.0f", reconnects, replayed,
+                        outage.percentile(0.5) / 1000.0, outage.max / 1000.0));
+            }
+            if (0 != heartbeats || 0 != deadLinks) {
+                sb.append(String.format(Locale.US, "\nheartbeats %d, jitter %.1f, dead %d", heartbeats, jitterUS / 1000.0, deadLinks));
+            }
+            if (0 != cacheHits || 0 != cacheMerged) {
+                sb.append(String.format(Locale.US, "\ncache hits %d, merged %d", cacheHits, cacheMerged));
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -21,9 +21,9 @@ import android.widget.Toast;
  *
  * The implementation is meant as a starting point for a real app and does make some assumptions:
  *  - the app is for a specific robot and has a hardcoded MAC address to connect to
- *  - the robot (it's BT module) is expected to be up and running when the app is started
- *  - there is no recovery mechanism implemented in case the communication with the robot should
- *    get out of sync - a restart of the app is required.
+ *  - the robot (it's BT module) is expected to be bonded when the app is started. If it's out of
+ *    range, or the connection gets lost later on, Robot keeps trying to reconnect and the title
+ *    bar says so.
  *  - Most of this class, other than the MAC address \c handleMessage and the two UI sepcific button
  *    callbacks could be refactored, without modification, into a generic base class and re-used
  *    for multiple activities (or apps).
@@ -45,7 +45,7 @@ public class MainActivity
     private BroadcastReceiver bcReceiver;
 
     private Handler handler;
-    private Runnable periodic;
+    private Runnable showMetrics;
     private RetainedFragment fragment;
 
     // Helper function to setup the connection to the robot, starts bonding if necessary.
@@ -61,8 +61,24 @@ public class MainActivity
                 break;
             case BluetoothDevice.BOND_BONDED:
                 Log.d(LOGTAG, "Bonded, let's start");
-                fragment.robot = new Robot(fragment.btDevice, handler);
-                fragment.robot.getID();
+                // the robot runs on the fragment's protocol thread, only the decoded
+                // responses are posted to our handler
+                final RetainedFragment retained = fragment;
+                final BluetoothDevice device = fragment.btDevice;
+                final Handler results = handler;
+                fragment.protocol().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Robot robot = new Robot(new BluetoothTransport(device), results);
+                        // the RN-42 round trip is 30-60ms, no point in waiting 500ms for a lost response
+                        robot.setAdaptiveTimeouts(50, 500);
+                        // a dead link is noticed within 3-4s, a single late response doesn't
+                        // count as one
+                        robot.setKeepalive(1000, 3);
+                        retained.robot = robot;
+                    }
+                });
+                // the ID is requested once the connection is up, see MSG_CONNECTION
                 return true;
             case BluetoothDevice.BOND_BONDING:
                 Log.d(LOGTAG, "Bonding already in progress");
@@ -160,20 +176,18 @@ public class MainActivity
             fragment.robot.getID();
         }
 
-        // This runnable is optional and demonstrates a simple way of performing periodic tasks.
-        // Note that this approach is not very time accurate but it's good enough to send a PING
-        // to the robot and potentially update the UI.
-        periodic = new Runnable() {
+        // Show the link metrics while the activity is in the foreground (see onResume),
+        // once a second is plenty for a human to read.
+        showMetrics = new Runnable() {
             @Override
             public void run() {
-                handler.postDelayed(periodic, 10000);
-                Log.d(LOGTAG, "- tick -");
+                handler.postDelayed(showMetrics, 1000);
                 if (null != fragment.robot) {
-                    fragment.robot.ping();
+                    String metrics = fragment.robot.metrics().snapshot().toString();
+                    ((TextView)findViewById(R.id.metrics)).setText(metrics);
                 }
             }
         };
-        periodic.run();
     }
 
     // According to the documentation the BT discovery process is expensive enough that they
@@ -186,12 +200,19 @@ public class MainActivity
         }
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        showMetrics.run();
+    }
+
     // If the entire app is closed and not just sent to the background, or a different activity
     // is activated, then we should clear the persisted fragment. This releases all resources
     // associated with the fragment.
     @Override
     public void onPause() {
         super.onPause();
+        handler.removeCallbacks(showMetrics);
         if (isFinishing()) {
             getFragmentManager().beginTransaction().remove(fragment).commit();
         }
@@ -218,6 +239,16 @@ public class MainActivity
                 ((TextView)findViewById(R.id.getValue)).setText(v);
             } break;
 
+            case Robot.MSG_CONNECTION: {
+                RobotBase.Connection state = (RobotBase.Connection)msg.obj;
+                Log.d(LOGTAG, "MSG_CONNECTION: " + state);
+                if (RobotBase.Connection.CONNECTED == state && null != fragment.robot) {
+                    fragment.robot.getID();
+                } else {
+                    setTitle("Robot " + state.toString().toLowerCase());
+                }
+            } break;
+
         }
         return true;
     }
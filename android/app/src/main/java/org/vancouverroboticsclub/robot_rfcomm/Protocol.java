@@ -0,0 +1,261 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * Generated from protocol/commands.schema by CodecGenerator, don't edit.
+ *
+ * Command ids, tags, and a codec for each data structure exchanged with the robot.
+ * A decoder reads one field of a struct from the response of a CommandStream at the
+ * given offset, \c write appends the whole struct to the request.
+ */
+
+public final class Protocol {
+
+    public final static int CMD_PING         = 0x00; // respond by sending a 0x00 byte back
+    public final static int CMD_ID           = 0x01; // respond by sending app_id_t back
+    public final static int CMD_VALUE_GET    = 0x02; // respond by sending a float value back
+    public final static int CMD_UNSUBSCRIBE  = 0x03; // stop streaming, respond with a status byte
+    public final static int CMD_VALUE_SET    = 0x82; // set value, no response what so ever
+    public final static int CMD_SUBSCRIBE    = 0x83; // stream the value, respond with a status byte
+    public final static int CMD_ARRAY_GET    = 0x84; // respond with the sensor array, see array_header_t
+    public final static int CMD_ARRAY_SET    = 0x85; // set the sensor array, no response what so ever
+
+    public final static int TAG_RESPONSE     = 0xA5; // followed by the response to a command
+    public final static int TAG_VALUE        = 0xA6; // followed by the value (float)
+    public final static int TAG_REJECTED     = 0xA7; // instead of the response to a framed command too long to take, no data
+
+    public final static int ARRAY_CHANNELS   = 16; // channels of the sensor array, int16 each
+    public final static int ARRAY_RAW        = 0; // each channel as int16
+    public final static int ARRAY_VARINT     = 1; // each channel as zigzag varint
+    public final static int ARRAY_DELTA      = 2; // each channel's change since the base snapshot as zigzag varint
+    public final static int TX_BUFFER_SIZE   = 256; // bytes of responses the robot can queue, a power of 2
+
+    // app_id_t, CMD_ID response
+    public final static class AppId {
+        public final static int SIZE = 30;
+        public final static int NAME = 0;
+        public final static int DATE = 9;
+        public final static int TIME = 21;
+
+        public static String name(CommandStream s) {
+            return name(s, 0);
+        }
+        public static String name(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return getString(b, o + NAME, 9);
+        }
+
+        public static String date(CommandStream s) {
+            return date(s, 0);
+        }
+        public static String date(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return getString(b, o + DATE, 12);
+        }
+
+        public static String time(CommandStream s) {
+            return time(s, 0);
+        }
+        public static String time(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return getString(b, o + TIME, 9);
+        }
+
+        public static boolean write(CommandStream s, String name, String date, String time) {
+            int o = s.claim(SIZE);
+            if (o < 0) {
+                return false;
+            }
+            byte[] b = s.requestBuffer();
+            putString(b, o + NAME, 9, name);
+            putString(b, o + DATE, 12, date);
+            putString(b, o + TIME, 9, time);
+            s.addToChecksum(o, SIZE);
+            return true;
+        }
+    }
+
+    // value_t, CMD_VALUE_SET payload
+    public final static class Value {
+        public final static int SIZE = 8;
+        public final static int V = 0;
+        public final static int I = 4;
+
+        public static float v(CommandStream s) {
+            return v(s, 0);
+        }
+        public static float v(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return Float.intBitsToFloat(getInt(b, o + V));
+        }
+
+        public static int i(CommandStream s) {
+            return i(s, 0);
+        }
+        public static int i(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return getInt(b, o + I);
+        }
+
+        public static boolean write(CommandStream s, float v, int i) {
+            int o = s.claim(SIZE);
+            if (o < 0) {
+                return false;
+            }
+            byte[] b = s.requestBuffer();
+            putInt(b, o + V, Float.floatToIntBits(v));
+            putInt(b, o + I, i);
+            s.addToChecksum(o, SIZE);
+            return true;
+        }
+    }
+
+    // subscribe_t, CMD_SUBSCRIBE payload
+    public final static class Subscribe {
+        public final static int SIZE = 2;
+        public final static int PERIOD = 0; // ms between TAG_VALUE frames, 0 is invalid
+
+        public static int period(CommandStream s) {
+            return period(s, 0);
+        }
+        public static int period(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return getShort(b, o + PERIOD);
+        }
+
+        public static boolean write(CommandStream s, int period) {
+            int o = s.claim(SIZE);
+            if (o < 0) {
+                return false;
+            }
+            byte[] b = s.requestBuffer();
+            putShort(b, o + PERIOD, period);
+            s.addToChecksum(o, SIZE);
+            return true;
+        }
+    }
+
+    // array_get_t, CMD_ARRAY_GET payload
+    public final static class ArrayGet {
+        public final static int SIZE = 2;
+        public final static int ENCODING = 0; // ARRAY_RAW, ARRAY_VARINT or ARRAY_DELTA
+        public final static int BASE = 1; // the snapshot the app has, 0 for none
+
+        public static int encoding(CommandStream s) {
+            return encoding(s, 0);
+        }
+        public static int encoding(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return b[o + ENCODING] & 0xFF;
+        }
+
+        public static int base(CommandStream s) {
+            return base(s, 0);
+        }
+        public static int base(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return b[o + BASE] & 0xFF;
+        }
+
+        public static boolean write(CommandStream s, int encoding, int base) {
+            int o = s.claim(SIZE);
+            if (o < 0) {
+                return false;
+            }
+            byte[] b = s.requestBuffer();
+            b[o + ENCODING] = (byte)encoding;
+            b[o + BASE] = (byte)base;
+            s.addToChecksum(o, SIZE);
+            return true;
+        }
+    }
+
+    // array_header_t, CMD_ARRAY_GET response and CMD_ARRAY_SET payload, followed by the channels
+    public final static class ArrayHeader {
+        public final static int SIZE = 4;
+        public final static int ENCODING = 0; // ARRAY_RAW, ARRAY_VARINT or ARRAY_DELTA
+        public final static int SNAPSHOT = 1; // number of this snapshot, 1..255, 0 in CMD_ARRAY_SET
+        public final static int BASE = 2; // snapshot the delta is against, 0 unless ARRAY_DELTA
+        public final static int COUNT = 3; // number of channels, at most ARRAY_CHANNELS
+
+        public static int encoding(CommandStream s) {
+            return encoding(s, 0);
+        }
+        public static int encoding(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return b[o + ENCODING] & 0xFF;
+        }
+
+        public static int snapshot(CommandStream s) {
+            return snapshot(s, 0);
+        }
+        public static int snapshot(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return b[o + SNAPSHOT] & 0xFF;
+        }
+
+        public static int base(CommandStream s) {
+            return base(s, 0);
+        }
+        public static int base(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return b[o + BASE] & 0xFF;
+        }
+
+        public static int count(CommandStream s) {
+            return count(s, 0);
+        }
+        public static int count(CommandStream s, int o) {
+            byte[] b = s.responseBuffer();
+            return b[o + COUNT] & 0xFF;
+        }
+
+        public static boolean write(CommandStream s, int encoding, int snapshot, int base, int count) {
+            int o = s.claim(SIZE);
+            if (o < 0) {
+                return false;
+            }
+            byte[] b = s.requestBuffer();
+            b[o + ENCODING] = (byte)encoding;
+            b[o + SNAPSHOT] = (byte)snapshot;
+            b[o + BASE] = (byte)base;
+            b[o + COUNT] = (byte)count;
+            s.addToChecksum(o, SIZE);
+            return true;
+        }
+    }
+
+    private Protocol() {
+    }
+
+    static int getShort(byte[] b, int o) {
+        return (b[o] & 0xFF) | (b[o + 1] & 0xFF) << 8;
+    }
+    static int getInt(byte[] b, int o) {
+        return (b[o] & 0xFF) | (b[o + 1] & 0xFF) << 8 | (b[o + 2] & 0xFF) << 16 | (b[o + 3] & 0xFF) << 24;
+    }
+    // up to the terminating 0, or size bytes
+    static String getString(byte[] b, int o, int size) {
+        int length = 0;
+        while (length < size && 0 != b[o + length]) {
+            ++length;
+        }
+        return new String(b, o, length);
+    }
+    static void putShort(byte[] b, int o, int v) {
+        b[o] = (byte)v;
+        b[o + 1] = (byte)(v >> 8);
+    }
+    static void putInt(byte[] b, int o, int v) {
+        b[o] = (byte)v;
+        b[o + 1] = (byte)(v >> 8);
+        b[o + 2] = (byte)(v >> 16);
+        b[o + 3] = (byte)(v >> 24);
+    }
+    // truncated to size - 1 chars, the rest is filled with 0
+    static void putString(byte[] b, int o, int size, String v) {
+        int length = null == v ? 0 : Math.min(v.length(), size - 1);
+        for (int i = 0; i < size; ++i) {
+            b[o + i] = i < length ? (byte)v.charAt(i) : 0;
+        }
+    }
+}
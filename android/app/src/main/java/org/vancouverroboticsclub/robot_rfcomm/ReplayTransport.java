@@ -0,0 +1,458 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Transport playing back a TraceCapture, to reproduce a recorded session without the
+ * robot - or to measure the decoding of real traffic.
+ *
+ * The received chunks are handed out exactly as they were captured, one chunk per
+ * read, so RobotBase gets the very same fragments. A chunk is only handed out once the
+ * app has written everything that was written before it in the capture, a response
+ * never overtakes its request. Beyond that the chunks are played back either
+ *    realtime ... keeping the time between each chunk and the record before it
+ *    fast     ... as fast as the app takes them
+ *
+ * The app has to send the same requests in the same order, with a window at least as
+ * big as during the capture (see RobotBase.setWindow) - otherwise it waits for a
+ * response the replay holds back until another request is written. \c play sends the
+ * requests rebuilt from the capture, so a session can be replayed without knowing what
+ * the app did, paced like they were captured if need be: whether a command whose
+ * response got lost is aborted by a later response or times out depends on when the
+ * later requests are sent. The rebuilt ARRAY_GETs all decode into the same SensorArray.
+ * Whatever the app writes is compared with the capture, \c divergence is the offset of
+ * the first byte which doesn't match.
+ *
+ * A record cut off at the end of the file, e.g. by a crash while capturing, is ignored.
+ * Once all chunks have been played back the link stays quiet until it's closed. Each
+ * connect starts over at the beginning of the capture.
+ */
+
+public class ReplayTransport implements Transport {
+
+    private final boolean realtime;
+    private final byte[] data;
+    // the received chunks: offset into data, length, capture time, the number of
+    // sent records before it and the capture time of the record before it
+    private final int[] chunkOffset;
+    private final int[] chunkLength;
+    private final long[] chunkTime;
+    private final int[] chunkGate;
+    private final long[] chunkPrevious;
+    private final int chunks;
+    // everything sent, end of each sent record in it, and its capture time
+    private final byte[] expected;
+    private final int[] sentEnd;
+    private final long[] sentTime;
+    private final int sentCount;
+    private final long receivedBytes;
+
+    // replay state, guarded by this
+    private boolean closed = true;
+    private long connectedAt;
+    private int next;
+    private int partial;
+    private long deliveredAt;
+    private int written;
+    // sent records written completely, and when the app did so
+    private int sentDone;
+    private final long[] sentAt;
+    private long divergence;
+
+    public ReplayTransport(File capture, boolean realtime) throws IOException {
+        this(read(capture), realtime);
+    }
+
+    // A capture already in memory, e.g. from \c read.
+    public ReplayTransport(byte[] capture, boolean realtime) throws IOException {
+        this.realtime = realtime;
+        data = capture;
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < TraceCapture.HEADER_SIZE || TraceCapture.MAGIC != buffer.getInt() || TraceCapture.VERSION != buffer.getInt()) {
+            throw new IOException("Not a capture");
+        }
+        buffer.position(TraceCapture.HEADER_SIZE);
+
+        int received = 0;
+        int sent = 0;
+        int sentBytes = 0;
+        int position = TraceCapture.HEADER_SIZE;
+        while (position + TraceCapture.RECORD_HEADER_SIZE <= data.length) {
+            int type = data[position] & 0xFF;
+            int length = buffer.getShort(position + 1) & 0xFFFF;
+            if (position + TraceCapture.RECORD_HEADER_SIZE + length > data.length) {
+                // cut off, e.g. the app died while capturing
+                break;
+            }
+            if (TraceCapture.RECEIVED == type) {
+                ++received;
+            } else if (TraceCapture.SENT == type) {
+                ++sent;
+                sentBytes += length;
+            } else {
+                break;
+            }
+            position += TraceCapture.RECORD_HEADER_SIZE + length;
+        }
+
+        chunkOffset = new int[received];
+        chunkLength = new int[received];
+        chunkTime = new long[received];
+        chunkGate = new int[received];
+        chunkPrevious = new long[received];
+        expected = new byte[sentBytes];
+        sentEnd = new int[sent];
+        sentTime = new long[sent];
+        sentAt = new long[sent];
+        long total = 0;
+        int c = 0;
+        int s = 0;
+        long previous = -1;
+        position = TraceCapture.HEADER_SIZE;
+        while (c + s < received + sent) {
+            int type = data[position] & 0xFF;
+            int length = buffer.getShort(position + 1) & 0xFFFF;
+            long time = buffer.getLong(position + 3);
+            int offset = position + TraceCapture.RECORD_HEADER_SIZE;
+            if (TraceCapture.RECEIVED == type) {
+                chunkOffset[c] = offset;
+                chunkLength[c] = length;
+                chunkTime[c] = time;
+                chunkGate[c] = s;
+                chunkPrevious[c] = previous;
+                total += length;
+                ++c;
+            } else {
+                int end = 0 == s ? 0 : sentEnd[s - 1];
+                System.arraycopy(data, offset, expected, end, length);
+                sentEnd[s] = end + length;
+                sentTime[s] = time;
+                ++s;
+            }
+            previous = time;
+            position = offset + length;
+        }
+        chunks = received;
+        sentCount = sent;
+        receivedBytes = total;
+    }
+
+    // The content of a capture file.
+    public static byte[] read(File capture) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(capture, "r");
+        try {
+            byte[] data = new byte[(int)file.length()];
+            file.readFully(data);
+            return data;
+        } finally {
+            file.close();
+        }
+    }
+
+    // Number of chunks received during the capture, and how many of them have been
+    // played back since the last connect.
+    public int chunks() {
+        return chunks;
+    }
+    public synchronized int replayed() {
+        return next;
+    }
+    // Number of bytes received during the capture.
+    public long receivedBytes() {
+        return receivedBytes;
+    }
+
+    // Offset of the first byte written which doesn't match the capture, -1 if all did.
+    public synchronized long divergence() {
+        return divergence;
+    }
+
+    // Wait until all chunks have been played back, returns false on timeout.
+    public synchronized boolean awaitDone(long timeoutMS) throws InterruptedException {
+        long end = System.nanoTime() + timeoutMS * 1000000L;
+        while (next < chunks) {
+            long left = end - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left / 1000000L, (int)(left % 1000000L));
+        }
+        return true;
+    }
+
+    // Whether the requests were sent in frames (see RobotBase.setFraming).
+    public boolean isFramed() {
+        return 0 < expected.length && 0 < frameSize(0);
+    }
+
+    // The requests sent during the capture, in the order they were sent. Bytes which
+    // aren't part of a valid request are skipped.
+    public List<CommandStream> requests() {
+        return parse(null);
+    }
+
+    // Send the captured requests to the robot one at a time, each once the previous one
+    // has been written, so they go out in the captured order whatever the robot's
+    // scheduling and without being coalesced. If paced, a request which was captured in a
+    // record of its own is sent no sooner after the previous record was written than it
+    // was captured after it, otherwise right away. Returns false if a request wasn't
+    // written within timeoutMS. Blocks, so it must not be called on the robot's thread.
+    public boolean play(RobotBase robot, CommandStream.Callback done, boolean paced, long timeoutMS) throws InterruptedException {
+        List<Integer> ends = new ArrayList<>();
+        List<CommandStream> requests = parse(ends);
+        if (isFramed()) {
+            robot.setSequence(expected[2]);
+        }
+        int record = 0;
+        for (int i = 0; i < requests.size(); ++i) {
+            // the record the request starts in
+            int start = 0 == i ? 0 : ends.get(i - 1);
+            int previous = record;
+            while (record < sentCount - 1 && sentEnd[record] <= start) {
+                ++record;
+            }
+            if (paced && record != previous && !awaitDue(record)) {
+                return false;
+            }
+            CommandStream cmd = requests.get(i);
+            cmd.setCallback(done);
+            robot.sendCommand(cmd);
+            if (!awaitWritten(ends.get(i), timeoutMS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Wait until the sent record is due after the one before it, which has been written.
+    // Returns false once the replay is closed.
+    private synchronized boolean awaitDue(int record) throws InterruptedException {
+        long due = sentAt[record - 1] + (sentTime[record] - sentTime[record - 1]);
+        while (!closed) {
+            long left = due - System.nanoTime();
+            if (left <= 0) {
+                return true;
+            }
+            wait(left / 1000000L, (int)(left % 1000000L));
+        }
+        return false;
+    }
+
+    private synchronized boolean awaitWritten(int bytes, long timeoutMS) throws InterruptedException {
+        long end = System.nanoTime() + timeoutMS * 1000000L;
+        while (written < bytes) {
+            long left = end - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left / 1000000L, (int)(left % 1000000L));
+        }
+        return true;
+    }
+
+    // The requests in the sent bytes, and where each of them ends if ends isn't null.
+    private List<CommandStream> parse(List<Integer> ends) {
+        List<CommandStream> requests = new ArrayList<>();
+        SensorArray array = new SensorArray();
+        boolean framed = isFramed();
+        int position = 0;
+        while (position < expected.length) {
+            int size = framed ? frameSize(position) : -1;
+            int payload = framed ? position + FrameCodec.HEADER_SIZE : position;
+            Command cmd = 0 < size || !framed ? command(expected[payload] & 0xFF) : null;
+            int length = framed ? size - FrameCodec.OVERHEAD : null == cmd ? -1 : 1 + payloadSize(cmd, payload + 1);
+            if (null == cmd || payload + length > expected.length) {
+                ++position;
+                continue;
+            }
+            CommandStream cs = new CommandStream(cmd);
+            if (Command.ARRAY_GET == cmd) {
+                cs.target = array;
+            }
+            cs.write(Arrays.copyOfRange(expected, payload + 1, payload + length), false);
+            requests.add(cs);
+            position += framed ? size : length;
+            if (null != ends) {
+                ends.add(position);
+            }
+        }
+        return requests;
+    }
+
+    // Size of the valid frame at the given offset of the sent bytes, -1 if there is none.
+    private int frameSize(int offset) {
+        if (offset + FrameCodec.OVERHEAD > expected.length || FrameCodec.SYNC != (expected[offset] & 0xFF)) {
+            return -1;
+        }
+        int length = expected[offset + 1] & 0xFF;
+        int end = offset + FrameCodec.HEADER_SIZE + length;
+        if (0 == length || FrameCodec.MAX_PAYLOAD < length || end + FrameCodec.CRC_SIZE > expected.length) {
+            return -1;
+        }
+        int crc = (expected[end] & 0xFF) << 8 | (expected[end + 1] & 0xFF);
+        return crc == FrameCodec.crc16(0xFFFF, expected, offset + 1, length + 2) ? length + FrameCodec.OVERHEAD : -1;
+    }
+
+    private static Command command(int nr) {
+        for (Command c : Command.values()) {
+            if (nr == c.nr && !c.pushed) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    // Bytes following the command id in an unframed request starting at offset, see Robot.
+    private int payloadSize(Command cmd, int offset) {
+        switch (cmd) {
+            case VALUE_SET: return Protocol.Value.SIZE + 2;
+            case SUBSCRIBE: return Protocol.Subscribe.SIZE + 2;
+            case ARRAY_GET: return Protocol.ArrayGet.SIZE + 2;
+            case ARRAY_SET: return offset < expected.length ? 1 + (expected[offset] & 0xFF) + 2 : expected.length;
+            default:        return 0;
+        }
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        closed = false;
+        connectedAt = System.nanoTime();
+        next = 0;
+        partial = 0;
+        written = 0;
+        sentDone = 0;
+        divergence = -1;
+        notifyAll();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return output;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        notifyAll();
+    }
+
+    // Time (System.nanoTime) the next chunk is due, Long.MAX_VALUE while the app still
+    // has to write the requests in front of it.
+    private long due() {
+        int gate = chunkGate[next];
+        if (gate > sentDone) {
+            return Long.MAX_VALUE;
+        }
+        if (!realtime) {
+            return 0;
+        }
+        // the chunk follows whichever came last, the previous chunk or the last request
+        long previous = chunkPrevious[next];
+        if (0 < next && chunkTime[next - 1] == previous) {
+            return deliveredAt + (chunkTime[next] - previous);
+        }
+        if (0 < gate && sentTime[gate - 1] == previous) {
+            return sentAt[gate - 1] + (chunkTime[next] - previous);
+        }
+        return connectedAt;
+    }
+
+    private final InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return -1 == read(b, 0, 1) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (ReplayTransport.this) {
+                while (true) {
+                    if (closed) {
+                        return -1;
+                    }
+                    long due = next < chunks ? due() : Long.MAX_VALUE;
+                    long wait = due - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        if (Long.MAX_VALUE == due) {
+                            ReplayTransport.this.wait();
+                        } else {
+                            ReplayTransport.this.wait(wait / 1000000L, (int)(wait % 1000000L));
+                        }
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted", e);
+                    }
+                }
+                int count = Math.min(len, chunkLength[next] - partial);
+                System.arraycopy(data, chunkOffset[next] + partial, b, off, count);
+                partial += count;
+                if (partial == chunkLength[next]) {
+                    partial = 0;
+                    ++next;
+                    deliveredAt = System.nanoTime();
+                    ReplayTransport.this.notifyAll();
+                }
+                return count;
+            }
+        }
+
+        // What the next read returns without blocking, fails once the replay is closed
+        // (see ConnectionPool).
+        @Override
+        public int available() throws IOException {
+            synchronized (ReplayTransport.this) {
+                if (closed) {
+                    throw new IOException("Replay closed");
+                }
+                if (next == chunks || due() > System.nanoTime()) {
+                    return 0;
+                }
+                return chunkLength[next] - partial;
+            }
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (ReplayTransport.this) {
+                if (closed) {
+                    throw new IOException("Replay closed");
+                }
+                for (int i = 0; i < len && divergence < 0; ++i) {
+                    if (written + i >= expected.length || expected[written + i] != b[off + i]) {
+                        divergence = written + i;
+                    }
+                }
+                written += len;
+                long now = System.nanoTime();
+                while (sentDone < sentCount && sentEnd[sentDone] <= written) {
+                    sentAt[sentDone++] = now;
+                }
+                ReplayTransport.this.notifyAll();
+            }
+        }
+    };
+}
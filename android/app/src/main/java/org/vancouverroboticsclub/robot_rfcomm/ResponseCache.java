@@ -0,0 +1,141 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-through cache of the robot's responses, see RobotBase.setCacheMaxAge.
+ *
+ * Responses are kept per Command and request (the bytes following the command id, not
+ * counting the checksum), for at most the max age of the command. A request which
+ * finds a response younger than that is answered from the cache. One which finds the
+ * same request already on its way is merged onto it and answered with its response, so
+ * any number of callers asking at once cost a single round trip.
+ *
+ * Commands which change the robot's state drop the cached responses they affect (see
+ * \c invalidates) as soon as they're queued. A request which was already on its way
+ * still answers the callers merged onto it, but its response isn't cached and new
+ * callers start over.
+ *
+ * Only commands whose response doesn't depend on anything but the request should be
+ * cached, e.g. not ARRAY_GET, which is decoded against the previous snapshot.
+ *
+ * Only used by the thread RobotBase runs on.
+ */
+
+class ResponseCache {
+
+    static class Entry {
+        final Command command;
+        final byte[] request;
+        // the cached response, its time (ns) and whether it's valid
+        byte[] response;
+        long at;
+        boolean valid;
+        // the request on its way, null if there is none
+        CommandStream leader;
+
+        Entry(CommandStream cmd) {
+            command = cmd.command();
+            request = new byte[cmd.payloadLength() - 1];
+            System.arraycopy(cmd.requestBuffer(), 1, request, 0, request.length);
+        }
+
+        boolean matches(CommandStream cmd) {
+            if (command != cmd.command() || request.length != cmd.payloadLength() - 1) {
+                return false;
+            }
+            byte[] b = cmd.requestBuffer();
+            for (int i = 0; i < request.length; ++i) {
+                if (request[i] != b[1 + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // ns, 0 if the command isn't cached
+    private final long[] maxAge = new long[Command.values().length];
+    // bit mask of the cached commands affected by each command
+    private final int[] invalidates = new int[Command.values().length];
+    private final List<Entry> entries = new ArrayList<>();
+
+    void setMaxAge(Command cmd, int maxAgeMS) {
+        maxAge[cmd.ordinal()] = maxAgeMS * 1000000L;
+        if (0 == maxAgeMS) {
+            for (int i = entries.size() - 1; i >= 0; --i) {
+                if (cmd == entries.get(i).command && null == entries.get(i).leader) {
+                    entries.remove(i);
+                }
+            }
+        }
+    }
+
+    boolean isCached(Command cmd) {
+        return 0 != maxAge[cmd.ordinal()];
+    }
+
+    // Sending cmd drops the cached responses of the other command.
+    void invalidates(Command cmd, Command cached) {
+        invalidates[cmd.ordinal()] |= 1 << cached.ordinal();
+    }
+
+    // Drop the cached responses affected by the given command, and detach the requests
+    // on their way.
+    void invalidate(Command cmd) {
+        int mask = invalidates[cmd.ordinal()];
+        if (0 == mask) {
+            return;
+        }
+        for (Entry e : entries) {
+            if (0 != (mask & 1 << e.command.ordinal())) {
+                e.valid = false;
+                e.leader = null;
+            }
+        }
+    }
+
+    // The entry for the given request, a new one if there is none yet.
+    Entry entry(CommandStream cmd) {
+        for (Entry e : entries) {
+            if (e.matches(cmd)) {
+                return e;
+            }
+        }
+        Entry e = new Entry(cmd);
+        entries.add(e);
+        return e;
+    }
+
+    // The entry the given request is on its way for, null if there is none.
+    Entry leading(CommandStream cmd) {
+        for (Entry e : entries) {
+            if (cmd == e.leader) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    boolean isFresh(Entry e, long now) {
+        return e.valid && now - e.at <= maxAge[e.command.ordinal()];
+    }
+
+    // Keep a copy of the response received at the given time (ns).
+    void store(Entry e, byte[] response, long now) {
+        if (null == e.response || e.response.length != response.length) {
+            e.response = new byte[response.length];
+        }
+        System.arraycopy(response, 0, e.response, 0, response.length);
+        e.at = now;
+        e.valid = true;
+    }
+
+    // Forget everything, e.g. after the link was lost and the robot might have been reset.
+    void clear() {
+        for (Entry e : entries) {
+            e.valid = false;
+        }
+    }
+}
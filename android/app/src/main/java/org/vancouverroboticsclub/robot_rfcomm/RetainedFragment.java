@@ -3,24 +3,55 @@ package org.vancouverroboticsclub.robot_rfcomm;
 import android.app.Fragment;
 import android.bluetooth.BluetoothDevice;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 
 /**
  * Persistent state across (activity) restarts.
  *
  * Device discovery and establishing a BT connection are expensive operations
  * so it makes sense to retain them over activity restarts.
+ *
+ * The robot runs on a HandlerThread of its own which lives as long as the fragment,
+ * so the protocol doesn't compete with rendering the UI.
  */
 
 
 public class RetainedFragment extends Fragment {
     public BluetoothDevice btDevice;
-    public Robot robot;
+    // created on the protocol thread, used on the UI thread
+    public volatile Robot robot;
+    private HandlerThread protocolThread;
+    private Handler protocol;
 
     @Override
     public void onCreate(Bundle bundle) {
         super.onCreate(bundle);
         setRetainInstance(true);
     }
+
+    // Handler of the thread the robot runs on, the robot has to be created there.
+    public Handler protocol() {
+        if (null == protocol) {
+            protocolThread = new HandlerThread("Robot", Process.THREAD_PRIORITY_FOREGROUND);
+            protocolThread.start();
+            protocol = new Handler(protocolThread.getLooper());
+        }
+        return protocol;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (null != robot) {
+            robot.disconnect();
+            robot = null;
+        }
+        if (null != protocolThread) {
+            protocolThread.quitSafely();
+        }
+    }
 }
 
 
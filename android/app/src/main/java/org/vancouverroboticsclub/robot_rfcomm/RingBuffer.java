@@ -0,0 +1,148 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed size byte buffer shared between the thread reading from the socket and
+ * the thread assembling the responses.
+ *
+ * The reading thread (producer) reads directly from the stream into the free space
+ * of the buffer, the other thread (consumer) takes complete responses out once
+ * enough bytes have arrived. There must only be one producer and one consumer, in
+ * which case no locking is required. The only exception is a full buffer, the
+ * producer then parks until the consumer frees up some space (as in WriteQueue, which
+ * doesn't pin a virtual thread to its carrier like a monitor would).
+ *
+ * The consumer only sees the bytes it has accepted, in the chunks the producer
+ * announced them (e.g. with MSG_READ, see ConnectionThread). However far ahead the
+ * producer is, the consumer handles exactly the chunks that were read, one at a time.
+ *
+ * Nothing is allocated once the buffer is constructed, the only copy being made is
+ * when the consumer takes bytes out of the buffer. The number of bytes copied is
+ * tracked in order to verify that the receive path doesn't copy more than necessary.
+ */
+
+public class RingBuffer {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    // both positions only ever increase, the index into the buffer is position & mask
+    private volatile long head;   // written by producer
+    private volatile long tail;   // written by consumer
+    // the producer while it waits for the consumer to free up space
+    private volatile Thread waiting;
+    // consumer only: end of the bytes handed to the consumer by accept
+    private long accepted;
+    private volatile long copied;
+
+    // The capacity is rounded up to the next power of 2.
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // Number of bytes available to the consumer.
+    public int available() {
+        return (int)(accepted - tail);
+    }
+
+    // Consumer: the next count bytes read by the producer become available.
+    public void accept(int count) {
+        accepted += count;
+    }
+
+    // Producer: true if there is no room for another byte.
+    public boolean isFull() {
+        return head - tail == buffer.length;
+    }
+
+    // Producer: room for this many more bytes.
+    public int free() {
+        return buffer.length - (int)(head - tail);
+    }
+
+    // Total number of bytes the consumer copied out of the buffer.
+    public long copied() {
+        return copied;
+    }
+
+    // Producer: read whatever the stream provides, but no more than fits into the
+    // contiguous free space. Blocks while the buffer is full.
+    // Returns the number of bytes read or -1 at the end of the stream.
+    public int fill(InputStream is) throws IOException {
+        int free = buffer.length - (int)(head - tail);
+        if (0 == free) {
+            while (isFull()) {
+                waiting = Thread.currentThread();
+                if (isFull()) {
+                    LockSupport.park(this);
+                }
+                waiting = null;
+                if (Thread.interrupted()) {
+                    throw new IOException("interrupted");
+                }
+            }
+            free = buffer.length - (int)(head - tail);
+        }
+        int offset = (int)(head & mask);
+        int count = is.read(buffer, offset, Math.min(free, buffer.length - offset));
+        if (count > 0) {
+            head += count;
+        }
+        return count;
+    }
+
+    // Producer: copy the remaining bytes of src, as many as there is room for, e.g. from
+    // a direct buffer read from a channel (see SelectorThread). Doesn't block.
+    // Returns the number of bytes copied.
+    public int put(ByteBuffer src) {
+        int count = Math.min(src.remaining(), free());
+        int offset = (int)(head & mask);
+        int first = Math.min(count, buffer.length - offset);
+        src.get(buffer, offset, first);
+        src.get(buffer, 0, count - first);
+        head += count;
+        return count;
+    }
+
+    // Consumer: return the byte at the given offset without consuming it.
+    public int get(int offset) {
+        return buffer[(int)((tail + offset) & mask)];
+    }
+
+    // Consumer: copy length bytes into dst and remove them from the buffer.
+    public int read(byte[] dst, int offset, int length) {
+        length = Math.min(length, available());
+        int start = (int)(tail & mask);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(buffer, start, dst, offset, first);
+        System.arraycopy(buffer, 0, dst, offset + first, length - first);
+        copied += length;
+        consumed(length);
+        return length;
+    }
+
+    // Consumer: remove length bytes from the buffer without copying them.
+    public int skip(int length) {
+        length = Math.min(length, available());
+        consumed(length);
+        return length;
+    }
+
+    private void consumed(int length) {
+        tail += length;
+        Thread producer = waiting;
+        if (null != producer) {
+            LockSupport.unpark(producer);
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package org.vancouverroboticsclub.robot_rfcomm;
 
-import android.bluetooth.BluetoothDevice;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Implementation of a simple protocol with a robot.
  *
@@ -18,27 +18,88 @@ import android.util.Log;
  * There is a slight wrinkle in the robot's implementation, each time it receives a PING
  * command it increments the float value by a tiny bit. This can be used to verify that
  * the float value is correctly interpreted on both ends of the rfcomm socket.
+ *
+ * Instead of polling the value with \c getValue the robot can also be asked to send it
+ * periodically with \c subscribe. Each value received is forwarded as MSG_VALUE, exactly
+ * like the response to \c getValue.
+ *
+ * \c getValue and \c setValue optionally take a CommandStream.Callback, which tells
+ * the caller when the command is done - or that it was dropped because the queue was
+ * full, which is the cue to slow down.
+ *
+ * The robot's sensor array is read with \c getArray in one round trip, decoded into a
+ * SensorArray which is forwarded as MSG_ARRAY. By default only the change of each
+ * channel since the array's last snapshot is sent (see SensorArray). \c setArray sets
+ * the channels.
+ *
+ * Each request also has an asynchronous version returning a CommandFuture, which
+ * completes with the decoded response of that very request (or fails with a
+ * CommandException) instead of sending a message to the handler. The caller decides
+ * which thread the result is handled on, see CommandFuture.addListener. These can be
+ * called from any thread.
+ *
+ * \c getValue can be answered from a cache, see RobotBase.setCacheMaxAge: e.g.
+ *      robot.setCacheMaxAge(Command.VALUE_GET, 100);
+ * answers any request within 100ms of the last response without asking the robot, and
+ * requests made while one is on its way get its response. As PING changes the value,
+ * both PING and VALUE_SET make the cached value stale.
+ * ARRAY_GET can't be cached, its response depends on the SensorArray's snapshot.
+ *
+ * Changes of the connection's state are forwarded as MSG_CONNECTION, e.g. to tell the
+ * user the robot is out of range while RobotBase tries to reconnect.
+ *
+ * The handler doesn't have to live on the thread the Robot runs on: a Robot created on
+ * a HandlerThread of its own does all the protocol work there and only posts the
+ * messages above to the UI's handler, which can be replaced with \c setHandler from
+ * any thread.
  */
 
 public class Robot extends RobotBase {
 
-    private Handler handler;
+    // set from the UI thread, e.g. after the activity was recreated
+    private volatile Handler handler;
 
     // These are the messages this class sends to the assigned \c Handler.
     // Note that these IDs are app internal and have no relationship to IDs used by the
     // communication protocol over the actual BT connection.
     public final static int MSG_ID    = 0x00;
     public final static int MSG_VALUE = 0x01;
+    public final static int MSG_CONNECTION = 0x02;  // obj is RobotBase.Connection
+    public final static int MSG_ARRAY = 0x03;       // obj is the SensorArray
 
-    Robot(BluetoothDevice dev, Handler hndlr) {
-        super(dev);
+    Robot(Transport transport, Handler hndlr) {
+        this(transport, hndlr, (Link.Pool)null);
+    }
+
+    Robot(Transport transport, Handler hndlr, Link.Pool pool) {
+        super(transport, pool);
+        handler = hndlr;
+        init();
+    }
+
+    Robot(Transport transport, Handler hndlr, ThreadFactory threads) {
+        super(transport, threads);
         handler = hndlr;
+        init();
+    }
+
+    private void init() {
+        invalidatesCache(Command.VALUE_SET, Command.VALUE_GET);
+        invalidatesCache(Command.PING, Command.VALUE_GET);
     }
 
     public void setHandler(Handler hndlr) {
         handler = hndlr;
     }
 
+    @Override
+    public void setCacheMaxAge(Command cmd, int maxAgeMS) {
+        if (Command.ARRAY_GET == cmd) {
+            throw new IllegalArgumentException("ARRAY_GET depends on the sensor array's snapshot, it can't be cached");
+        }
+        super.setCacheMaxAge(cmd, maxAgeMS);
+    }
+
     // object for \c MSG_ID
     public class Id {
         public final String name;
@@ -67,23 +128,113 @@ public class Robot extends RobotBase {
         sendCommand(Command.ID);
     }
     public void getValue() {
-        sendCommand(Command.VALUE_GET);
+        getValue(null);
+    }
+    public void getValue(CommandStream.Callback done) {
+        CommandStream cmd = obtain(Command.VALUE_GET);
+        cmd.setCallback(done);
+        sendCommand(cmd);
+    }
+    public void subscribe(int periodMS) {
+        CommandStream cmd = obtain(Command.SUBSCRIBE);
+        Protocol.Subscribe.write(cmd, periodMS);
+        cmd.writeChecksum();
+        sendCommand(cmd);
+    }
+    public void unsubscribe() {
+        sendCommand(Command.UNSUBSCRIBE);
     }
     public void setValue(float value, int pingIncrement) {
-        CommandStream cmd = new CommandStream(Command.VALUE_SET);
-        cmd.writeFloat(value);
-        cmd.writeInt(pingIncrement);
+        setValue(value, pingIncrement, null);
+    }
+    public void setValue(float value, int pingIncrement, CommandStream.Callback done) {
+        CommandStream cmd = valueSet(value, pingIncrement);
+        cmd.setCallback(done);
+        sendCommand(cmd);
+    }
+
+    public void getArray(SensorArray array) {
+        getArray(array, null);
+    }
+    public void getArray(SensorArray array, CommandStream.Callback done) {
+        CommandStream cmd = arrayGet(array);
+        cmd.setCallback(done);
+        sendCommand(cmd);
+    }
+    // The first count values are set, they have to be int16.
+    public void setArray(int[] values, int count) {
+        setArray(values, count, null);
+    }
+    public void setArray(int[] values, int count, CommandStream.Callback done) {
+        CommandStream cmd = arraySet(values, count);
+        cmd.setCallback(done);
+        sendCommand(cmd);
+    }
+
+    // Asynchronous versions of the requests above.
+    public CommandFuture<Void> pingAsync() {
+        return sendAsync(obtain(Command.PING));
+    }
+    public CommandFuture<Id> getIDAsync() {
+        return sendAsync(obtain(Command.ID));
+    }
+    public CommandFuture<Value> getValueAsync() {
+        return sendAsync(obtain(Command.VALUE_GET));
+    }
+    public CommandFuture<Void> setValueAsync(float value, int pingIncrement) {
+        return sendAsync(valueSet(value, pingIncrement));
+    }
+
+    public CommandFuture<SensorArray> getArrayAsync(SensorArray array) {
+        return sendAsync(arrayGet(array));
+    }
+    public CommandFuture<Void> setArrayAsync(int[] values, int count) {
+        return sendAsync(arraySet(values, count));
+    }
+
+    private CommandStream arrayGet(SensorArray array) {
+        CommandStream cmd = obtain(Command.ARRAY_GET);
+        Protocol.ArrayGet.write(cmd, array.encoding(), array.snapshot());
+        cmd.writeChecksum();
+        cmd.target = array;
+        return cmd;
+    }
+
+    private CommandStream arraySet(int[] values, int count) {
+        CommandStream cmd = obtain(Command.ARRAY_SET);
+        if (!SensorArray.write(cmd, values, count)) {
+            cmd.recycle();
+            throw new IllegalArgumentException("Sensor array values have to be int16, at most " + Protocol.ARRAY_CHANNELS);
+        }
+        cmd.writeChecksum();
+        return cmd;
+    }
+
+    private CommandStream valueSet(float value, int pingIncrement) {
+        CommandStream cmd = obtain(Command.VALUE_SET);
+        Protocol.Value.write(cmd, value, pingIncrement);
         cmd.writeChecksum();
+        return cmd;
+    }
+
+    private <T> CommandFuture<T> sendAsync(CommandStream cmd) {
+        CommandFuture<T> future = new CommandFuture<>();
+        cmd.setCallback(future);
         sendCommand(cmd);
+        return future;
     }
 
-    // Extract message and forward data to UI
+    // Extract message and forward data to UI, or to the future waiting for it.
     @Override
+    @SuppressWarnings("unchecked")
     protected void processResponse() {
-        Message msg = null;
+        int what = 0;
+        Object obj = null;
         switch (activeCmd.command()) {
             case NONE: {
-                Log.d(LOGTAG, "Got response of size " + response.length + " but no msg is active");
+                if (trace.isLogging()) {
+                    Log.d(LOGTAG, "Got response of size " + response.length + " but no msg is active");
+                }
             } break;
 
             case PING: {
@@ -94,36 +245,81 @@ public class Robot extends RobotBase {
             } break;
 
             case ID: {
-                String name = activeCmd.readString();
-                String date = activeCmd.readString();
-                String time = activeCmd.readString();
-                Log.d(LOGTAG, "ID: " + name + " " + date + " " + time);
+                String name = Protocol.AppId.name(activeCmd);
+                String date = Protocol.AppId.date(activeCmd);
+                String time = Protocol.AppId.time(activeCmd);
+                if (trace.isLogging()) {
+                    Log.d(LOGTAG, "ID: " + name + " " + date + " " + time);
+                }
+
+                what = MSG_ID;
+                obj = new Id(name, date, time);
+            } break;
+
+            case SUBSCRIBE: {
+                int status = activeCmd.readByte();
+                if (0 == status) {
+                    setStreaming(true);
+                } else {
+                    Log.e(LOGTAG, "Subscribe returned " + status + " (expected 0)");
+                }
+            } break;
 
-                Id obj = new Id(name, date, time);
-                msg = handler.obtainMessage(MSG_ID, obj);
+            case UNSUBSCRIBE: {
+                setStreaming(false);
             } break;
 
-            case VALUE_GET: {
+            case VALUE_GET:
+            case VALUE_STREAM: {
                 float value = activeCmd.readFloat();
-                Log.d(LOGTAG, "VALUE: " + value);
+                if (trace.isLogging()) {
+                    Log.d(LOGTAG, "VALUE: " + value);
+                }
+
+                what = MSG_VALUE;
+                obj = new Value(value);
+            } break;
 
-                Value obj = new Value(value);
-                msg = handler.obtainMessage(MSG_VALUE, obj);
+            case ARRAY_GET: {
+                SensorArray array = (SensorArray)activeCmd.target;
+                if (array.decode(activeCmd)) {
+                    what = MSG_ARRAY;
+                    obj = array;
+                } else {
+                    Log.e(LOGTAG, "Invalid sensor array of " + response.length + " bytes");
+                    if (activeCmd.callback() instanceof CommandFuture) {
+                        ((CommandFuture<Object>)activeCmd.callback()).fail(new CommandException(Command.ARRAY_GET, CommandStream.ABORTED));
+                    }
+                }
             } break;
         }
-        if (null != msg) {
-            msg.sendToTarget();
+        if (activeCmd.callback() instanceof CommandFuture) {
+            ((CommandFuture<Object>)activeCmd.callback()).complete(obj);
+        } else if (null != obj && !isHeartbeat(activeCmd)) {
+            handler.obtainMessage(what, obj).sendToTarget();
         }
     }
 
+    @Override
+    protected void connectionChanged(Connection state) {
+        handler.obtainMessage(MSG_CONNECTION, state).sendToTarget();
+    }
+
     // Error handling for this robot is simple, log error and start over.
     // You probably wanna do something smarter, the logs aren't really visible
     // if the device is not connected to Android Studio
+    // A lost frame doesn't affect any other command, there's no need to start over.
+    // Queued control commands are not affected either, they are still sent, the other
+    // queued commands are aborted (CommandStream.ABORTED).
     @Override
     protected void abortResponse() {
-        int received = (null == response) ? 0 : response.length;
+        if (activeCmd.isFramed()) {
+            Log.e(LOGTAG, "Lost response to " + activeCmd.command());
+            return;
+        }
+        int received = received();
         Log.e(LOGTAG, "Error in receiving response to " + activeCmd.command() + ", received " + received + " of " + activeCmd.command().rsize + " bytes");
-        clearMessageQueue();
+        clearMessageQueue(CommandQueue.NORMAL);
         getID();
     }
 }
@@ -1,11 +1,17 @@
 package org.vancouverroboticsclub.robot_rfcomm;
 
-import android.bluetooth.BluetoothDevice;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * RobotBase implements the basic command communication with the robot.
@@ -20,33 +26,415 @@ import java.util.LinkedList;
  *      /c abortResponse()
  *
  * \c processResponse is only called once a complete message has been received.
- * Note that the reception buffer is cleared afterwards.
+ * Note that the reception buffer is cleared afterwards. The response buffer of a
+ * command with a fixed response size is re-used for the next response of the same
+ * command, its content is only valid during \c processResponse.
+ * A variable size response (see Command) is complete once its size and that many
+ * bytes have been received, framed or not.
  *
  * \c abortResponse is called if reception of a response does not complete
  * in the specified time.
  * Note that the reception buffer is cleared afterwards.
+ *
+ * By default only a single command is sent at a time and the next command is
+ * only sent once the response was received (stop-and-wait). \c setWindow allows
+ * multiple commands to be outstanding at the same time, which hides the round
+ * trip time of the link. Responses are still matched in FIFO order, \c activeCmd
+ * always refers to the oldest command still waiting for its response. Note that
+ * the robot has to queue its responses for this to work (see uartTx). It has room for
+ * Protocol.TX_BUFFER_SIZE bytes and drops a response that doesn't fit, so regardless of
+ * the window a command is only sent once the biggest response it may get fits behind
+ * those of the commands in flight.
+ *
+ * While streaming (see \c setStreaming) the robot tags every transmission. Responses
+ * to commands start with TAG_RESPONSE, frames the robot sends on its own start with
+ * the id of the corresponding pushed Command. Pushed frames are handed to
+ * \c processResponse like any response, with \c activeCmd set to a stream of the
+ * pushed Command, but don't affect the outstanding commands.
+ *
+ * The timeout of a command is given by CommandStream.timeoutMS, unless adaptive timeouts
+ * are enabled with \c setAdaptiveTimeouts. The round trip time from writing a command to
+ * receiving its response is tracked per Command and the timeout is derived from that
+ * (see RttEstimator).
+ *
+ * With \c setFraming commands are sent in frames (see FrameCodec) and the robot responds
+ * in kind. Each frame carries a sequence number, so responses are matched to their
+ * commands by sequence number rather than by counting bytes. A lost or corrupted frame
+ * only costs the command it belongs to: \c abortResponse is called for that command as
+ * soon as the response of a later command arrives, or when it times out, and all other
+ * outstanding commands are unaffected.
+ * A command the robot can't take because it's too long is answered with TAG_REJECTED
+ * instead of a response and finished as CommandStream.REJECTED right away.
+ *
+ * Queued commands are sent by priority rather than in the order they were queued, see
+ * CommandQueue and \c setScheduling. Control commands are sent ahead of any queued
+ * telemetry requests, and a newer VALUE_SET replaces one that is still queued.
+ * The queue is bounded (see \c setQueueLimit), which bounds the time a command can
+ * wait in it. The outcome of each command can be observed with a CommandStream.Callback,
+ * including commands dropped because the queue was full.
+ *
+ * Commands can be sent from any thread, everything else has to happen on the thread
+ * RobotBase was created on - except for \c disconnect and reading the metrics. All the
+ * work of the protocol (reassembling responses, \c processResponse, timeouts, the
+ * keepalive) happens on that thread. Created on the UI thread it competes with
+ * rendering, created on a HandlerThread of its own only the decoded results need to be
+ * posted to the UI (see Robot and MainActivity).
+ *
+ * With \c setBatching queued commands are written to the link in batches instead of
+ * one write per command. A batch is written as soon as it reaches the configured size,
+ * or after the configured delay, whichever comes first.
+ *
+ * Round trip latencies, queue depth, traffic and errors are recorded in LinkMetrics,
+ * see \c metrics. The traffic itself can be logged or captured to a file, see Trace, and
+ * a capture replayed without the robot, see ReplayTransport.
+ *
+ * The connection is supervised: if it can't be established or is lost (e.g. the robot
+ * drove out of range) RobotBase connects again, with exponential backoff between the
+ * attempts (see Backoff and \c setReconnect). Commands stay queued while the link is
+ * down. Commands which had already been sent are put back in front of the queue if
+ * they're idempotent (see Command) and sent again, the others are aborted. The state of
+ * the connection is reported to \c connectionChanged, only \c disconnect closes it
+ * for good.
+ *
+ * With \c setKeepalive the link is declared dead, and closed to reconnect, after a
+ * number of missed heartbeats (see Keepalive). Responses and streamed values count as
+ * heartbeats, an ID is only requested if the link has been idle for an interval. Unlike
+ * a PING that doesn't change the robot's state, and its response isn't forwarded like
+ * one that was asked for (see \c isHeartbeat).
+ *
+ * Each RobotBase services its link with a ConnectionThread of its own, unless it's given
+ * a Link.Pool whose threads it shares with other robots, e.g. a ConnectionPool (see
+ * RobotManager) or the SelectorThread of a JVM gateway. The ConnectionThread's threads
+ * can be made by a ThreadFactory, e.g. virtual threads on a JVM gateway (see
+ * RobotGateway).
+ *
+ * Responses can be cached for a while, see \c setCacheMaxAge and ResponseCache. A
+ * request with a response younger than that is answered without going to the robot,
+ * requests for a response which is already on its way are merged onto that request.
+ * Subclasses declare which commands make cached responses stale with
+ * \c invalidatesCache.
  */
 
 public class RobotBase
         implements Handler.Callback
 {
     private static final int MSG_TIMEOUT = ConnectionThread.MSG_USER;
+    private static final int MSG_FLUSH = ConnectionThread.MSG_USER + 1;
+    private static final int MSG_SEND = ConnectionThread.MSG_USER + 2;
+    private static final int MSG_RECONNECT = ConnectionThread.MSG_USER + 3;
+    private static final int MSG_KEEPALIVE = ConnectionThread.MSG_USER + 4;
+    private static final int MSG_DISCONNECT = ConnectionThread.MSG_USER + 5;
+
+    public enum Connection {
+        CONNECTING,     // waiting for the transport to connect
+        CONNECTED,
+        RECONNECTING,   // the link is down, waiting for the next attempt
+        CLOSED,         // disconnected, or reconnecting is disabled
+    }
 
-    protected final ConnectionThread io;
+    // tag in front of every response while streaming
+    protected static final int TAG_RESPONSE = Protocol.TAG_RESPONSE;
+    protected static final int TAG_REJECTED = Protocol.TAG_REJECTED;
+
+    private final Transport transport;
+    // null if the robot has threads of its own
+    private final Link.Pool pool;
+    // makes the threads of the ConnectionThread, plain threads if null
+    private final ThreadFactory threads;
+    protected Link io;
+    private Connection connection;
+    // null if reconnecting is disabled
+    private Backoff backoff = new Backoff(250, 5000);
+    private boolean closing;
+    private boolean wasConnected;
+    private long lostAt;
+    // null if disabled
+    private Keepalive keepalive;
+    private final CommandStream.Callback heartbeat = new CommandStream.Callback() {
+        @Override
+        public void onDone(CommandStream cmd, int status) {
+            if (CommandStream.COMPLETED == status && 0 != cmd.writtenAt) {
+                metrics.heartbeatAnswered((SystemClock.elapsedRealtimeNanos() - cmd.writtenAt) / 1000L);
+            }
+        }
+    };
+    private final ResponseCache cache = new ResponseCache();
+    // the response of a request the cache waits for answers the requests merged onto it
+    private final CommandStream.Callback cacheFill = new CommandStream.Callback() {
+        @Override
+        public void onDone(CommandStream cmd, int status) {
+            byte[] resp = CommandStream.COMPLETED == status ? cmd.responseBuffer() : null;
+            ResponseCache.Entry entry = cache.leading(cmd);
+            if (null != entry) {
+                entry.leader = null;
+                if (null != resp) {
+                    cache.store(entry, resp, SystemClock.elapsedRealtimeNanos());
+                }
+            }
+            CommandStream merged = cmd.merged;
+            cmd.merged = null;
+            while (null != merged) {
+                CommandStream next = merged.merged;
+                merged.merged = null;
+                if (null != resp) {
+                    answer(merged, resp);
+                } else {
+                    merged.finish(status);
+                    merged.recycle();
+                }
+                merged = next;
+            }
+        }
+    };
     protected final Handler self;
+    protected final Trace trace;
     protected byte[] response;
+    private RingBuffer pending;
     protected CommandStream activeCmd;
-    private LinkedList<CommandStream> cmdQueue;
+    // activeCmd while there is no outstanding command
+    private final CommandStream idle = new CommandStream(Command.NONE);
+    private final CommandQueue cmdQueue = new CommandQueue();
+    private final CommandStream.Pool streams = new CommandStream.Pool();
+    // senders on other threads waiting for room in the queue, see reserve
+    private final Object room = new Object();
+    private int reserved;
+    private volatile int waiting;
+    private volatile int queued;
+    private volatile int queueLimit;
+    private volatile CommandQueue.Overflow queueOverflow;
+    // commands sent to the robot which still wait for their response, oldest first
+    private LinkedList<CommandStream> inFlight;
+    // commands sent to the robot for which MSG_WRITE has not been received yet
+    private LinkedList<CommandStream> sent;
+    private int window;
+    // batching is disabled if batch is null
+    private byte[] batch;
+    private int batchSize;
+    private int batchDelay;
+    private final RttEstimator[] rtt;
+    private final LinkMetrics metrics = new LinkMetrics();
+    private boolean streaming;
+    private boolean framing;
+    private int nextSeq;
+    private final FrameCodec frames = new FrameCodec();
+    private final byte[] frame = new byte[CommandStream.MAX_REQUEST_SIZE + FrameCodec.OVERHEAD];
+    // pushed Commands by their tag, and the streams used to process them
+    private final Command[] pushedCommands = new Command[256];
+    private final CommandStream[] pushStreams;
+    // biggest pushed frame, which the robot may queue between the responses while streaming
+    private int maxPushed;
+    private boolean adaptiveTimeouts;
+    private int timeoutFloor;
+    private int timeoutCeiling;
+    // re-used response buffers for commands with a fixed response size
+    private final byte[][] responseBuffers;
+    private long responseCount;
+    private long responseBytesCopied;
 
     protected final static String LOGTAG = "Robot";
     private final static char[] hex = "0123456789ABCDEF".toCharArray();
 
-    RobotBase(BluetoothDevice dev) {
+    RobotBase(Transport transport) {
+        this(transport, null, null);
+    }
+
+    // The link is serviced by the threads of the given pool instead of a ConnectionThread.
+    RobotBase(Transport transport, Link.Pool pool) {
+        this(transport, pool, null);
+    }
+
+    // The ConnectionThread's reader and writer are made by the given factory.
+    RobotBase(Transport transport, ThreadFactory threads) {
+        this(transport, null, threads);
+    }
+
+    private RobotBase(Transport transport, Link.Pool pool, ThreadFactory threads) {
         self = new Handler(this);
-        io = new ConnectionThread(dev, self);
-        io.start();
-        cmdQueue = new LinkedList<>();
-        activeCmd = new CommandStream(Command.NONE);
+        trace = new Trace(LOGTAG);
+        this.transport = transport;
+        this.pool = pool;
+        this.threads = threads;
+        connect();
+        inFlight = new LinkedList<>();
+        sent = new LinkedList<>();
+        window = 1;
+        responseBuffers = new byte[Command.values().length][];
+        pushStreams = new CommandStream[Command.values().length];
+        for (Command c : Command.values()) {
+            if (c.pushed) {
+                pushedCommands[c.nr & 0xFF] = c;
+                pushStreams[c.ordinal()] = new CommandStream(c);
+                maxPushed = Math.max(maxPushed, c.rmax);
+            }
+        }
+        rtt = new RttEstimator[Command.values().length];
+        for (int i = 0; i < rtt.length; ++i) {
+            rtt[i] = new RttEstimator();
+        }
+        activeCmd = idle;
+        queueLimit = cmdQueue.capacity();
+        queueOverflow = cmdQueue.overflow();
+    }
+
+    // Wait between initialMS and maxMS between attempts to reconnect, see Backoff.
+    public void setReconnect(int initialMS, int maxMS) {
+        backoff = new Backoff(initialMS, maxMS);
+    }
+    // A lost connection stays closed, all queued commands are aborted.
+    public void disableReconnect() {
+        backoff = null;
+    }
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // Declare the link dead once maxMissed heartbeats of intervalMS have been missed in a
+    // row, request the robot's ID if the link has been idle for intervalMS.
+    public void setKeepalive(int intervalMS, int maxMissed) {
+        keepalive = new Keepalive(intervalMS, maxMissed);
+        keepalive.reset(SystemClock.elapsedRealtimeNanos());
+        self.removeMessages(MSG_KEEPALIVE);
+        checkLiveness();
+    }
+    public void disableKeepalive() {
+        keepalive = null;
+        self.removeMessages(MSG_KEEPALIVE);
+    }
+
+    // Set the number of commands which can be outstanding at any given time, at most
+    // Link.QUEUE_SIZE.
+    public void setWindow(int size) {
+        window = Math.max(1, Math.min(size, Link.QUEUE_SIZE));
+        scheduleNextCommand();
+    }
+    public int getWindow() {
+        return window;
+    }
+
+    // How the next command to send is picked from the queued commands, see CommandQueue.
+    // The weights only apply to WEIGHTED, highest priority lane first.
+    public void setScheduling(CommandQueue.Policy policy, int... weights) {
+        cmdQueue.setPolicy(policy);
+        if (0 < weights.length) {
+            cmdQueue.setWeights(weights);
+        }
+    }
+    public CommandQueue.Policy getScheduling() {
+        return cmdQueue.getPolicy();
+    }
+
+    // Limit the number of queued commands, overflow decides what happens to a command
+    // sent while the queue is full.
+    public void setQueueLimit(int capacity, CommandQueue.Overflow overflow) {
+        cmdQueue.setCapacity(capacity, overflow);
+        queueLimit = cmdQueue.capacity();
+        queueOverflow = overflow;
+        queueChanged();
+    }
+
+    // Combine queued commands into writes of up to maxBytes. If fewer bytes are queued
+    // they are held back for up to maxDelayMS in the hope of more commands to come.
+    // maxBytes of 0 disables batching, a maxDelayMS of 0 writes whatever is queued
+    // right away.
+    public void setBatching(int maxBytes, int maxDelayMS) {
+        self.removeMessages(MSG_FLUSH);
+        if (maxBytes > 0) {
+            batch = new byte[Math.max(maxBytes, CommandStream.MAX_REQUEST_SIZE + FrameCodec.OVERHEAD)];
+            batchSize = maxBytes;
+            batchDelay = Math.max(0, maxDelayMS);
+        } else {
+            batch = null;
+        }
+        scheduleNextCommand();
+    }
+
+    // Switch between plain and tagged responses. Subclasses call this while processing the
+    // response of the command which switches the robot's mode, so the change takes effect
+    // exactly at the right byte.
+    protected void setStreaming(boolean enable) {
+        streaming = enable;
+    }
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    // Send commands in frames. Commands which are already outstanding are not affected,
+    // their responses are still expected in the format they were sent in.
+    public void setFraming(boolean enable) {
+        framing = enable;
+    }
+    public boolean isFraming() {
+        return framing;
+    }
+    // Sequence number of the next frame, to pick up where a captured session was when
+    // replaying it (see ReplayTransport). Only before any command is sent.
+    void setSequence(int seq) {
+        nextSeq = seq & 0xFF;
+    }
+
+    // Statistics of the frame decoder.
+    public FrameCodec frameDecoder() {
+        return frames;
+    }
+
+    // Derive the timeout of each command from its measured round trip time, but never
+    // less than floorMS or more than ceilingMS. Until the first response of a command
+    // has been received its CommandStream.timeoutMS is used.
+    public void setAdaptiveTimeouts(int floorMS, int ceilingMS) {
+        adaptiveTimeouts = true;
+        timeoutFloor = floorMS;
+        timeoutCeiling = Math.max(floorMS, ceilingMS);
+    }
+    public void disableAdaptiveTimeouts() {
+        adaptiveTimeouts = false;
+    }
+
+    public Trace trace() {
+        return trace;
+    }
+
+    // Capture all traffic into the given file, see TraceCapture. Capturing stops once
+    // size bytes have been written or \c stopCapture is called.
+    public void startCapture(File file, int size) throws IOException {
+        stopCapture();
+        trace.setCapture(new TraceCapture(file, size));
+    }
+    public void stopCapture() {
+        TraceCapture capture = trace.setCapture(null);
+        if (null != capture) {
+            try {
+                capture.close();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Closing capture failed", e);
+            }
+        }
+    }
+
+    // Metrics of the link, safe to snapshot from any thread.
+    public LinkMetrics metrics() {
+        return metrics;
+    }
+
+    // Answer requests of the given command with the response to the same request if it
+    // was received within the last maxAgeMS, 0 (the default) disables caching.
+    public void setCacheMaxAge(Command cmd, int maxAgeMS) {
+        if (0 == cmd.rsize || cmd.pushed) {
+            throw new IllegalArgumentException(cmd + " has no response to cache");
+        }
+        cache.setMaxAge(cmd, Math.max(0, maxAgeMS));
+    }
+    // Sending cmd makes the cached responses of the other command stale.
+    protected void invalidatesCache(Command cmd, Command cached) {
+        cache.invalidates(cmd, cached);
+    }
+
+    public RttEstimator roundTrip(Command cmd) {
+        return rtt[cmd.ordinal()];
+    }
+
+    // Average number of bytes copied on the receive path for each response.
+    public float bytesCopiedPerResponse() {
+        return 0 == responseCount ? 0 : (float)responseBytesCopied / responseCount;
     }
 
     protected void processResponse() {
@@ -55,9 +443,24 @@ public class RobotBase
     protected void abortResponse() {
         // overwrite
     }
+    protected void connectionChanged(Connection state) {
+        // overwrite
+    }
 
+    // Close the connection for good, queued and outstanding commands are aborted once
+    // the connection is closed. Can be called from any thread.
     public void disconnect() {
-        io.cancel();
+        if (Looper.myLooper() != self.getLooper()) {
+            self.sendEmptyMessage(MSG_DISCONNECT);
+            return;
+        }
+        closing = true;
+        if (Connection.RECONNECTING == connection) {
+            self.removeMessages(MSG_RECONNECT);
+            linkLost();
+        } else if (Connection.CLOSED != connection) {
+            io.cancel();
+        }
     }
 
     @Override
@@ -65,54 +468,499 @@ public class RobotBase
         switch (msg.what) {
 
             case ConnectionThread.MSG_STARTED:
-                Log.d(LOGTAG, "Robot connection active");
+                if (msg.obj == io) {
+                    Log.d(LOGTAG, "Robot connection active");
+                    if (wasConnected) {
+                        metrics.reconnect((SystemClock.elapsedRealtimeNanos() - lostAt) / 1000L);
+                    }
+                    wasConnected = true;
+                    if (null != backoff) {
+                        backoff.reset();
+                    }
+                    setConnection(Connection.CONNECTED);
+                    if (null != keepalive) {
+                        keepalive.reset(SystemClock.elapsedRealtimeNanos());
+                        self.removeMessages(MSG_KEEPALIVE);
+                        checkLiveness();
+                    }
+                    scheduleNextCommand();
+                }
+                break;
+
+            case MSG_KEEPALIVE:
+                checkLiveness();
+                break;
+
+            case ConnectionThread.MSG_CLOSED:
+                if (msg.obj == io) {
+                    Log.d(LOGTAG, "Robot connection closed");
+                    linkLost();
+                }
+                break;
+
+            case MSG_DISCONNECT:
+                disconnect();
+                break;
+
+            case MSG_RECONNECT:
+                connect();
+                setConnection(Connection.CONNECTING);
+                scheduleNextCommand();
                 break;
 
             case ConnectionThread.MSG_READ:
                 int count = msg.arg1;
-                byte[] obj = (byte[])msg.obj;
-                Log.d(LOGTAG, "Received (" + activeCmd + "): " + count + "[" + obj.length + "] " + hexDump(obj, count));
-                if (null == response) {
-                    response = obj;
-                } else {
-                    byte[] rcvd = new byte[response.length + count];
-                    System.arraycopy(response, 0, rcvd, 0, response.length);
-                    System.arraycopy(obj, 0, rcvd, response.length, count);
-                    response = rcvd;
+                RingBuffer obj = (RingBuffer)msg.obj;
+                obj.accept(count);
+                trace.received(obj, count, activeCmd);
+                metrics.received(count);
+                if (null != keepalive) {
+                    keepalive.heard(SystemClock.elapsedRealtimeNanos());
                 }
+                processReceived(obj);
+                break;
 
-                if (activeCmd.setResponse(response)) {
-                    self.removeMessages(MSG_TIMEOUT);
-                    processResponse();
-                    response = null;
-                    scheduleNextCommand();
+            case ConnectionThread.MSG_WRITE:
+                // a single write can contain multiple commands (batching)
+                metrics.sent(msg.arg1);
+                for (int written = msg.arg1; written > 0 && !sent.isEmpty(); ) {
+                    CommandStream cmd = sent.removeFirst();
+                    written -= wireLength(cmd, 0 <= cmd.seq);
+                    if (inFlight.contains(cmd)) {
+                        cmd.writtenAt = SystemClock.elapsedRealtimeNanos();
+                        if (null != keepalive) {
+                            keepalive.expect(cmd.writtenAt);
+                        }
+                        self.sendMessageDelayed(self.obtainMessage(MSG_TIMEOUT, cmd), timeoutMS(cmd));
+                    } else {
+                        if (!cmd.requiresResponse()) {
+                            cmd.finish(CommandStream.COMPLETED);
+                        }
+                        release(cmd);
+                    }
                 }
+                scheduleNextCommand();
                 break;
 
-            case ConnectionThread.MSG_WRITE:
-                if (!activeCmd.requiresResponse()) {
-                    scheduleNextCommand();
-                } else {
-                    self.sendEmptyMessageDelayed(MSG_TIMEOUT, activeCmd.timeoutMS());
+            case MSG_FLUSH:
+                flushBatch();
+                break;
+
+            case MSG_SEND:
+                enqueue((CommandStream)msg.obj, 0 != msg.arg1);
+                if (0 != msg.arg1) {
+                    // enqueue already woke up the waiting senders, but they still saw
+                    // the reservation - and if the command didn't end up in the queue
+                    // (aborted, answered from the cache, replacing a queued one) nothing
+                    // else would wake them up
+                    synchronized (room) {
+                        --reserved;
+                        room.notifyAll();
+                    }
                 }
                 break;
 
             case MSG_TIMEOUT:
-                abortResponse();
-                response = null;
-                scheduleNextCommand();
+                if (inFlight.contains(msg.obj) && 0 <= ((CommandStream)msg.obj).seq) {
+                    // The responses of the other outstanding commands can still be found,
+                    // only the command which timed out is dropped.
+                    CommandStream aborted = (CommandStream)msg.obj;
+                    rtt[aborted.command().ordinal()].backoff();
+                    metrics.timeout();
+                    drop(aborted, CommandStream.TIMED_OUT);
+                    dropStaleFrame();
+                    scheduleNextCommand();
+                } else if (inFlight.contains(msg.obj)) {
+                    // Without the response of the oldest command there is no way of telling
+                    // where the responses of the other outstanding commands start - they
+                    // all get dropped.
+                    CommandStream aborted = inFlight.getFirst();
+                    LinkedList<CommandStream> dropped = inFlight;
+                    inFlight = new LinkedList<>();
+                    for (CommandStream cmd : dropped) {
+                        self.removeMessages(MSG_TIMEOUT, cmd);
+                    }
+                    activeCmd = aborted;
+                    rtt[aborted.command().ordinal()].backoff();
+                    metrics.timeout();
+                    metrics.abort();
+                    int stale = received();
+                    abortResponse();
+                    if (null != pending) {
+                        pending.skip(stale);
+                    }
+                    for (CommandStream cmd : dropped) {
+                        cmd.finish(cmd == aborted ? CommandStream.TIMED_OUT : CommandStream.ABORTED);
+                        release(cmd);
+                    }
+                    updateActiveCommand();
+                    scheduleNextCommand();
+                }
                 break;
         }
         return true;
     }
 
-    protected String hexDump(byte[] bytes, int length) {
+    private void connect() {
+        io = null == pool ? new ConnectionThread(transport, self, threads) : pool.open(transport, self);
+        io.start();
+        if (null == connection) {
+            connection = Connection.CONNECTING;
+        }
+    }
+
+    // The connection is gone or couldn't be established. Commands sent over it which can
+    // be sent again are put back in front of the queue, the others are aborted.
+    private void linkLost() {
+        if (Connection.CONNECTED == connection) {
+            lostAt = SystemClock.elapsedRealtimeNanos();
+        }
+        pending = null;
+        self.removeMessages(MSG_FLUSH);
+        // the commands still waiting for MSG_WRITE were sent last
+        LinkedList<CommandStream> lost = new LinkedList<>();
+        for (CommandStream cmd : inFlight) {
+            if (!sent.contains(cmd)) {
+                lost.add(cmd);
+            }
+        }
+        lost.addAll(sent);
+        inFlight = new LinkedList<>();
+        sent = new LinkedList<>();
+        activeCmd = idle;
+        // the robot might have been reset
+        cache.clear();
+
+        boolean retry = !closing && null != backoff;
+        for (Iterator<CommandStream> i = lost.descendingIterator(); i.hasNext(); ) {
+            CommandStream cmd = i.next();
+            self.removeMessages(MSG_TIMEOUT, cmd);
+            if (retry && cmd.command().idempotent) {
+                cmd.seq = -1;
+                cmd.writtenAt = 0;
+                cmdQueue.requeue(cmd);
+                metrics.replayed();
+            } else {
+                metrics.abort();
+                cmd.finish(CommandStream.ABORTED);
+                cmd.recycle();
+            }
+        }
+
+        if (retry) {
+            int delay = backoff.nextDelayMS();
+            Log.d(LOGTAG, "Reconnecting in " + delay + "ms");
+            self.sendEmptyMessageDelayed(MSG_RECONNECT, delay);
+            setConnection(Connection.RECONNECTING);
+        } else {
+            // they weren't dropped by the queue's overflow policy, they can't be sent
+            cmdQueue.clear(CommandQueue.CONTROL, CommandStream.ABORTED);
+            setConnection(Connection.CLOSED);
+        }
+        queueChanged();
+    }
+
+    private void setConnection(Connection state) {
+        if (state != connection) {
+            connection = state;
+            connectionChanged(state);
+        }
+    }
+
+    // Close a link which missed too many heartbeats, it's reconnected like any other lost
+    // link. Request the robot's ID if nothing else is going on.
+    private void checkLiveness() {
+        if (null == keepalive || Connection.CONNECTED != connection) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (keepalive.isDead(now)) {
+            Log.e(LOGTAG, "Link dead, missed " + keepalive.missed(now) + " heartbeats");
+            metrics.linkDead();
+            io.cancel();
+            return;
+        }
+        if (keepalive.isIdle(now) && inFlight.isEmpty() && sent.isEmpty() && cmdQueue.isEmpty()) {
+            CommandStream id = obtain(Command.ID);
+            id.setCallback(heartbeat);
+            metrics.heartbeat();
+            keepalive.expect(now);
+            enqueue(id, false);
+        }
+        long delay = keepalive.nextCheck(now) / 1000000L;
+        self.sendEmptyMessageDelayed(MSG_KEEPALIVE, 0 == delay ? keepalive.intervalMS() : delay + 1);
+    }
+
+    // Whether the command is a request of the keepalive, whose response is of no interest
+    // beyond the link being alive.
+    protected boolean isHeartbeat(CommandStream cmd) {
+        return heartbeat == cmd.callback();
+    }
+
+    // Commands can only be written while there is a ConnectionThread to take them.
+    private boolean linkUp() {
+        return Connection.CONNECTING == connection || Connection.CONNECTED == connection;
+    }
+
+    private int timeoutMS(CommandStream cmd) {
+        if (adaptiveTimeouts) {
+            return rtt[cmd.command().ordinal()].timeoutMS(timeoutFloor, timeoutCeiling, cmd.timeoutMS());
+        }
+        return cmd.timeoutMS();
+    }
+
+    // Take the responses for the outstanding commands out of the receive buffer. Any bytes
+    // beyond the current command's response belong to the next command in line and
+    // stay in the buffer until they're complete.
+    private void processReceived(RingBuffer rcvd) {
+        pending = rcvd;
+        while (0 < rcvd.available()) {
+            if (activeCmd == idle ? framing : 0 <= activeCmd.seq) {
+                if (!processFrame(rcvd)) {
+                    break;
+                }
+                continue;
+            }
+            if (streaming) {
+                int tag = rcvd.get(0) & 0xFF;
+                if (TAG_RESPONSE != tag) {
+                    Command push = pushedCommands[tag];
+                    if (null == push) {
+                        Log.e(LOGTAG, "Dropping byte " + tag + ", not a valid tag");
+                        rcvd.skip(1);
+                    } else if (rcvd.available() > push.rsize) {
+                        rcvd.skip(1);
+                        processPush(rcvd, push);
+                        continue;
+                    }
+                    break;
+                }
+                int size = responseSize(rcvd, activeCmd.command(), 1);
+                if (size < 0 || rcvd.available() <= size) {
+                    break;
+                }
+                rcvd.skip(1);
+            }
+
+            response = takeResponse(rcvd, activeCmd.command(), rcvd.available());
+            if (null == response) {
+                break;
+            }
+            complete(activeCmd);
+        }
+        scheduleNextCommand();
+    }
+
+    // Process the next frame in the buffer, returns false if there is none (yet).
+    private boolean processFrame(RingBuffer rcvd) {
+        long crcErrors = frames.crcErrors();
+        int size = frames.next(rcvd);
+        metrics.checksumFailures(frames.crcErrors() - crcErrors);
+        if (size < 0) {
+            return false;
+        }
+        int seq = frames.sequence();
+        rcvd.skip(FrameCodec.HEADER_SIZE);
+        int id = rcvd.get(0) & 0xFF;
+        rcvd.skip(1);
+        size -= 1;
+
+        Command push = pushedCommands[id];
+        CommandStream cmd;
+        if (null != push && push.rsize == size) {
+            processPush(rcvd, push);
+        } else if (TAG_REJECTED == id && 0 == size) {
+            reject(seq);
+        } else if (null != (cmd = matchFrame(seq, id, size, 0 < size ? rcvd.get(0) & 0xFF : -1))) {
+            response = takeResponse(rcvd, cmd.command(), size);
+            complete(cmd);
+        } else {
+            Log.e(LOGTAG, "Dropping frame " + seq + " (" + id + ", " + size + " bytes), no matching command");
+            rcvd.skip(size);
+        }
+        rcvd.skip(FrameCodec.CRC_SIZE);
+        return true;
+    }
+
+    // Find the outstanding command a response frame belongs to. The robot responds in
+    // order, so the frames of any commands sent before it got lost. A variable size
+    // response has to fill the frame exactly, prefix is its first byte (its size).
+    private CommandStream matchFrame(int seq, int id, int size, int prefix) {
+        CommandStream match = null;
+        for (CommandStream cmd : inFlight) {
+            Command c = cmd.command();
+            if (seq == cmd.seq && id == c.nr && (size == c.rsize || (-1 == c.rsize && size == 1 + prefix))) {
+                match = cmd;
+                break;
+            }
+        }
+        while (null != match && inFlight.getFirst() != match) {
+            drop(inFlight.getFirst(), CommandStream.ABORTED);
+        }
+        return match;
+    }
+
+    // The robot rejected the command sent in the given frame, it was too long. The
+    // commands sent before it lost their responses, as in matchFrame. A command without a
+    // response is already done once it's written, so all that's left is to log it.
+    private void reject(int seq) {
+        CommandStream rejected = null;
+        for (CommandStream cmd : inFlight) {
+            if (seq == cmd.seq) {
+                rejected = cmd;
+                break;
+            }
+        }
+        if (null == rejected) {
+            Log.e(LOGTAG, "Robot rejected frame " + seq + ", no matching command");
+            return;
+        }
+        while (inFlight.getFirst() != rejected) {
+            drop(inFlight.getFirst(), CommandStream.ABORTED);
+        }
+        Log.e(LOGTAG, "Robot rejected " + rejected.command() + " in frame " + seq + ", too long");
+        drop(rejected, CommandStream.REJECTED);
+    }
+
+    // The response of a framed command was lost, nothing else is affected.
+    private void drop(CommandStream cmd, int status) {
+        self.removeMessages(MSG_TIMEOUT, cmd);
+        inFlight.remove(cmd);
+        activeCmd = cmd;
+        metrics.abort();
+        abortResponse();
+        updateActiveCommand();
+        cmd.finish(status);
+        release(cmd);
+    }
+
+    // A partial frame which doesn't belong to any outstanding command is either a false
+    // sync or the remains of a lost frame, only the next frame would push it out.
+    private void dropStaleFrame() {
+        int seq = null == pending ? -1 : FrameCodec.peekSequence(pending);
+        if (-1 == seq) {
+            return;
+        }
+        int id = FrameCodec.peekId(pending);
+        if (-1 != id && null != pushedCommands[id]) {
+            return;
+        }
+        for (CommandStream cmd : inFlight) {
+            if (seq == cmd.seq && (-1 == id || id == cmd.command().nr || TAG_REJECTED == id)) {
+                return;
+            }
+        }
+        frames.resync(pending);
+        processReceived(pending);
+    }
+
+    // The response of the given command has been received, hand it to processResponse.
+    private void complete(CommandStream done) {
+        activeCmd = done;
+        done.setResponse(response);
+        if (0 != done.writtenAt) {
+            long ns = SystemClock.elapsedRealtimeNanos() - done.writtenAt;
+            rtt[done.command().ordinal()].sample(ns / 1000000L);
+            metrics.roundTrip(done.command(), ns / 1000L);
+        }
+        self.removeMessages(MSG_TIMEOUT, done);
+        inFlight.remove(done);
+        processResponse();
+        done.finish(CommandStream.COMPLETED);
+        response = null;
+        updateActiveCommand();
+        release(done);
+    }
+
+    private void processPush(RingBuffer rcvd, Command push) {
+        CommandStream cmd = pushStreams[push.ordinal()];
+        response = takeResponse(rcvd, push, push.rsize);
+        cmd.setResponse(response);
+        activeCmd = cmd;
+        processResponse();
+        response = null;
+        updateActiveCommand();
+    }
+
+    // Returns the next response for the given command, or null if it hasn't been
+    // received completely yet. Size is the number of bytes of the response if known,
+    // otherwise the number of bytes available. The size in front of a variable size
+    // response is dropped, the response gets a buffer of its own.
+    private byte[] takeResponse(RingBuffer rcvd, Command cmd, int size) {
+        if (cmd == Command.NONE) {
+            // unsolicited bytes: take everything there is
+            byte[] data = new byte[size];
+            rcvd.read(data, 0, size);
+            return data;
+        }
+        if (-1 == cmd.rsize) {
+            int length = responseSize(rcvd, cmd, 0);
+            if (length < 0 || rcvd.available() < length) {
+                return null;
+            }
+            rcvd.skip(1);
+            byte[] data = new byte[length - 1];
+            long copied = rcvd.copied();
+            rcvd.read(data, 0, data.length);
+            responseBytesCopied += rcvd.copied() - copied;
+            responseCount += 1;
+            return data;
+        }
+        if (rcvd.available() < cmd.rsize) {
+            return null;
+        }
+        byte[] data = responseBuffers[cmd.ordinal()];
+        if (null == data) {
+            data = new byte[cmd.rsize];
+            responseBuffers[cmd.ordinal()] = data;
+        }
+        long copied = rcvd.copied();
+        rcvd.read(data, 0, cmd.rsize);
+        responseBytesCopied += rcvd.copied() - copied;
+        responseCount += 1;
+        return data;
+    }
+
+    // Number of bytes the response of the given command takes in the buffer starting at
+    // offset, including the size in front of a variable size response. -1 if that isn't
+    // known until more bytes are received.
+    private static int responseSize(RingBuffer rcvd, Command cmd, int offset) {
+        if (-1 != cmd.rsize) {
+            return Math.max(0, cmd.rsize);
+        }
+        return rcvd.available() > offset ? 1 + (rcvd.get(offset) & 0xFF) : -1;
+    }
+
+    // Number of bytes received for the response currently being assembled.
+    protected int received() {
+        return null == pending ? 0 : pending.available();
+    }
+
+    protected static String hexDump(byte[] bytes, int length) {
+        return hexDump(bytes, 0, length);
+    }
+    protected static String hexDump(byte[] bytes, int offset, int length) {
+        if (length > 0) {
+            char[] buf = new char[length * 3 + 1];
+            buf[0] = '{';
+            for (int i = 0; i < length; ++i) {
+                buf[3 * i + 1] = hex[(bytes[offset + i] >> 4) & 0x0F];
+                buf[3 * i + 2] = hex[(bytes[offset + i] >> 0) & 0x0F];
+                buf[3 * i + 3] = ':';
+            }
+            buf[length*3] = '}';
+            return new String(buf);
+        }
+        return "{}";
+    }
+    protected static String hexDump(RingBuffer bytes, int offset, int length) {
         if (length > 0) {
             char[] buf = new char[length * 3 + 1];
             buf[0] = '{';
             for (int i = 0; i < length; ++i) {
-                buf[3 * i + 1] = hex[(bytes[i] >> 4) & 0x0F];
-                buf[3 * i + 2] = hex[(bytes[i] >> 0) & 0x0F];
+                int b = bytes.get(offset + i);
+                buf[3 * i + 1] = hex[(b >> 4) & 0x0F];
+                buf[3 * i + 2] = hex[(b >> 0) & 0x0F];
                 buf[3 * i + 3] = ':';
             }
             buf[length*3] = '}';
@@ -121,29 +969,297 @@ public class RobotBase
         return "{}";
     }
 
+    // A stream for the given command from this robot's own pool, can be called from any
+    // thread. The pool isn't shared with other robots, so its lock is only contended by
+    // the threads sending to this one.
+    protected CommandStream obtain(Command cmd) {
+        return streams.obtain(cmd);
+    }
+
     // Only useful if the robot has single byte commands, no header, no payload, no checksum,...
     protected void sendCommand(Command cmd) {
-        sendCommand(new CommandStream(cmd));
+        sendCommand(obtain(cmd));
     }
 
+    // Can be called from any thread. Commands sent from other threads are handed over to
+    // the thread RobotBase runs on, with Overflow.BLOCK the sender first waits until there
+    // is room in the queue. The thread RobotBase runs on can't wait for the queue to drain,
+    // for it BLOCK is the same as DROP_NEWEST.
     protected void sendCommand(CommandStream cmd) {
-        Log.d(LOGTAG, "sendCommand(" + cmd.command() + ")");
-        cmdQueue.add(cmd);
-        if (activeCmd.command() == Command.NONE) {
-            scheduleNextCommand();
+        cmd.queuedAt = SystemClock.elapsedRealtimeNanos();
+        if (Looper.myLooper() == self.getLooper()) {
+            enqueue(cmd, false);
+        } else {
+            boolean reserved = CommandQueue.Overflow.BLOCK == queueOverflow && reserve();
+            self.sendMessage(self.obtainMessage(MSG_SEND, reserved ? 1 : 0, 0, cmd));
         }
     }
 
+    private void enqueue(CommandStream cmd, boolean reserved) {
+        trace.command(cmd.command());
+        if (Connection.CLOSED == connection) {
+            cmd.finish(CommandStream.ABORTED);
+            cmd.recycle();
+            queueChanged();
+            return;
+        }
+        cache.invalidate(cmd.command());
+        if (cache.isCached(cmd.command()) && fromCache(cmd)) {
+            queueChanged();
+            return;
+        }
+        switch (cmdQueue.add(cmd, reserved)) {
+            case CommandQueue.REPLACED:
+                metrics.coalesced();
+                break;
+            case CommandQueue.DROPPED:
+                metrics.dropped();
+                break;
+        }
+        queueChanged();
+        scheduleNextCommand();
+    }
+
+    // Answer the request from the cache, or merge it onto the same request on its way.
+    // Returns false if it has to be sent, the cache then waits for its response.
+    private boolean fromCache(CommandStream cmd) {
+        ResponseCache.Entry entry = cache.entry(cmd);
+        if (cache.isFresh(entry, SystemClock.elapsedRealtimeNanos())) {
+            metrics.cacheHit();
+            answer(cmd, entry.response);
+            return true;
+        }
+        if (null != entry.leader) {
+            metrics.cacheMerged();
+            CommandStream last = entry.leader;
+            while (null != last.merged) {
+                last = last.merged;
+            }
+            last.merged = cmd;
+            return true;
+        }
+        entry.leader = cmd;
+        cmd.observer = cacheFill;
+        return false;
+    }
+
+    // Hand a response the command wasn't sent for to processResponse, see ResponseCache.
+    private void answer(CommandStream cmd, byte[] resp) {
+        CommandStream active = activeCmd;
+        byte[] received = response;
+        activeCmd = cmd;
+        response = resp;
+        cmd.setResponse(resp);
+        processResponse();
+        cmd.finish(CommandStream.COMPLETED);
+        activeCmd = active;
+        response = received;
+        cmd.recycle();
+    }
+
+    // Wait until there is room in the queue for one more command, returns false if the
+    // thread got interrupted.
+    private boolean reserve() {
+        synchronized (room) {
+            ++waiting;
+            try {
+                while (queued + reserved >= queueLimit) {
+                    room.wait();
+                }
+                ++reserved;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                --waiting;
+            }
+        }
+    }
+
+    // Publish the size of the queue, and wake up senders waiting for room.
+    private void queueChanged() {
+        queued = cmdQueue.size();
+        metrics.queue(queued, inFlight.size());
+        if (0 < waiting) {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+    }
+
+    // Send queued commands as long as the window isn't full. Commands without a
+    // response are outstanding until their MSG_WRITE is received.
     private void scheduleNextCommand() {
-        if (cmdQueue.isEmpty()) {
-            activeCmd = new CommandStream(Command.NONE);
+        if (!linkUp()) {
+            return;
+        }
+        if (null != batch) {
+            scheduleBatch();
+            return;
+        }
+        while (!cmdQueue.isEmpty() && outstanding() < window && responseFits(cmdQueue.peek())) {
+            CommandStream cmd = cmdQueue.poll();
+            dispatch(cmd);
+            if (0 <= cmd.seq) {
+                write(frame, 0, encode(cmd, frame, 0));
+            } else {
+                write(cmd.requestBuffer(), 0, cmd.requestLength());
+            }
+        }
+    }
+
+    private void scheduleBatch() {
+        int slots = window - outstanding();
+        if (cmdQueue.isEmpty() || slots <= 0) {
+            return;
+        }
+        int queued = 0;
+        int responses = responseBytes();
+        for (CommandStream cmd : cmdQueue) {
+            responses += responseLength(cmd.command());
+            if (responses > Protocol.TX_BUFFER_SIZE - 1 && (queued > 0 || !inFlight.isEmpty())) {
+                // the robot has no room for more responses, send what fits
+                if (0 == queued) {
+                    return;
+                }
+                slots = 0;
+                break;
+            }
+            queued += wireLength(cmd, framing);
+            if (0 == --slots || queued >= batchSize) {
+                break;
+            }
+        }
+        if (0 == batchDelay || queued >= batchSize || 0 == slots) {
+            self.removeMessages(MSG_FLUSH);
+            flushBatch();
+        } else if (!self.hasMessages(MSG_FLUSH)) {
+            self.sendEmptyMessageDelayed(MSG_FLUSH, batchDelay);
+        }
+    }
+
+    // Write as many queued commands as the window allows, batchSize bytes at a time.
+    private void flushBatch() {
+        while (null != batch && linkUp() && !cmdQueue.isEmpty() && outstanding() < window && responseFits(cmdQueue.peek())) {
+            int length = 0;
+            while (!cmdQueue.isEmpty() && outstanding() < window && responseFits(cmdQueue.peek())) {
+                CommandStream cmd = cmdQueue.peek();
+                int size = wireLength(cmd, framing);
+                if (length > 0 && length + size > batchSize) {
+                    break;
+                }
+                cmdQueue.poll();
+                dispatch(cmd);
+                length += encode(cmd, batch, length);
+            }
+            write(batch, 0, length);
+        }
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        trace.written(bytes, offset, length);
+        if (!io.write(bytes, offset, length)) {
+            // there are never more writes pending than the window allows, the link is
+            // stuck and reconnected like any other lost link
+            Log.e(LOGTAG, "Link stuck, " + Link.QUEUE_SIZE + " writes pending");
+            io.cancel();
+        }
+    }
+
+    // Number of bytes the command takes on the wire.
+    private static int wireLength(CommandStream cmd, boolean framed) {
+        return framed ? cmd.payloadLength() + FrameCodec.OVERHEAD : cmd.requestLength();
+    }
+
+    // Copy the command as it goes on the wire into dst, returns the number of bytes.
+    private static int encode(CommandStream cmd, byte[] dst, int offset) {
+        if (0 <= cmd.seq) {
+            return FrameCodec.encode(cmd.seq, cmd.requestBuffer(), cmd.payloadLength(), dst, offset);
+        }
+        System.arraycopy(cmd.requestBuffer(), 0, dst, offset, cmd.requestLength());
+        return cmd.requestLength();
+    }
+
+    private void dispatch(CommandStream cmd) {
+        if (framing) {
+            cmd.seq = nextSeq;
+            nextSeq = (nextSeq + 1) & 0xFF;
+        }
+        if (cmd.requiresResponse()) {
+            inFlight.add(cmd);
+        }
+        sent.add(cmd);
+        if (0 != cmd.queuedAt) {
+            metrics.queueWait((SystemClock.elapsedRealtimeNanos() - cmd.queuedAt) / 1000L);
+        }
+        queueChanged();
+        if (activeCmd.command() == Command.NONE) {
+            updateActiveCommand();
+        }
+    }
+
+    // Return a command to the pool once it's been written and its response processed.
+    private void release(CommandStream cmd) {
+        if (!sent.contains(cmd) && !inFlight.contains(cmd)) {
+            cmd.recycle();
+        }
+    }
+
+    // Bytes the robot queues for the biggest response to the command, as it goes on the wire.
+    private int responseLength(Command c) {
+        if (0 == c.rsize) {
+            return 0;
+        }
+        if (framing) {
+            return c.rmax + 1 + FrameCodec.OVERHEAD;
+        }
+        return streaming ? c.rmax + 1 : c.rmax;
+    }
+
+    // Bytes the robot may still have to queue for the responses of the commands in flight,
+    // and a pushed frame while streaming.
+    private int responseBytes() {
+        int bytes = streaming ? maxPushed + 1 + (framing ? FrameCodec.OVERHEAD : 0) : 0;
+        for (CommandStream cmd : inFlight) {
+            bytes += responseLength(cmd.command());
+        }
+        return bytes;
+    }
+
+    // Whether the robot has room to queue the response to cmd behind those of the
+    // commands in flight. One command is always allowed, the buffer fits any response.
+    private boolean responseFits(CommandStream cmd) {
+        return inFlight.isEmpty()
+                || responseBytes() + responseLength(cmd.command()) <= Protocol.TX_BUFFER_SIZE - 1;
+    }
+
+    private int outstanding() {
+        int count = inFlight.size();
+        for (CommandStream cmd : sent) {
+            if (!cmd.requiresResponse()) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private void updateActiveCommand() {
+        queueChanged();
+        if (inFlight.isEmpty()) {
+            activeCmd = idle;
         } else {
-            activeCmd = cmdQueue.removeFirst();
-            io.write(activeCmd.getRequest());
+            activeCmd = inFlight.getFirst();
         }
     }
 
     protected void clearMessageQueue() {
-        cmdQueue.clear();
+        clearMessageQueue(CommandQueue.CONTROL);
+    }
+    // Abort the queued commands of the given lane and all lanes of lower priority, e.g.
+    // after a response was lost. Only the queue's overflow policy drops commands.
+    protected void clearMessageQueue(int fromLane) {
+        cmdQueue.clear(fromLane, CommandStream.ABORTED);
+        queueChanged();
     }
 }
@@ -0,0 +1,66 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A team of robots whose links share the threads of one ConnectionPool.
+ *
+ * Only the I/O threads are shared. Each Robot keeps its own command queue, window,
+ * metrics, keepalive and reconnects, so a robot out of range or a congested queue
+ * doesn't hold up the others (except for a write blocking on its link, see
+ * ConnectionPool). The robots can live on the same thread, e.g. the UI's, or each on a
+ * thread of its own: \c add and \c remove have to be called on the thread the Robot
+ * lives on, like everything else but sending commands.
+ */
+
+public class RobotManager {
+
+    private final ConnectionPool pool;
+    private final List<Robot> robots = new CopyOnWriteArrayList<>();
+
+    public RobotManager(int readers, int writers, int connectors) {
+        pool = new ConnectionPool(readers, writers, connectors);
+    }
+
+    // A new robot connected over the given Transport, reporting to the given Handler.
+    public Robot add(Transport transport, Handler handler) {
+        Robot robot = new Robot(transport, handler, pool);
+        robots.add(robot);
+        return robot;
+    }
+
+    // Disconnects the robot for good.
+    public void remove(Robot robot) {
+        if (robots.remove(robot)) {
+            robot.disconnect();
+        }
+    }
+
+    public List<Robot> robots() {
+        return Collections.unmodifiableList(robots);
+    }
+
+    public ConnectionPool pool() {
+        return pool;
+    }
+
+    // The metrics of all robots, in the order they were added. Can be called from any
+    // thread.
+    public LinkMetrics.Snapshot[] metrics() {
+        Robot[] all = robots.toArray(new Robot[0]);
+        LinkMetrics.Snapshot[] snapshots = new LinkMetrics.Snapshot[all.length];
+        for (int i = 0; i < all.length; ++i) {
+            snapshots[i] = all[i].metrics().snapshot();
+        }
+        return snapshots;
+    }
+
+    // Stops the pool's threads, the robots should have been removed by then.
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,782 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * In process stand-in for the robot, mostly useful to run and measure the protocol
+ * without a phone or a robot.
+ *
+ * The simulator implements the same command processing as commands.cpp (Arduino)
+ * and commands.c (Mynewt):
+ *    PING      ... increments the value by (increment * 0.001) and responds with 0x00
+ *    ID        ... responds with a 30 byte app_id_t
+ *    VALUE_GET ... responds with the value as little endian float
+ *    VALUE_SET ... receives a value_t followed by the (big endian) checksum and
+ *                  applies it if the checksum matches. There is no response.
+ *    SUBSCRIBE ... receives a subscribe_t followed by the checksum, responds with a
+ *                  status byte and then streams the value every subscribe_t.period ms.
+ *                  While streaming all responses are tagged.
+ *    UNSUBSCRIBE . responds with a status byte and stops streaming
+ *    ARRAY_GET ... receives an array_get_t followed by the checksum, moves each channel
+ *                  of the sensor array a little and responds with the next snapshot:
+ *                  its size, an array_header_t and the channels (see SensorArray)
+ *    ARRAY_SET ... receives the size, an array_header_t and the channels followed by
+ *                  the checksum and sets the channels if it's valid. No response.
+ * As on the robot the payload of a command has to arrive within 250ms, otherwise it
+ * is dropped.
+ *
+ * Commands can also be sent in frames (see FrameCodec), which the simulator answers
+ * with a frame carrying the same sequence number. Frames with an invalid length or CRC
+ * are dropped and the receiver resynchronizes on the next sync byte, see frame.c.
+ * The values streamed after a framed SUBSCRIBE are framed as well. A framed command too
+ * long for the robot's receive buffer is answered with TAG_REJECTED.
+ *
+ * Both directions of the connection are piped streams which can be throttled to a
+ * given baud rate (10 bits per byte, like a UART with 8N1) and delayed by a fixed
+ * latency. A baud rate of 0 disables throttling. \c setErrorRate makes the link lossy,
+ * bytes get dropped or have a bit flipped at random.
+ *
+ * \c dropLink cuts the connection as if the robot drove out of range: the app's reads
+ * fail and attempts to connect fail until the robot is back in range. The robot's
+ * state, including streaming, survives the dropout, just like on a robot whose BT
+ * module lost its link. Each connect starts over with a fresh link. \c fadeLink does the
+ * same without the app noticing: nothing gets through any more, but the reads only
+ * fail once the app closes the link itself (see Keepalive).
+ */
+
+public class RobotSimulator implements Transport {
+
+    private final static int RX_TIMEOUT_MS = 250;
+    private final static int TAG_RESPONSE = 0xA5;
+    private final static int TAG_VALUE = 0xA6;
+    private final static int CMD_VALUE_SET = 0x82;
+    private final static int CMD_SUBSCRIBE = 0x83;
+    private final static int CMD_ARRAY_GET = 0x84;
+    private final static int CMD_ARRAY_SET = 0x85;
+
+    private final int baud;
+    private final int latencyMS;
+    // the current link, replaced by each connect
+    private volatile Channel uplink;     // app -> robot
+    private volatile Channel downlink;   // robot -> app
+    private volatile AppInput appIn;
+    private volatile PipedInputStream robotIn;
+    private Thread robot;
+    private volatile long reachableAt;
+    private double dropRate;
+    private double corruptRate;
+    private Random uplinkRandom;
+    private Random downlinkRandom;
+    private long pastErrors;
+
+    // robot state, see commands.cpp
+    private float value = 0;
+    private int increment = 1;
+    private final byte[] appId;
+    private final short[] channels = new short[Protocol.ARRAY_CHANNELS];
+    private final short[] sentChannels = new short[Protocol.ARRAY_CHANNELS];
+    private int sentSnapshot;
+    private final byte[] rxBuffer = new byte[1 + Protocol.ArrayHeader.SIZE + 3 * Protocol.ARRAY_CHANNELS + 2];
+    private int rxCount;
+    private int rxSize;
+    private int rxCmd;
+    private long rxStarted;
+    private volatile int streamPeriod;
+    private boolean streamFramed;
+    private int pushSeq;
+    private Thread streamer;
+    // frame reception, see frame.c
+    private final byte[] rxFrame = new byte[FrameCodec.MAX_PAYLOAD + FrameCodec.OVERHEAD];
+    private int rxFrameCount;
+    private int rxSeq = -1;
+    private int rxId;
+    private int rxPayload;
+
+    public RobotSimulator() {
+        this(0, 0);
+    }
+
+    public RobotSimulator(int baudRate, int latency) {
+        baud = baudRate;
+        latencyMS = latency;
+        appId = new byte[30];
+        putString(appId, 0, 9, "java-sim");
+        putString(appId, 9, 12, "Jan  1 2018");
+        putString(appId, 21, 9, "00:00:00");
+        for (int i = 0; i < channels.length; ++i) {
+            channels[i] = (short)(1000 * (i - 8));
+        }
+    }
+
+    public synchronized float value() {
+        return value;
+    }
+
+    public synchronized int channel(int channel) {
+        return channels[channel];
+    }
+
+    // Drop the given fraction of bytes in both directions and flip a random bit in
+    // another fraction of them.
+    public synchronized void setErrorRate(double drop, double corrupt, long seed) {
+        dropRate = drop;
+        corruptRate = corrupt;
+        uplinkRandom = new Random(seed);
+        downlinkRandom = new Random(seed + 1);
+        if (null != uplink) {
+            uplink.setErrorRate(drop, corrupt, uplinkRandom);
+            downlink.setErrorRate(drop, corrupt, downlinkRandom);
+        }
+    }
+
+    // Number of bytes dropped or corrupted so far.
+    public synchronized long errors() {
+        return pastErrors + (null == uplink ? 0 : uplink.errors() + downlink.errors());
+    }
+
+    // Cut the link, connecting again fails for the next downMS.
+    public synchronized void dropLink(int downMS) {
+        reachableAt = System.nanoTime() + downMS * 1000000L;
+        closeLink();
+    }
+
+    // Like dropLink, but the link stays open and silently swallows everything until the
+    // app closes it, like a Bluetooth link before its supervision timeout expires.
+    public synchronized void fadeLink(int downMS) {
+        reachableAt = System.nanoTime() + downMS * 1000000L;
+        if (null != uplink) {
+            uplink.mute();
+            downlink.mute();
+        }
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (System.nanoTime() < reachableAt) {
+            throw new IOException("Robot out of range");
+        }
+        closeLink();
+        final PipedInputStream in = new PipedInputStream(4096);
+        appIn = new AppInput(4096);
+        robotIn = in;
+        uplink = new Channel(new PipedOutputStream(robotIn), baud, latencyMS);
+        downlink = new Channel(new PipedOutputStream(appIn), baud, latencyMS);
+        if (null != uplinkRandom) {
+            uplink.setErrorRate(dropRate, corruptRate, uplinkRandom);
+            downlink.setErrorRate(dropRate, corruptRate, downlinkRandom);
+        }
+        uplink.start();
+        downlink.start();
+        robot = new Thread("RobotSimulator") {
+            @Override
+            public void run() {
+                robotLoop(in);
+            }
+        };
+        robot.setDaemon(true);
+        robot.start();
+        notifyAll();
+        if (null == streamer) {
+            streamer = new Thread("RobotSimulator.stream") {
+                @Override
+                public void run() {
+                    streamLoop();
+                }
+            };
+            streamer.setDaemon(true);
+            streamer.start();
+        }
+    }
+
+    // The channels close their pipes, which ends the reads on both ends.
+    private void closeLink() {
+        if (null == uplink) {
+            return;
+        }
+        pastErrors += uplink.errors() + downlink.errors();
+        try {
+            uplink.close();
+            downlink.close();
+        } catch (IOException e) {
+            // can't happen, closing a channel doesn't throw
+        }
+        robot.interrupt();
+        appIn.linkClosed();
+        uplink = null;
+        downlink = null;
+        appIn = null;
+        robotIn = null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        InputStream in = appIn;
+        if (null == in) {
+            throw new IOException("Link down");
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        OutputStream out = uplink;
+        if (null == out) {
+            throw new IOException("Link down");
+        }
+        return out;
+    }
+
+    // Only closes the current link, the simulated robot keeps running and can be
+    // connected again.
+    @Override
+    public synchronized void close() throws IOException {
+        closeLink();
+    }
+
+    private void robotLoop(PipedInputStream in) {
+        byte[] data = new byte[64];
+        // whatever the UART was receiving got lost with the previous link
+        synchronized (this) {
+            rxCount = 0;
+            rxFrameCount = 0;
+        }
+        while (true) {
+            try {
+                int count = in.read(data);
+                if (count < 0) {
+                    break;
+                }
+                for (int i = 0; i < count; ++i) {
+                    receive(data[i] & 0xFF);
+                }
+            } catch (IOException e) {
+                break;
+            }
+        }
+    }
+
+    private void streamLoop() {
+        try {
+            while (true) {
+                int period;
+                synchronized (this) {
+                    // nothing to stream to while there is no link
+                    while (0 == streamPeriod || null == downlink) {
+                        wait();
+                    }
+                    period = streamPeriod;
+                }
+                Thread.sleep(period);
+                synchronized (this) {
+                    // the frame is written under the lock so it can't end up in the
+                    // middle of a response
+                    if (0 != streamPeriod && null != downlink) {
+                        byte[] frame = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN).put((byte)TAG_VALUE).putFloat(value).array();
+                        if (streamFramed) {
+                            byte[] framed = new byte[frame.length + FrameCodec.OVERHEAD];
+                            FrameCodec.encode(pushSeq++, frame, frame.length, framed, 0);
+                            frame = framed;
+                        }
+                        try {
+                            downlink.write(frame);
+                        } catch (IOException e) {
+                            // can't happen, the link is only closed under the lock
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    // equivalent of uartRxCharacter and commandProcess
+    private void receive(int b) throws IOException {
+        if (0 != rxCount && System.nanoTime() - rxStarted > RX_TIMEOUT_MS * 1000000L) {
+            rxCount = 0;
+        }
+        if (0 != rxCount) {
+            rxBuffer[rxSize - rxCount] = (byte)b;
+            if (0 == --rxCount) {
+                switch (rxCmd) {
+                    case CMD_VALUE_SET: applyValue(); break;
+                    case CMD_SUBSCRIBE: applySubscribe(); break;
+                    case CMD_ARRAY_GET: applyArrayGet(); break;
+                    case CMD_ARRAY_SET:
+                        if (1 == rxSize) {
+                            receiveArraySet();
+                        } else {
+                            applyArraySet();
+                        }
+                        break;
+                }
+            }
+            return;
+        }
+        if (0 != rxFrameCount || FrameCodec.SYNC == b) {
+            receiveFrame(b);
+            return;
+        }
+        process(b);
+    }
+
+    // equivalent of frameReceive
+    private void receiveFrame(int b) throws IOException {
+        rxFrame[rxFrameCount++] = (byte)b;
+        while (0 != rxFrameCount) {
+            int length = rxFrame[1] & 0xFF;
+            if (FrameCodec.SYNC != (rxFrame[0] & 0xFF)
+                    || (rxFrameCount > 1 && (0 == length || FrameCodec.MAX_PAYLOAD < length))) {
+                resyncFrame();
+                continue;
+            }
+            if (rxFrameCount < 2 || rxFrameCount < length + FrameCodec.OVERHEAD) {
+                return;
+            }
+            int end = FrameCodec.HEADER_SIZE + length;
+            int crc = (rxFrame[end] & 0xFF) << 8 | (rxFrame[end + 1] & 0xFF);
+            if (crc != FrameCodec.crc16(0xFFFF, rxFrame, 1, length + 2)) {
+                resyncFrame();
+                continue;
+            }
+            processFrame(rxFrame[2] & 0xFF, rxFrame[3] & 0xFF, length - 1);
+            System.arraycopy(rxFrame, end + 2, rxFrame, 0, rxFrameCount - end - 2);
+            rxFrameCount -= end + 2;
+        }
+    }
+
+    private void resyncFrame() {
+        int skip = 1;
+        while (skip < rxFrameCount && FrameCodec.SYNC != (rxFrame[skip] & 0xFF)) {
+            ++skip;
+        }
+        System.arraycopy(rxFrame, skip, rxFrame, 0, rxFrameCount - skip);
+        rxFrameCount -= skip;
+    }
+
+    // equivalent of commandFrame, the payload starts at rxFrame[4]
+    private void processFrame(int seq, int id, int size) throws IOException {
+        rxSeq = seq;
+        rxPayload = size;
+        if (size <= rxBuffer.length) {
+            rxId = id;
+            System.arraycopy(rxFrame, FrameCodec.HEADER_SIZE + 1, rxBuffer, 0, size);
+            process(id);
+        } else {
+            rxId = Protocol.TAG_REJECTED;
+            respond(new byte[0]);
+        }
+        rxSeq = -1;
+    }
+
+    private void process(int b) throws IOException {
+        switch (b) {
+            case 0x00:  // CMD_PING
+                synchronized (this) {
+                    value += increment * 0.001;
+                }
+                respond(new byte[] { 0 });
+                break;
+
+            case 0x01:  // CMD_ID
+                respond(appId);
+                break;
+
+            case 0x02:  // CMD_VALUE_GET
+                respond(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(value()).array());
+                break;
+
+            case 0x03:  // CMD_UNSUBSCRIBE
+                synchronized (this) {
+                    respond(new byte[] { 0 });
+                    streamPeriod = 0;
+                }
+                break;
+
+            case CMD_VALUE_SET:
+                if (-1 == rxSeq) {
+                    receivePayload(b, 10);
+                } else if (8 == rxPayload) {
+                    applyValue();
+                }
+                break;
+
+            case CMD_SUBSCRIBE:
+                if (-1 == rxSeq) {
+                    receivePayload(b, 4);
+                } else if (2 == rxPayload) {
+                    applySubscribe();
+                }
+                break;
+
+            case CMD_ARRAY_GET:
+                if (-1 == rxSeq) {
+                    receivePayload(b, Protocol.ArrayGet.SIZE + 2);
+                } else if (Protocol.ArrayGet.SIZE == rxPayload) {
+                    applyArrayGet();
+                }
+                break;
+
+            case CMD_ARRAY_SET:
+                if (-1 == rxSeq) {
+                    receivePayload(b, 1);
+                } else {
+                    applyArraySet();
+                }
+                break;
+        }
+    }
+
+    private void receivePayload(int cmd, int size) {
+        rxCmd = cmd;
+        rxSize = size;
+        rxCount = size;
+        rxStarted = System.nanoTime();
+    }
+
+    // Send a response, framed if the command was framed, tagged if streaming
+    private synchronized void respond(byte[] data) throws IOException {
+        if (null == downlink) {
+            throw new IOException("Link down");
+        }
+        if (-1 != rxSeq) {
+            byte[] payload = new byte[data.length + 1];
+            payload[0] = (byte)rxId;
+            System.arraycopy(data, 0, payload, 1, data.length);
+            byte[] frame = new byte[payload.length + FrameCodec.OVERHEAD];
+            FrameCodec.encode(rxSeq, payload, payload.length, frame, 0);
+            downlink.write(frame);
+        } else if (0 == streamPeriod) {
+            downlink.write(data);
+        } else {
+            byte[] frame = new byte[data.length + 1];
+            frame[0] = (byte)TAG_RESPONSE;
+            System.arraycopy(data, 0, frame, 1, data.length);
+            downlink.write(frame);
+        }
+    }
+
+    private boolean checksumValid(int size) {
+        if (-1 != rxSeq) {
+            // the frame's CRC covers the payload
+            return true;
+        }
+        int cs = 0;
+        for (int i = 0; i < size; ++i) {
+            cs += rxBuffer[i] & 0xFF;
+        }
+        return ((cs >> 8) & 0xFF) == (rxBuffer[size] & 0xFF) && (cs & 0xFF) == (rxBuffer[size + 1] & 0xFF);
+    }
+
+    private void applyValue() {
+        if (checksumValid(8)) {
+            ByteBuffer bb = ByteBuffer.wrap(rxBuffer).order(ByteOrder.LITTLE_ENDIAN);
+            synchronized (this) {
+                value = bb.getFloat(0);
+                increment = bb.getInt(4);
+            }
+        }
+    }
+
+    private void applySubscribe() throws IOException {
+        int period = ByteBuffer.wrap(rxBuffer).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF;
+        if (checksumValid(2) && 0 != period) {
+            synchronized (this) {
+                respond(new byte[] { 0 });
+                streamPeriod = period;
+                streamFramed = -1 != rxSeq;
+                notifyAll();
+            }
+        } else {
+            respond(new byte[] { 1 });
+        }
+    }
+
+    // see applyArrayGet in commands.cpp
+    private void applyArrayGet() throws IOException {
+        if (!checksumValid(Protocol.ArrayGet.SIZE)) {
+            return;
+        }
+        int encoding = rxBuffer[0] & 0xFF;
+        int base = rxBuffer[1] & 0xFF;
+        if (Protocol.ARRAY_RAW != encoding && (Protocol.ARRAY_DELTA != encoding || 0 == base || base != sentSnapshot)) {
+            encoding = Protocol.ARRAY_VARINT;
+        }
+        byte[] data = new byte[1 + Protocol.ArrayHeader.SIZE + 3 * Protocol.ARRAY_CHANNELS];
+        int snapshot = sentSnapshot % 255 + 1;
+        data[1 + Protocol.ArrayHeader.ENCODING] = (byte)encoding;
+        data[1 + Protocol.ArrayHeader.SNAPSHOT] = (byte)snapshot;
+        data[1 + Protocol.ArrayHeader.BASE] = (byte)(Protocol.ARRAY_DELTA == encoding ? sentSnapshot : 0);
+        data[1 + Protocol.ArrayHeader.COUNT] = (byte)Protocol.ARRAY_CHANNELS;
+        int size = Protocol.ArrayHeader.SIZE;
+        synchronized (this) {
+            for (int i = 0; i < channels.length; ++i) {
+                channels[i] = (short)(channels[i] + i % 5 - 2);
+                if (Protocol.ARRAY_RAW == encoding) {
+                    data[1 + size] = (byte)channels[i];
+                    data[2 + size] = (byte)(channels[i] >> 8);
+                    size += 2;
+                } else if (Protocol.ARRAY_DELTA == encoding) {
+                    size += putVarint(data, 1 + size, channels[i] - sentChannels[i]);
+                } else {
+                    size += putVarint(data, 1 + size, channels[i]);
+                }
+                sentChannels[i] = channels[i];
+            }
+        }
+        sentSnapshot = snapshot;
+        data[0] = (byte)size;
+        respond(Arrays.copyOf(data, 1 + size));
+    }
+
+    // The size of a plain ARRAY_SET arrived, receive the rest and the checksum.
+    private void receiveArraySet() {
+        int size = rxBuffer[0] & 0xFF;
+        if (1 + size + 2 <= rxBuffer.length) {
+            rxSize = 1 + size + 2;
+            rxCount = size + 2;
+            rxStarted = System.nanoTime();
+        }
+    }
+
+    // rxBuffer holds the size, array_header_t and the channels (and the checksum).
+    private void applyArraySet() {
+        int end = 1 + (rxBuffer[0] & 0xFF);
+        int offset = 1 + Protocol.ArrayHeader.SIZE;
+        int encoding = rxBuffer[1 + Protocol.ArrayHeader.ENCODING] & 0xFF;
+        int count = rxBuffer[1 + Protocol.ArrayHeader.COUNT] & 0xFF;
+        if (end < offset || end + 2 > rxBuffer.length || (-1 != rxSeq && end != rxPayload)
+                || !checksumValid(end) || count > Protocol.ARRAY_CHANNELS) {
+            return;
+        }
+        short[] values = new short[count];
+        for (int i = 0; i < count; ++i) {
+            if (Protocol.ARRAY_RAW == encoding && offset + 2 <= end) {
+                values[i] = (short)((rxBuffer[offset] & 0xFF) | rxBuffer[offset + 1] << 8);
+                offset += 2;
+            } else if (Protocol.ARRAY_VARINT == encoding) {
+                int z = 0;
+                int shift = 0;
+                int x;
+                do {
+                    if (offset == end || shift > 28) {
+                        return;
+                    }
+                    x = rxBuffer[offset++];
+                    z |= (x & 0x7F) << shift;
+                    shift += 7;
+                } while (x < 0);
+                values[i] = (short)((z >>> 1) ^ -(z & 1));
+            } else {
+                return;
+            }
+        }
+        synchronized (this) {
+            System.arraycopy(values, 0, channels, 0, count);
+        }
+    }
+
+    // zigzag encoded varint, returns the number of bytes
+    private static int putVarint(byte[] dst, int offset, int v) {
+        int z = (v << 1) ^ (v >> 31);
+        int n = 0;
+        while (0 != (z & ~0x7F)) {
+            dst[offset + n++] = (byte)(z | 0x80);
+            z >>>= 7;
+        }
+        dst[offset + n++] = (byte)z;
+        return n;
+    }
+
+    private static void putString(byte[] dst, int offset, int size, String s) {
+        byte[] bytes = s.getBytes();
+        System.arraycopy(bytes, 0, dst, offset, Math.min(bytes.length, size - 1));
+    }
+
+    /**
+     * One direction of the simulated link. Bytes written to the channel are delivered
+     * to the pipe once they would have been transmitted at the given baud rate, plus
+     * the latency.
+     */
+    // The app's end of the downlink. Like a socket's, its \c available fails once the link
+    // is closed, so a ConnectionPool notices without a blocking read.
+    private static class AppInput extends PipedInputStream {
+        private volatile boolean closed;
+
+        AppInput(int size) {
+            super(size);
+        }
+
+        void linkClosed() {
+            closed = true;
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            int count = super.available();
+            if (0 == count && closed) {
+                throw new IOException("Link down");
+            }
+            return count;
+        }
+    }
+
+    private static class Channel extends OutputStream implements Runnable {
+        private final PipedOutputStream sink;
+        private final long byteNanos;
+        private final long latencyNanos;
+        private final LinkedList<Chunk> queue = new LinkedList<>();
+        private final Thread thread;
+        private long busyUntil;
+        private boolean closed;
+        private boolean muted;
+        private double dropRate;
+        private double corruptRate;
+        private Random random;
+        private long errors;
+
+        private static class Chunk {
+            final long due;
+            final byte[] data;
+            Chunk(long d, byte[] b) {
+                due = d;
+                data = b;
+            }
+        }
+
+        Channel(PipedOutputStream s, int baud, int latencyMS) {
+            sink = s;
+            byteNanos = 0 == baud ? 0 : 10 * 1000000000L / baud;
+            latencyNanos = latencyMS * 1000000L;
+            thread = new Thread(this, "RobotSimulator.Channel");
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        // Swallow everything from now on, including what's still in transit.
+        void mute() {
+            synchronized (queue) {
+                muted = true;
+                queue.clear();
+            }
+        }
+
+        void setErrorRate(double drop, double corrupt, Random r) {
+            synchronized (queue) {
+                dropRate = drop;
+                corruptRate = corrupt;
+                random = r;
+            }
+        }
+
+        long errors() {
+            synchronized (queue) {
+                return errors;
+            }
+        }
+
+        // Drop and corrupt bytes according to the error rates, returns the new length.
+        private int damage(byte[] data) {
+            int length = 0;
+            for (byte b : data) {
+                double r = random.nextDouble();
+                if (r < dropRate) {
+                    ++errors;
+                    continue;
+                }
+                if (r < dropRate + corruptRate) {
+                    ++errors;
+                    b ^= 1 << random.nextInt(8);
+                }
+                data[length++] = b;
+            }
+            return length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            byte[] data = new byte[len];
+            System.arraycopy(b, off, data, 0, len);
+            synchronized (queue) {
+                if (closed) {
+                    throw new IOException("Channel closed");
+                }
+                if (muted) {
+                    return;
+                }
+                if (null != random) {
+                    int length = damage(data);
+                    if (length < len) {
+                        byte[] damaged = new byte[length];
+                        System.arraycopy(data, 0, damaged, 0, length);
+                        data = damaged;
+                    }
+                }
+                long now = System.nanoTime();
+                busyUntil = Math.max(now, busyUntil) + len * byteNanos;
+                queue.add(new Chunk(busyUntil + latencyNanos, data));
+                queue.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (queue) {
+                closed = true;
+                queue.notifyAll();
+            }
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Chunk chunk;
+                    synchronized (queue) {
+                        while (!closed && queue.isEmpty()) {
+                            queue.wait();
+                        }
+                        if (closed) {
+                            break;
+                        }
+                        chunk = queue.removeFirst();
+                    }
+                    long delay = chunk.due - System.nanoTime();
+                    if (delay > 0) {
+                        Thread.sleep(delay / 1000000L, (int)(delay % 1000000L));
+                    }
+                    sink.write(chunk.data);
+                    sink.flush();
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                // closed
+            } catch (IOException e) {
+                // the other end is gone
+            }
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * Round trip time estimate for one Command, following TCP's retransmission timer
+ * (RFC 6298): a smoothed round trip time (SRTT) and its variation (RTTVAR) are
+ * updated with every measured round trip and the timeout is derived from them as
+ *     SRTT + max(1ms, 4 * RTTVAR)
+ * limited to the given floor and ceiling.
+ *
+ * Every timeout doubles the timeout until the next round trip is measured, so a
+ * link which suddenly got slower doesn't keep timing out.
+ */
+
+public class RttEstimator {
+
+    private float srtt;
+    private float rttvar;
+    private boolean valid;
+    private int backoff = 1;
+
+    public void sample(long rttMS) {
+        if (valid) {
+            rttvar = 0.75f * rttvar + 0.25f * Math.abs(srtt - rttMS);
+            srtt = 0.875f * srtt + 0.125f * rttMS;
+        } else {
+            srtt = rttMS;
+            rttvar = rttMS / 2f;
+            valid = true;
+        }
+        backoff = 1;
+    }
+
+    public void backoff() {
+        if (backoff < 64) {
+            backoff *= 2;
+        }
+    }
+
+    // Returns initialMS until the first round trip has been measured.
+    public int timeoutMS(int floorMS, int ceilingMS, int initialMS) {
+        float timeout = valid ? srtt + Math.max(1f, 4 * rttvar) : initialMS;
+        timeout *= backoff;
+        return (int)Math.max(floorMS, Math.min(ceilingMS, Math.ceil(timeout)));
+    }
+
+    public boolean valid() {
+        return valid;
+    }
+    public float srtt() {
+        return srtt;
+    }
+    public float rttvar() {
+        return rttvar;
+    }
+}
@@ -0,0 +1,181 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+/**
+ * The robot's sensor array, ARRAY_CHANNELS int16 channels, as of the last snapshot
+ * received with ARRAY_GET (see Robot.getArray).
+ *
+ * The robot numbers the snapshots it sends 1..255 and encodes the channels as they are
+ * (ARRAY_RAW, 2 bytes each), as zigzag varints (ARRAY_VARINT, 1 byte for -64..63) or
+ * as the varint of each channel's change since the snapshot the request is based on
+ * (ARRAY_DELTA). For a slowly changing array that's a byte per channel in a single round
+ * trip, instead of a VALUE_GET per channel. A request asks for the delta against
+ * \c snapshot, which the robot only sends if that is the last snapshot it sent -
+ * otherwise it falls back to ARRAY_VARINT, so a lost response costs one full snapshot.
+ *
+ * Responses are decoded straight into the int[] of the channels, \c get copies them
+ * into a float[] with a scale, neither allocates. A response which doesn't decode, or a
+ * delta against a snapshot this array doesn't have, leaves the channels alone and
+ * resets the snapshot, the next request then asks for all of them.
+ *
+ * Not thread safe, the array is decoded on the thread the Robot runs on.
+ */
+
+public class SensorArray {
+
+    // Biggest response to ARRAY_GET without its size, every channel a 3 byte varint.
+    public static final int MAX_SIZE = Protocol.ArrayHeader.SIZE + 3 * Protocol.ARRAY_CHANNELS;
+
+    private final int[] channels = new int[Protocol.ARRAY_CHANNELS];
+    private final int[] decoded = new int[Protocol.ARRAY_CHANNELS];
+    private int count;
+    private int snapshot;
+    private int encoding = Protocol.ARRAY_DELTA;
+
+    // Number of the snapshot the channels are from, 0 if there is none.
+    public int snapshot() {
+        return snapshot;
+    }
+
+    // Number of channels, 0 until the first snapshot was received.
+    public int size() {
+        return count;
+    }
+
+    public int get(int channel) {
+        return channels[channel];
+    }
+
+    // Copy the channels into dst, returns the number of channels.
+    public int get(int[] dst) {
+        System.arraycopy(channels, 0, dst, 0, count);
+        return count;
+    }
+
+    // Copy the channels times scale into dst, returns the number of channels.
+    public int get(float[] dst, float scale) {
+        for (int i = 0; i < count; ++i) {
+            dst[i] = channels[i] * scale;
+        }
+        return count;
+    }
+
+    // What ARRAY_GET asks for, ARRAY_RAW, ARRAY_VARINT or ARRAY_DELTA (the default).
+    public void setEncoding(int enc) {
+        encoding = enc;
+    }
+    public int encoding() {
+        return encoding;
+    }
+
+    // Forget the snapshot, the next response has all channels.
+    public void reset() {
+        snapshot = 0;
+    }
+
+    // Decode the response of an ARRAY_GET into the channels, returns false if it isn't
+    // valid or can't be applied.
+    boolean decode(CommandStream s) {
+        byte[] b = s.responseBuffer();
+        if (null == b || b.length < Protocol.ArrayHeader.SIZE) {
+            return invalid();
+        }
+        int enc = Protocol.ArrayHeader.encoding(s);
+        int snap = Protocol.ArrayHeader.snapshot(s);
+        int n = Protocol.ArrayHeader.count(s);
+        if (0 == snap || n > channels.length) {
+            return invalid();
+        }
+        if (Protocol.ARRAY_DELTA == enc && (0 == snapshot || Protocol.ArrayHeader.base(s) != snapshot || n != count)) {
+            return invalid();
+        }
+        int o = Protocol.ArrayHeader.SIZE;
+        for (int i = 0; i < n; ++i) {
+            if (Protocol.ARRAY_RAW == enc) {
+                if (o + 2 > b.length) {
+                    return invalid();
+                }
+                decoded[i] = (short)Protocol.getShort(b, o);
+                o += 2;
+            } else if (Protocol.ARRAY_VARINT == enc || Protocol.ARRAY_DELTA == enc) {
+                int z = 0;
+                int shift = 0;
+                int x;
+                do {
+                    if (o == b.length || shift > 28) {
+                        return invalid();
+                    }
+                    x = b[o++];
+                    z |= (x & 0x7F) << shift;
+                    shift += 7;
+                } while (x < 0);
+                int v = (z >>> 1) ^ -(z & 1);
+                decoded[i] = Protocol.ARRAY_DELTA == enc ? channels[i] + v : v;
+            } else {
+                return invalid();
+            }
+        }
+        if (o != b.length) {
+            return invalid();
+        }
+        System.arraycopy(decoded, 0, channels, 0, n);
+        count = n;
+        snapshot = snap;
+        return true;
+    }
+
+    private boolean invalid() {
+        snapshot = 0;
+        return false;
+    }
+
+    // Append the size, the array_header_t and the first count values (int16) to the
+    // request of an ARRAY_SET, as varints unless that's bigger than ARRAY_RAW. Returns
+    // false if the values don't fit.
+    static boolean write(CommandStream s, int[] values, int count) {
+        if (count > Protocol.ARRAY_CHANNELS) {
+            return false;
+        }
+        int varints = 0;
+        for (int i = 0; i < count; ++i) {
+            if (values[i] != (short)values[i]) {
+                return false;
+            }
+            varints += varintSize(values[i]);
+        }
+        int enc = varints < 2 * count ? Protocol.ARRAY_VARINT : Protocol.ARRAY_RAW;
+        int o = s.claim(1);
+        if (o < 0 || !Protocol.ArrayHeader.write(s, enc, 0, 0, count)) {
+            return false;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (Protocol.ARRAY_RAW == enc) {
+                if (!s.writeShort(values[i])) {
+                    return false;
+                }
+                continue;
+            }
+            int z = (values[i] << 1) ^ (values[i] >> 31);
+            while (0 != (z & ~0x7F)) {
+                if (!s.writeByte((z & 0x7F) | 0x80)) {
+                    return false;
+                }
+                z >>>= 7;
+            }
+            if (!s.writeByte(z)) {
+                return false;
+            }
+        }
+        s.requestBuffer()[o] = (byte)(s.requestLength() - o - 1);
+        s.addToChecksum(o, 1);
+        return true;
+    }
+
+    private static int varintSize(int v) {
+        int z = (v << 1) ^ (v >> 31);
+        int size = 1;
+        while (0 != (z >>>= 7)) {
+            ++size;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,72 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.util.Log;
+
+/**
+ * Trace of the traffic with the robot.
+ *
+ * Events are only formatted if there is a sink for them:
+ *  - debug logging gets a hex dump of every chunk received and written. It is enabled
+ *    with \c setLogging or by setting the log level of the tag, e.g.
+ *        adb shell setprop log.tag.Robot DEBUG
+ *  - a TraceCapture gets the raw bytes with a time stamp, no strings involved.
+ * With neither enabled an event costs a field check and nothing is allocated.
+ *
+ * Not thread safe, all events are expected to come from the thread RobotBase runs on.
+ */
+
+public class Trace {
+
+    private final String tag;
+    private boolean logging;
+    private TraceCapture capture;
+
+    Trace(String t) {
+        tag = t;
+        logging = Log.isLoggable(t, Log.DEBUG);
+    }
+
+    public void setLogging(boolean enable) {
+        logging = enable;
+    }
+    // Use this to guard any debug logging which needs to build a string.
+    public boolean isLogging() {
+        return logging;
+    }
+
+    // Raw capture of all traffic, null to stop capturing. The previous capture (if any)
+    // is returned and not closed.
+    public TraceCapture setCapture(TraceCapture c) {
+        TraceCapture previous = capture;
+        capture = c;
+        return previous;
+    }
+    public TraceCapture capture() {
+        return capture;
+    }
+
+    // The last count bytes in the buffer have just been received.
+    void received(RingBuffer rcvd, int count, CommandStream active) {
+        if (null != capture) {
+            capture.received(rcvd, rcvd.available() - count, count);
+        }
+        if (logging) {
+            Log.d(tag, "Received (" + active + "): " + count + "[" + rcvd.available() + "] " + RobotBase.hexDump(rcvd, 0, rcvd.available()));
+        }
+    }
+
+    void written(byte[] bytes, int offset, int length) {
+        if (null != capture) {
+            capture.sent(bytes, offset, length);
+        }
+        if (logging) {
+            Log.d(tag, "write(" + length + "): " + RobotBase.hexDump(bytes, offset, length));
+        }
+    }
+
+    void command(Command cmd) {
+        if (logging) {
+            Log.d(tag, "sendCommand(" + cmd + ")");
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.SystemClock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary capture of the raw traffic with the robot into a memory mapped file, for
+ * offline analysis.
+ *
+ * The file is created with the given size and mapped into memory, recording a chunk
+ * is a copy into the mapping - no system call, no allocation. Once the file is full
+ * further chunks are dropped (and counted).
+ *
+ * File format, all values little endian:
+ *    header  int32 magic "RFCT", int32 version (1),
+ *            int64 wall clock at the start (ms since the epoch),
+ *            int64 SystemClock.elapsedRealtimeNanos at the start
+ *    records uint8 type (RECEIVED or SENT), uint16 length,
+ *            int64 SystemClock.elapsedRealtimeNanos, length bytes
+ * The records end with a type of 0 or at the end of the file.
+ */
+
+public class TraceCapture implements Closeable {
+
+    public final static int RECEIVED = 1;
+    public final static int SENT = 2;
+    public final static int MAGIC = 0x54434652;
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 24;
+    public final static int RECORD_HEADER_SIZE = 11;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private long dropped;
+
+    public TraceCapture(File f, int size) throws IOException {
+        file = new RandomAccessFile(f, "rw");
+        try {
+            // an older capture must not show through after the records of this one, the
+            // file is extended with zeros (a type of 0)
+            file.setLength(0);
+            file.setLength(size);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(SystemClock.elapsedRealtimeNanos());
+    }
+
+    private boolean record(int type, int length) {
+        if (buffer.remaining() < RECORD_HEADER_SIZE + length) {
+            dropped += length;
+            return false;
+        }
+        buffer.put((byte)type);
+        buffer.putShort((short)length);
+        buffer.putLong(SystemClock.elapsedRealtimeNanos());
+        return true;
+    }
+
+    void received(RingBuffer rcvd, int offset, int length) {
+        if (record(RECEIVED, length)) {
+            for (int i = 0; i < length; ++i) {
+                buffer.put((byte)rcvd.get(offset + i));
+            }
+        }
+    }
+
+    void sent(byte[] bytes, int offset, int length) {
+        if (record(SENT, length)) {
+            buffer.put(bytes, offset, length);
+        }
+    }
+
+    // Bytes captured so far, including the headers.
+    public int size() {
+        return buffer.position();
+    }
+    // Bytes which didn't fit into the file any more.
+    public long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+}
@@ -0,0 +1,32 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The byte streams used to talk to the robot.
+ *
+ * ConnectionThread doesn't care how the bytes get to the robot and back, all it
+ * needs is an input and an output stream. The actual connection is made by the
+ * implementation of this interface, e.g. BluetoothTransport for a robot with a
+ * serial BT module, or RobotSimulator to run without any hardware at all.
+ *
+ * \c connect is called on the ConnectionThread and may block until the connection
+ * is established. The streams are only requested after a successful connect.
+ * \c close must cause any blocking read on the input stream to fail, and may be
+ * called from any thread, even while \c connect is still blocking. If the link is lost
+ * RobotBase closes the transport and calls \c connect again, each connect has to
+ * start over with fresh streams.
+ *
+ * A ConnectionPool never blocks in a read, it polls InputStream.available instead. To be
+ * used with a pool, \c available has to report what has been received, and fail once
+ * the transport is closed.
+ */
+
+public interface Transport {
+    void connect() throws IOException;
+    InputStream getInputStream() throws IOException;
+    OutputStream getOutputStream() throws IOException;
+    void close() throws IOException;
+}
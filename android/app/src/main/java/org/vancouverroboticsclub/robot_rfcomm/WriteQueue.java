@@ -0,0 +1,111 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer queue of pending writes.
+ *
+ * The producer (the thread calling ConnectionThread.write) copies the bytes into
+ * one of the queue's slots and returns immediately, the consumer (the writer
+ * thread) takes them out in order and writes them to the socket. Each slot owns
+ * its buffer so the producer is free to re-use its own buffer as soon as \c offer
+ * returns. Slot buffers only grow, nothing is allocated in the steady state.
+ *
+ * Neither side ever takes a lock: the slots are published through the volatile
+ * \c head and \c tail counters, an idle consumer parks itself and is unparked by
+ * the producer.
+ */
+
+public class WriteQueue {
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final Object[] origins;
+    private final int mask;
+
+    private volatile long head;   // written by producer
+    private volatile long tail;   // written by consumer
+    private volatile Thread waiting;
+
+    // The capacity is rounded up to the next power of 2.
+    public WriteQueue(int capacity, int slotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        slots = new byte[size][];
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new byte[slotSize];
+        }
+        lengths = new int[size];
+        origins = new Object[size];
+        mask = size - 1;
+    }
+
+    public int size() {
+        return (int)(head - tail);
+    }
+
+    // Producer: queue a copy of the given bytes. Returns false if the queue is full.
+    public boolean offer(byte[] bytes, int offset, int length) {
+        long h = head;
+        if (h - tail == slots.length) {
+            return false;
+        }
+        int i = (int)(h & mask);
+        if (slots[i].length < length) {
+            slots[i] = new byte[length];
+        }
+        System.arraycopy(bytes, offset, slots[i], 0, length);
+        lengths[i] = length;
+        origins[i] = bytes;
+        head = h + 1;
+
+        Thread consumer = waiting;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    // Consumer: wait until there is something to write, returns false if interrupted.
+    public boolean await() {
+        while (head == tail) {
+            waiting = Thread.currentThread();
+            if (head == tail) {
+                LockSupport.park(this);
+            }
+            waiting = null;
+            if (Thread.interrupted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Consumer: access to the oldest entry, only valid until \c remove is called.
+    public byte[] buffer() {
+        return buffer(0);
+    }
+    public int length() {
+        return length(0);
+    }
+    public Object origin() {
+        return origin(0);
+    }
+
+    // Consumer: access to the entry i places after the oldest one (i < size), e.g. to
+    // write several entries at once. Only valid until that entry is removed.
+    public byte[] buffer(int i) {
+        return slots[(int)((tail + i) & mask)];
+    }
+    public int length(int i) {
+        return lengths[(int)((tail + i) & mask)];
+    }
+    public Object origin(int i) {
+        return origins[(int)((tail + i) & mask)];
+    }
+
+    // Consumer: done with the oldest entry.
+    public void remove() {
+        origins[(int)(tail & mask)] = null;
+        tail = tail + 1;
+    }
+}
@@ -0,0 +1,122 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reading the robot's sensor array (ARRAY_CHANNELS channels) from a RobotSimulator at
+ * 38400 baud, or without any throttling (baud=0) to measure the decoding. One operation
+ * reads all channels once:
+ *    values ... a VALUE_GET per channel, with a window of 4
+ *    raw    ... one ARRAY_GET, each channel as int16
+ *    varint ... one ARRAY_GET, each channel as varint
+ *    delta  ... one ARRAY_GET, the change of each channel since the last one
+ * See SensorArray for the encodings.
+ */
+
+@State(Scope.Thread)
+public class ArrayBenchmark {
+
+    @Param({"values", "raw", "varint", "delta"})
+    public String read;
+
+    @Param({"false", "true"})
+    public boolean framed;
+
+    @Param({"38400", "0"})
+    public int baud;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private Robot robot;
+    private final SensorArray array = new SensorArray();
+    private final Semaphore done = new Semaphore(0);
+    private final CommandStream.Callback callback = new CommandStream.Callback() {
+        @Override
+        public void onDone(CommandStream cmd, int status) {
+            done.release();
+        }
+    };
+
+    private final Runnable getValues = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < Protocol.ARRAY_CHANNELS; ++i) {
+                robot.getValue(callback);
+            }
+        }
+    };
+    private final Runnable getArray = new Runnable() {
+        @Override
+        public void run() {
+            robot.getArray(array, callback);
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException {
+        thread = new HandlerThread("ArrayBenchmark");
+        thread.start();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final Handler results = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CONNECTED == msg.obj) {
+                    connected.countDown();
+                }
+                return true;
+            }
+        });
+        handler = new Handler(thread.getLooper());
+        switch (read) {
+            case "raw":    array.setEncoding(Protocol.ARRAY_RAW); break;
+            case "varint": array.setEncoding(Protocol.ARRAY_VARINT); break;
+            default:       array.setEncoding(Protocol.ARRAY_DELTA); break;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot = new Robot(new RobotSimulator(baud, 0), results);
+                robot.setWindow(4);
+                robot.setFraming(framed);
+            }
+        });
+        connected.await();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot.disconnect();
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        thread.quit();
+    }
+
+    @Benchmark
+    public void readArray() throws InterruptedException {
+        if ("values".equals(read)) {
+            handler.post(getValues);
+            done.acquire(Protocol.ARRAY_CHANNELS);
+        } else {
+            handler.post(getArray);
+            done.acquire();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Polling the value of a RobotSimulator at 38400 baud with the ResponseCache of VALUE_GET
+ * disabled (maxAge=0) or answering for maxAge ms. One operation is a VALUE_GET from each
+ * of \c readers callers at once, e.g. several views showing the same value. Without the
+ * cache each of them is a round trip (with a window of 4), with it they're merged onto
+ * one request, or answered without asking the robot at all.
+ */
+
+@State(Scope.Thread)
+public class CacheBenchmark {
+
+    @Param({"0", "20", "100"})
+    public int maxAge;
+
+    @Param({"1", "8"})
+    public int readers;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private Robot robot;
+    private final Semaphore done = new Semaphore(0);
+    private final CommandStream.Callback callback = new CommandStream.Callback() {
+        @Override
+        public void onDone(CommandStream cmd, int status) {
+            done.release();
+        }
+    };
+
+    private final Runnable getValues = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < readers; ++i) {
+                robot.getValue(callback);
+            }
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException {
+        thread = new HandlerThread("CacheBenchmark");
+        thread.start();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final Handler results = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CONNECTED == msg.obj) {
+                    connected.countDown();
+                }
+                return true;
+            }
+        });
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot = new Robot(new RobotSimulator(38400, 0), results);
+                robot.setWindow(4);
+                robot.setCacheMaxAge(Command.VALUE_GET, maxAge);
+            }
+        });
+        connected.await();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot.disconnect();
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        thread.quit();
+    }
+
+    @Benchmark
+    public void getValue() throws InterruptedException {
+        handler.post(getValues);
+        done.acquire(readers);
+    }
+}
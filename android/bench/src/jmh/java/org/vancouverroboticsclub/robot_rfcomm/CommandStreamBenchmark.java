@@ -0,0 +1,97 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encoding of requests and decoding of responses with CommandStream, one value at a
+ * time and with the codec generated into Protocol (the *Codec benchmarks).
+ */
+
+@State(Scope.Thread)
+public class CommandStreamBenchmark {
+
+    private byte[] idResponse;
+    private byte[] valueResponse;
+    private float value;
+
+    @Setup
+    public void setup() {
+        idResponse = new byte[30];
+        System.arraycopy("newt-rfc".getBytes(), 0, idResponse, 0, 8);
+        System.arraycopy("Feb 17 2018".getBytes(), 0, idResponse, 9, 11);
+        System.arraycopy("19:05:24".getBytes(), 0, idResponse, 21, 8);
+        valueResponse = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(3.1415f).array();
+    }
+
+    @Benchmark
+    public byte[] encodePing() {
+        return new CommandStream(Command.PING).getRequest();
+    }
+
+    @Benchmark
+    public byte[] encodeValueSet() {
+        value += 0.5f;
+        CommandStream cmd = new CommandStream(Command.VALUE_SET);
+        cmd.writeFloat(value);
+        cmd.writeInt(7);
+        cmd.writeChecksum();
+        return cmd.getRequest();
+    }
+
+    @Benchmark
+    public int encodeValueSetPooled() {
+        value += 0.5f;
+        CommandStream cmd = CommandStream.obtain(Command.VALUE_SET);
+        cmd.writeFloat(value);
+        cmd.writeInt(7);
+        cmd.writeChecksum();
+        int length = cmd.requestLength();
+        length += cmd.requestBuffer()[length - 1];
+        cmd.recycle();
+        return length;
+    }
+
+    @Benchmark
+    public int encodeValueSetCodec() {
+        value += 0.5f;
+        CommandStream cmd = CommandStream.obtain(Command.VALUE_SET);
+        Protocol.Value.write(cmd, value, 7);
+        cmd.writeChecksum();
+        int length = cmd.requestLength();
+        length += cmd.requestBuffer()[length - 1];
+        cmd.recycle();
+        return length;
+    }
+
+    @Benchmark
+    public void decodeId(Blackhole bh) {
+        CommandStream cmd = new CommandStream(Command.ID);
+        cmd.setResponse(idResponse);
+        bh.consume(cmd.readString());
+        bh.consume(cmd.readString());
+        bh.consume(cmd.readString());
+    }
+
+    @Benchmark
+    public float decodeValue() {
+        CommandStream cmd = new CommandStream(Command.VALUE_GET);
+        cmd.setResponse(valueResponse);
+        return cmd.readFloat();
+    }
+
+    @Benchmark
+    public void decodeIdCodec(Blackhole bh) {
+        CommandStream cmd = new CommandStream(Command.ID);
+        cmd.setResponse(idResponse);
+        bh.consume(Protocol.AppId.name(cmd));
+        bh.consume(Protocol.AppId.date(cmd));
+        bh.consume(Protocol.AppId.time(cmd));
+    }
+}
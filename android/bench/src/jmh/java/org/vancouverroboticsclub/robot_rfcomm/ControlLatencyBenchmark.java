@@ -0,0 +1,104 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a control command queued behind a burst of telemetry requests.
+ *
+ * Each operation queues \c backlog VALUE_GET commands followed by a VALUE_SET and
+ * measures the time until the VALUE_SET is written to the FakeTransport. With FIFO
+ * scheduling it waits for all the telemetry round trips, with STRICT only for the
+ * command already in flight. The telemetry responses are drained between
+ * operations.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ControlLatencyBenchmark {
+
+    @Param({"FIFO", "STRICT", "WEIGHTED"})
+    public CommandQueue.Policy policy;
+
+    // telemetry requests queued ahead of the control command
+    @Param({"0", "16"})
+    public int backlog;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private Robot robot;
+    private final Semaphore values = new Semaphore(0);
+    private final Semaphore written = new Semaphore(0);
+
+    private final Runnable burst = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < backlog; ++i) {
+                robot.getValue();
+            }
+            robot.setValue(1.5f, 0);
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException {
+        final FakeTransport transport = new FakeTransport(4);
+        transport.respond(Command.VALUE_GET, new byte[4]);
+        transport.notify(Command.VALUE_SET, written);
+
+        thread = new HandlerThread("ControlLatencyBenchmark");
+        thread.start();
+        handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                values.release();
+                return true;
+            }
+        });
+
+        final CountDownLatch created = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot = new Robot(transport, handler);
+                robot.setScheduling(policy);
+                created.countDown();
+            }
+        });
+        created.await();
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() throws InterruptedException {
+        values.acquire(backlog);
+    }
+
+    @TearDown
+    public void tearDown() {
+        robot.disconnect();
+        thread.quit();
+    }
+
+    @Benchmark
+    public void setValue() throws InterruptedException {
+        handler.post(burst);
+        written.acquire();
+    }
+}
@@ -0,0 +1,114 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Transport answering each command immediately with a canned response.
+ *
+ * Responses are handed to the reader in fragments of at most \c fragment bytes,
+ * one fragment per read, to exercise the reassembly of responses in RobotBase.
+ * Only single byte commands are answered, any payload is ignored.
+ *
+ * Writes of a Command can be observed with \c notify, e.g. for commands without a
+ * response.
+ */
+
+class FakeTransport implements Transport {
+
+    private static final byte[] EOF = new byte[0];
+
+    private final byte[][] responses = new byte[256][];
+    private final Semaphore[] written = new Semaphore[256];
+    private final int fragment;
+    private final LinkedBlockingQueue<byte[]> rx = new LinkedBlockingQueue<>();
+
+    FakeTransport(int fragmentSize) {
+        fragment = fragmentSize;
+    }
+
+    void respond(Command cmd, byte[] response) {
+        responses[cmd.nr & 0xFF] = response;
+    }
+
+    // Release the semaphore every time the command is written.
+    void notify(Command cmd, Semaphore s) {
+        written[cmd.nr & 0xFF] = s;
+    }
+
+    @Override
+    public void connect() throws IOException {
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return output;
+    }
+
+    @Override
+    public void close() throws IOException {
+        rx.add(EOF);
+    }
+
+    private final InputStream input = new InputStream() {
+        private byte[] current;
+        private int offset;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return -1 == read(b, 0, 1) ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (null == current) {
+                try {
+                    current = rx.take();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted", e);
+                }
+                offset = 0;
+            }
+            if (EOF == current) {
+                return -1;
+            }
+            int count = Math.min(len, Math.min(fragment, current.length - offset));
+            System.arraycopy(current, offset, b, off, count);
+            offset += count;
+            if (offset == current.length) {
+                current = null;
+            }
+            return count;
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            byte[] response = responses[b & 0xFF];
+            if (null != response) {
+                rx.add(response);
+            }
+            Semaphore s = written[b & 0xFF];
+            if (null != s) {
+                s.release();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                write(b[off]);
+            }
+        }
+    };
+}
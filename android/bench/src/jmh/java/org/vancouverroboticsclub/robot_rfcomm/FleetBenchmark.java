@@ -0,0 +1,118 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Scaling of the I/O with the number of robots, from 1 to 32 RobotSimulators without
+ * any throttling (loopback).
+ *
+ * All robots live on one HandlerThread, like a team of robots controlled from the UI.
+ * One operation sends a VALUE_GET to every robot and waits until all of them have
+ * responded, so ops/s times the number of robots is the number of round trips per
+ * second.
+ *
+ * With io=thread each robot has a ConnectionThread of its own (2 threads per robot),
+ * with io=pool all robots share a ConnectionPool of 2 readers and 2 writers (see
+ * RobotManager).
+ */
+
+@State(Scope.Thread)
+public class FleetBenchmark {
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int robots;
+
+    @Param({"thread", "pool"})
+    public String io;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private RobotManager manager;
+    private Robot[] fleet;
+    private final Semaphore done = new Semaphore(0);
+    private CountDownLatch connected;
+
+    private final Runnable getValues = new Runnable() {
+        @Override
+        public void run() {
+            for (Robot robot : fleet) {
+                robot.getValue();
+            }
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException {
+        thread = new HandlerThread("FleetBenchmark");
+        thread.start();
+        connected = new CountDownLatch(robots);
+        final Handler results = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_VALUE == msg.what) {
+                    done.release();
+                } else if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CONNECTED == msg.obj) {
+                    connected.countDown();
+                }
+                return true;
+            }
+        });
+        handler = new Handler(thread.getLooper());
+        if ("pool".equals(io)) {
+            manager = new RobotManager(2, 2, 2);
+        }
+
+        fleet = new Robot[robots];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < fleet.length; ++i) {
+                    RobotSimulator sim = new RobotSimulator(0, 0);
+                    fleet[i] = null == manager ? new Robot(sim, results) : manager.add(sim, results);
+                }
+            }
+        });
+        connected.await();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Robot robot : fleet) {
+                    if (null == manager) {
+                        robot.disconnect();
+                    } else {
+                        manager.remove(robot);
+                    }
+                }
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        if (null != manager) {
+            manager.shutdown();
+        }
+        thread.quit();
+    }
+
+    @Benchmark
+    public void roundTrip() throws InterruptedException {
+        handler.post(getValues);
+        done.acquire(robots);
+    }
+}
@@ -0,0 +1,33 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the hex dump logged for every received fragment.
+ */
+
+@State(Scope.Thread)
+public class HexDumpBenchmark {
+
+    @Param({"1", "4", "30"})
+    public int length;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte)(i * 37);
+        }
+    }
+
+    @Benchmark
+    public String hexDump() {
+        return RobotBase.hexDump(bytes, length);
+    }
+}
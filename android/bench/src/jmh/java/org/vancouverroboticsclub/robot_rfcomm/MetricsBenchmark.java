@@ -0,0 +1,42 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of keeping LinkMetrics enabled: recording a round trip on the protocol thread,
+ * with and without another thread taking snapshots at the same time.
+ */
+
+@State(Scope.Group)
+public class MetricsBenchmark {
+
+    private final LinkMetrics metrics = new LinkMetrics();
+    private long latency = 1;
+
+    private void recordOne() {
+        latency = (latency * 31 + 7) & 0xFFFFF;   // up to ~1s
+        metrics.roundTrip(Command.VALUE_GET, latency);
+        metrics.received(4);
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    public void record() {
+        recordOne();
+    }
+
+    @Benchmark
+    @Group("contended")
+    public void recordWhileReading() {
+        recordOne();
+    }
+
+    @Benchmark
+    @Group("contended")
+    public LinkMetrics.Snapshot snapshot() {
+        return metrics.snapshot();
+    }
+}
@@ -0,0 +1,92 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Decoding of recorded traffic: a session recorded against the RobotSimulator (see
+ * TraceReplay) is played back to a new Robot as fast as possible (see ReplayTransport).
+ * One operation is the whole session, from connecting until every command is done -
+ * a few hundred commands, with the value streaming in between the responses.
+ *
+ * With framed=true the session was framed and recorded over a lossy link, so the
+ * replay includes resynchronizing on corrupted frames.
+ */
+
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+    @Param({"false", "true"})
+    public boolean framed;
+
+    private byte[] capture;
+    private int requests;
+    private HandlerThread thread;
+    private Handler handler;
+    private final Semaphore done = new Semaphore(0);
+    private final CommandStream.Callback callback = new CommandStream.Callback() {
+        @Override
+        public void onDone(CommandStream cmd, int status) {
+            done.release();
+        }
+    };
+
+    @Setup
+    public void setup() throws Exception {
+        File file = File.createTempFile("ReplayBenchmark", ".trace");
+        try {
+            TraceReplay.record(file, framed);
+            capture = ReplayTransport.read(file);
+        } finally {
+            file.delete();
+        }
+        requests = new ReplayTransport(capture, false).requests().size();
+        thread = new HandlerThread("ReplayBenchmark");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    @TearDown
+    public void tearDown() {
+        thread.quit();
+    }
+
+    @Benchmark
+    public void session() throws Exception {
+        final ReplayTransport replay = new ReplayTransport(capture, false);
+        final Robot[] robot = new Robot[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0] = new Robot(replay, handler);
+                robot[0].setWindow(4);
+                robot[0].setFraming(framed);
+                robot[0].disableReconnect();
+                created.countDown();
+            }
+        });
+        created.await();
+        if (!replay.play(robot[0], callback, false, 5000) || !replay.awaitDone(5000)) {
+            throw new IllegalStateException("replay stalled after " + replay.replayed() + " of " + replay.chunks() + " chunks");
+        }
+        done.acquire(requests);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0].disconnect();
+            }
+        });
+    }
+}
@@ -0,0 +1,142 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Full request/response path through Robot, ConnectionThread and the reassembly of
+ * the response in RobotBase against a FakeTransport which answers immediately.
+ *
+ * The robot runs on its own HandlerThread, the benchmark thread sends a command and
+ * waits until the decoded response has been delivered. \c id and \c value post the
+ * request to the robot's thread and get the response as a message to the handler,
+ * \c valueAsync sends the request straight from the benchmark thread and waits for
+ * its CommandFuture.
+ *
+ * With consumer=looper the handler receiving the messages runs on a Looper of its own,
+ * like the UI's, which costs the message based requests another thread hop.
+ *
+ * With trace=capture all traffic is captured to a temporary file (see TraceCapture).
+ */
+
+@State(Scope.Thread)
+public class RoundTripBenchmark {
+
+    // bytes per read, the ID response is split into 30/fragment reads
+    @Param({"10", "30"})
+    public int fragment;
+
+    @Param({"off", "capture"})
+    public String trace;
+    private File capture;
+
+    // thread the handler receiving the responses runs on
+    @Param({"robot", "looper"})
+    public String consumer;
+
+    private HandlerThread thread;
+    private HandlerThread consumerThread;
+    private Handler handler;
+    private Handler results;
+    private Robot robot;
+    private final Semaphore done = new Semaphore(0);
+
+    private final Runnable getID = new Runnable() {
+        @Override
+        public void run() {
+            robot.getID();
+        }
+    };
+    private final Runnable getValue = new Runnable() {
+        @Override
+        public void run() {
+            robot.getValue();
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException, IOException {
+        final FakeTransport transport = new FakeTransport(fragment);
+        byte[] id = new byte[30];
+        System.arraycopy("newt-rfc".getBytes(), 0, id, 0, 8);
+        System.arraycopy("Feb 17 2018".getBytes(), 0, id, 9, 11);
+        System.arraycopy("19:05:24".getBytes(), 0, id, 21, 8);
+        transport.respond(Command.ID, id);
+        transport.respond(Command.VALUE_GET, new byte[4]);
+
+        thread = new HandlerThread("RoundTripBenchmark");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        Handler.Callback release = new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                done.release();
+                return true;
+            }
+        };
+        if ("looper".equals(consumer)) {
+            consumerThread = new HandlerThread("RoundTripBenchmark.consumer");
+            consumerThread.start();
+            results = new Handler(consumerThread.getLooper(), release);
+        } else {
+            results = new Handler(thread.getLooper(), release);
+        }
+
+        final CountDownLatch created = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot = new Robot(transport, results);
+                created.countDown();
+            }
+        });
+        created.await();
+        if ("capture".equals(trace)) {
+            capture = File.createTempFile("RoundTripBenchmark", ".trace");
+            robot.startCapture(capture, 64 << 20);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        robot.disconnect();
+        thread.quit();
+        if (null != consumerThread) {
+            consumerThread.quit();
+        }
+        if (null != capture) {
+            robot.stopCapture();
+            capture.delete();
+        }
+    }
+
+    @Benchmark
+    public void id() throws InterruptedException {
+        handler.post(getID);
+        done.acquire();
+    }
+
+    @Benchmark
+    public void value() throws InterruptedException {
+        handler.post(getValue);
+        done.acquire();
+    }
+
+    @Benchmark
+    public Robot.Value valueAsync() throws Exception {
+        return robot.getValueAsync().get();
+    }
+}
@@ -0,0 +1,126 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a VALUE_GET against a RobotSimulator at 38400 baud while the UI thread is
+ * busy rendering: every 16ms frame it spins for \c frameMS. The Robot either runs on
+ * the UI thread (robot=ui), as it did when MainActivity created it, or on a HandlerThread
+ * of its own (robot=protocol), which only posts the decoded value to the UI. The time is
+ * measured from sending the request until the Robot has processed the response.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UiLoadBenchmark {
+
+    @Param({"ui", "protocol"})
+    public String robot;
+
+    // time the UI is busy in each 16ms frame
+    @Param({"0", "8", "14"})
+    public int frameMS;
+
+    private HandlerThread ui;
+    private HandlerThread protocol;
+    private Handler uiHandler;
+    private Handler robotHandler;
+    private Robot bot;
+    private volatile boolean rendering;
+    private final Semaphore done = new Semaphore(0);
+    private final CommandStream.Callback callback = new CommandStream.Callback() {
+        @Override
+        public void onDone(CommandStream cmd, int status) {
+            done.release();
+        }
+    };
+
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            if (!rendering) {
+                return;
+            }
+            long start = System.nanoTime();
+            uiHandler.postDelayed(frame, 16);
+            while (System.nanoTime() - start < frameMS * 1000000L) {
+                // rendering
+            }
+        }
+    };
+
+    @Setup
+    public void setup() throws InterruptedException {
+        ui = new HandlerThread("UI");
+        ui.start();
+        final CountDownLatch connected = new CountDownLatch(1);
+        uiHandler = new Handler(ui.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CONNECTED == msg.obj) {
+                    connected.countDown();
+                }
+                return true;
+            }
+        });
+        if ("ui".equals(robot)) {
+            robotHandler = new Handler(ui.getLooper());
+        } else {
+            protocol = new HandlerThread("Robot");
+            protocol.start();
+            robotHandler = new Handler(protocol.getLooper());
+        }
+        robotHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                bot = new Robot(new RobotSimulator(38400, 0), uiHandler);
+            }
+        });
+        connected.await();
+        if (0 != frameMS) {
+            rendering = true;
+            uiHandler.post(frame);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        rendering = false;
+        final CountDownLatch stopped = new CountDownLatch(1);
+        robotHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                bot.disconnect();
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        ui.quit();
+        if (null != protocol) {
+            protocol.quit();
+        }
+    }
+
+    @Benchmark
+    public void getValue() throws InterruptedException {
+        bot.getValue(callback);
+        done.acquire();
+    }
+}
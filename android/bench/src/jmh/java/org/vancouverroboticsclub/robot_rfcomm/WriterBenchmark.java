@@ -0,0 +1,134 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of ConnectionThread.write against an output stream which takes
+ * \c linkMicros for every write, i.e. a congested link.
+ *
+ * \c enqueue is what the thread calling write sees with the writer thread, it
+ * should stay flat regardless of the link speed. \c direct is the previous
+ * behaviour of writing on the calling thread, for comparison.
+ * Like RobotBase, at most 8 writes are outstanding at any time.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WriterBenchmark {
+
+    @Param({"0", "100", "1000"})
+    public int linkMicros;
+
+    private final byte[] request = new byte[] { 0x02 };
+    private final Semaphore window = new Semaphore(8);
+    private HandlerThread thread;
+    private ConnectionThread io;
+    private OutputStream slow;
+
+    private class SlowTransport implements Transport {
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        // closing anyway
+                    }
+                    return -1;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return slow;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.countDown();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        slow = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                long until = System.nanoTime() + linkMicros * 1000L;
+                while (System.nanoTime() < until) {
+                    Thread.yield();
+                }
+            }
+        };
+        thread = new HandlerThread("WriterBenchmark");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (ConnectionThread.MSG_WRITE == msg.what) {
+                    window.release();
+                }
+                return true;
+            }
+        });
+        io = new ConnectionThread(new SlowTransport(), handler);
+        io.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        io.cancel();
+        thread.quit();
+    }
+
+    @Setup(Level.Invocation)
+    public void acquire() throws InterruptedException {
+        window.acquire();
+    }
+
+    @Benchmark
+    public void enqueue() {
+        io.write(request, 0, request.length);
+    }
+
+    @Benchmark
+    public void direct() throws IOException {
+        slow.write(request, 0, request.length);
+        window.release();
+    }
+}
@@ -0,0 +1,121 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Handler.
+ */
+
+public class Handler {
+
+    public interface Callback {
+        boolean handleMessage(Message msg);
+    }
+
+    private final Looper looper;
+    private final Callback callback;
+
+    public Handler() {
+        this(Looper.myLooper(), null);
+    }
+
+    public Handler(Callback callback) {
+        this(Looper.myLooper(), callback);
+    }
+
+    public Handler(Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(Looper looper, Callback callback) {
+        if (null == looper) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+        this.looper = looper;
+        this.callback = callback;
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public void dispatchMessage(Message msg) {
+        if (null != msg.callback) {
+            msg.callback.run();
+        } else if (null == callback || !callback.handleMessage(msg)) {
+            handleMessage(msg);
+        }
+    }
+
+    public final Message obtainMessage() {
+        return Message.obtain(this, 0, 0, 0, null);
+    }
+    public final Message obtainMessage(int what) {
+        return Message.obtain(this, what, 0, 0, null);
+    }
+    public final Message obtainMessage(int what, Object obj) {
+        return Message.obtain(this, what, 0, 0, obj);
+    }
+    public final Message obtainMessage(int what, int arg1, int arg2) {
+        return Message.obtain(this, what, arg1, arg2, null);
+    }
+    public final Message obtainMessage(int what, int arg1, int arg2, Object obj) {
+        return Message.obtain(this, what, arg1, arg2, obj);
+    }
+
+    public final boolean post(Runnable r) {
+        return sendMessageDelayed(getPostMessage(r), 0);
+    }
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        return sendMessageDelayed(getPostMessage(r), delayMillis);
+    }
+    public final boolean postAtFrontOfQueue(Runnable r) {
+        return sendMessageAtFrontOfQueue(getPostMessage(r));
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0);
+    }
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessageDelayed(obtainMessage(what), 0);
+    }
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        return sendMessageDelayed(obtainMessage(what), delayMillis);
+    }
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+    public final boolean sendMessageAtFrontOfQueue(Message msg) {
+        return sendMessageAtTime(msg, 0);
+    }
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        msg.target = this;
+        return looper.enqueue(msg, uptimeMillis);
+    }
+
+    public final boolean hasMessages(int what) {
+        return looper.has(this, what, null, null);
+    }
+    public final boolean hasMessages(int what, Object obj) {
+        return looper.has(this, what, null, obj);
+    }
+    public final void removeMessages(int what) {
+        looper.remove(this, what, null, null);
+    }
+    public final void removeMessages(int what, Object obj) {
+        looper.remove(this, what, null, obj);
+    }
+    public final void removeCallbacks(Runnable r) {
+        looper.remove(this, 0, r, null);
+    }
+    public final void removeCallbacksAndMessages(Object token) {
+        looper.remove(this, -1, null, token);
+    }
+
+    private Message getPostMessage(Runnable r) {
+        Message m = Message.obtain();
+        m.callback = r;
+        return m;
+    }
+}
@@ -0,0 +1,60 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.HandlerThread.
+ */
+
+public class HandlerThread extends Thread {
+    private Looper looper;
+
+    public HandlerThread(String name) {
+        super(name);
+    }
+
+    public HandlerThread(String name, int priority) {
+        super(name);
+    }
+
+    protected void onLooperPrepared() {
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            looper = Looper.myLooper();
+            notifyAll();
+        }
+        onLooperPrepared();
+        Looper.loop();
+    }
+
+    public Looper getLooper() {
+        if (!isAlive()) {
+            return null;
+        }
+        synchronized (this) {
+            while (isAlive() && null == looper) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // keep waiting
+                }
+            }
+        }
+        return looper;
+    }
+
+    public boolean quit() {
+        Looper l = getLooper();
+        if (null != l) {
+            l.quit();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean quitSafely() {
+        return quit();
+    }
+}
@@ -0,0 +1,193 @@
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * JVM stand-in for android.os.Looper.
+ *
+ * The message queue is a singly linked list sorted by due time, just like the
+ * real MessageQueue. It's guarded by a ReentrantLock rather than the Looper's
+ * monitor, so a Looper can also run on a virtual thread (see RobotGateway): waiting
+ * on a monitor would pin the virtual thread to its carrier.
+ */
+
+public final class Looper {
+    private static final ThreadLocal<Looper> looper = new ThreadLocal<>();
+    private static Looper mainLooper;
+
+    private final Thread thread;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private Message queue;
+    private boolean quitting;
+
+    private Looper() {
+        thread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (null != looper.get()) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        looper.set(new Looper());
+    }
+
+    public static void prepareMainLooper() {
+        prepare();
+        synchronized (Looper.class) {
+            mainLooper = myLooper();
+        }
+    }
+
+    public static synchronized Looper getMainLooper() {
+        return mainLooper;
+    }
+
+    public static Looper myLooper() {
+        return looper.get();
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void quit() {
+        lock.lock();
+        try {
+            quitting = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void quitSafely() {
+        quit();
+    }
+
+    public static void loop() {
+        Looper me = myLooper();
+        if (null == me) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            Message msg = me.next();
+            if (null == msg) {
+                return;
+            }
+            msg.target.dispatchMessage(msg);
+            msg.recycle();
+        }
+    }
+
+    private Message next() {
+        lock.lock();
+        try {
+            while (true) {
+                if (quitting) {
+                    return null;
+                }
+                long now = SystemClock.uptimeMillis();
+                if (null != queue && queue.when <= now) {
+                    Message msg = queue;
+                    queue = msg.next;
+                    msg.next = null;
+                    return msg;
+                }
+                try {
+                    if (null == queue) {
+                        changed.await();
+                    } else {
+                        changed.await(queue.when - now, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean enqueue(Message msg, long when) {
+        lock.lock();
+        try {
+            if (quitting) {
+                msg.recycle();
+                return false;
+            }
+            msg.when = when;
+            if (null == queue || when < queue.when) {
+                msg.next = queue;
+                queue = msg;
+                changed.signalAll();
+            } else {
+                Message prev = queue;
+                while (null != prev.next && prev.next.when <= when) {
+                    prev = prev.next;
+                }
+                msg.next = prev.next;
+                prev.next = msg;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean has(Handler h, int what, Runnable r, Object obj) {
+        lock.lock();
+        try {
+            for (Message m = queue; null != m; m = m.next) {
+                if (matches(m, h, what, r, obj)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(Handler h, int what, Runnable r, Object obj) {
+        lock.lock();
+        try {
+            Message prev = null;
+            Message m = queue;
+            while (null != m) {
+                Message next = m.next;
+                if (matches(m, h, what, r, obj)) {
+                    if (null == prev) {
+                        queue = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    m.next = null;
+                    m.recycle();
+                } else {
+                    prev = m;
+                }
+                m = next;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // what == -1 && r == null matches all messages of the handler
+    private static boolean matches(Message m, Handler h, int what, Runnable r, Object obj) {
+        if (m.target != h || (null != obj && m.obj != obj)) {
+            return false;
+        }
+        if (null != r) {
+            return m.callback == r;
+        }
+        return -1 == what || (null == m.callback && m.what == what);
+    }
+}
@@ -0,0 +1,83 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Message, only what the protocol code uses.
+ *
+ * Like the real thing messages are pooled, so obtaining and sending a message
+ * doesn't allocate in the steady state. Unlike the real thing each thread has a pool
+ * of its own, a message is returned to the pool of the thread recycling it (the one
+ * running its Looper). The gateway runs thousands of Loopers, and a single pool would
+ * have all of them, and the links' readers posting to them, contend for its lock.
+ */
+
+public final class Message {
+    private static final int MAX_POOL_SIZE = 50;
+
+    private static final class Pool {
+        Message head;
+        int size;
+    }
+
+    private static final ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    Handler target;
+    Runnable callback;
+    long when;
+    Message next;
+
+    public static Message obtain() {
+        Pool pool = pools.get();
+        if (null != pool.head) {
+            Message m = pool.head;
+            pool.head = m.next;
+            m.next = null;
+            --pool.size;
+            return m;
+        }
+        return new Message();
+    }
+
+    public static Message obtain(Handler h, int what, int arg1, int arg2, Object obj) {
+        Message m = obtain();
+        m.target = h;
+        m.what = what;
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        m.obj = obj;
+        return m;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+
+    public void recycle() {
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        obj = null;
+        target = null;
+        callback = null;
+        when = 0;
+        Pool pool = pools.get();
+        if (pool.size < MAX_POOL_SIZE) {
+            next = pool.head;
+            pool.head = this;
+            ++pool.size;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.SystemClock.
+ */
+
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long elapsedRealtime() {
+        return uptimeMillis();
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            // like the real thing, sleep isn't interruptible
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package android.util;
+
+/**
+ * JVM stand-in for android.util.Log.
+ *
+ * All output is dropped unless the system property robot.log is set to one of
+ * the log levels (e.g. -Drobot.log=3 for DEBUG and above), in which case it goes
+ * to stderr.
+ */
+
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    private static final int level = Integer.getInteger("robot.log", ASSERT + 1);
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int lvl) {
+        return lvl >= level;
+    }
+
+    public static int v(String tag, String msg) {
+        return println(VERBOSE, tag, msg, null);
+    }
+    public static int d(String tag, String msg) {
+        return println(DEBUG, tag, msg, null);
+    }
+    public static int i(String tag, String msg) {
+        return println(INFO, tag, msg, null);
+    }
+    public static int w(String tag, String msg) {
+        return println(WARN, tag, msg, null);
+    }
+    public static int w(String tag, String msg, Throwable tr) {
+        return println(WARN, tag, msg, tr);
+    }
+    public static int e(String tag, String msg) {
+        return println(ERROR, tag, msg, null);
+    }
+    public static int e(String tag, String msg, Throwable tr) {
+        return println(ERROR, tag, msg, tr);
+    }
+
+    private static int println(int lvl, String tag, String msg, Throwable tr) {
+        if (lvl < level) {
+            return 0;
+        }
+        System.err.println("VDIWEA".charAt(lvl - VERBOSE) + "/" + tag + ": " + msg);
+        if (null != tr) {
+            tr.printStackTrace();
+        }
+        return msg.length();
+    }
+}
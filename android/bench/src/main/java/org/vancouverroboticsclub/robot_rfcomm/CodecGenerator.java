@@ -0,0 +1,442 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Generates the codec of the protocol from protocol/commands.schema, run with
+ *     ./gradlew :bench:codegen
+ *
+ * The schema lists the command ids, the tags, constants and the data structures
+ * exchanged with the robot (see the schema for its syntax). From it the generator writes
+ *  - Protocol.java with the ids and constants, and for every struct the offset of each field, a
+ *    decoder per field reading straight from the response buffer and an encoder
+ *    writing the whole struct into a CommandStream - no allocation other than the
+ *    Strings of char fields.
+ *  - protocol.h for each firmware with the ids, the constants and the structs, including a compile
+ *    time check of each struct's size.
+ *
+ * The struct layout is resolved here, the generated code only has constant offsets.
+ * A struct which would need padding (i.e. a different layout on the AVR and the ARM)
+ * is rejected.
+ *
+ * Usage: CodecGenerator schema Protocol.java header.h...
+ */
+
+public class CodecGenerator {
+
+    private static class Constant {
+        String name;
+        int value;
+        String comment;
+    }
+
+    private static class Field {
+        String type;
+        String name;
+        String comment;
+        int size;
+        int length; // char[length], 0 for everything else
+        int offset;
+    }
+
+    private static class Struct {
+        String name;
+        String comment;
+        List<Field> fields = new ArrayList<>();
+        int size;
+    }
+
+    private final List<Constant> commands = new ArrayList<>();
+    private final List<Constant> tags = new ArrayList<>();
+    private final List<Constant> constants = new ArrayList<>();
+    private final List<Struct> structs = new ArrayList<>();
+    private final String schemaName;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CodecGenerator schema Protocol.java header.h...");
+            System.exit(2);
+        }
+        File schema = new File(args[0]);
+        CodecGenerator generator = new CodecGenerator("protocol/" + schema.getName());
+        generator.parse(Files.readAllLines(schema.toPath(), StandardCharsets.UTF_8));
+        write(new File(args[1]), generator.java());
+        for (int i = 2; i < args.length; ++i) {
+            write(new File(args[i]), generator.header());
+        }
+    }
+
+    CodecGenerator(String name) {
+        schemaName = name;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        System.out.println("wrote " + file);
+    }
+
+    private static RuntimeException error(int line, String msg) {
+        return new IllegalArgumentException("line " + line + ": " + msg);
+    }
+
+    void parse(List<String> lines) {
+        Struct struct = null;
+        Set<String> names = new HashSet<>();
+        Set<Integer> ids = new HashSet<>();
+        for (int n = 1; n <= lines.size(); ++n) {
+            String line = lines.get(n - 1);
+            String comment = "";
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                comment = line.substring(hash + 1).trim();
+                line = line.substring(0, hash);
+            }
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            boolean indented = Character.isWhitespace(line.charAt(0));
+            String[] words = line.trim().split("\\s+");
+
+            if (indented) {
+                if (null == struct || 2 != words.length) {
+                    throw error(n, "expected a field: TYPE NAME");
+                }
+                struct.fields.add(field(n, words[0], words[1], comment));
+                continue;
+            }
+            if (null != struct) {
+                layout(struct);
+                struct = null;
+            }
+            switch (words[0]) {
+                case "command":
+                case "tag": {
+                    if (3 != words.length) {
+                        throw error(n, "expected " + words[0] + " NAME ID");
+                    }
+                    Constant c = new Constant();
+                    c.name = words[1];
+                    c.value = Integer.decode(words[2]);
+                    c.comment = comment;
+                    if (c.value < 0 || c.value > 0xFF || !ids.add(c.value)) {
+                        throw error(n, "id " + words[2] + " isn't a byte or not unique");
+                    }
+                    if (!names.add(c.name)) {
+                        throw error(n, c.name + " defined twice");
+                    }
+                    ("command".equals(words[0]) ? commands : tags).add(c);
+                } break;
+
+                case "const": {
+                    if (3 != words.length) {
+                        throw error(n, "expected const NAME VALUE");
+                    }
+                    Constant c = new Constant();
+                    c.name = words[1];
+                    c.value = Integer.decode(words[2]);
+                    c.comment = comment;
+                    if (!names.add(c.name)) {
+                        throw error(n, c.name + " defined twice");
+                    }
+                    constants.add(c);
+                } break;
+
+                case "struct": {
+                    if (2 != words.length) {
+                        throw error(n, "expected struct NAME");
+                    }
+                    struct = new Struct();
+                    struct.name = words[1];
+                    struct.comment = comment;
+                    if (!struct.name.endsWith("_t") || !names.add(struct.name)) {
+                        throw error(n, "struct names end with _t and have to be unique");
+                    }
+                    structs.add(struct);
+                } break;
+
+                default:
+                    throw error(n, "unknown keyword " + words[0]);
+            }
+        }
+        if (null != struct) {
+            layout(struct);
+        }
+    }
+
+    private static Field field(int n, String type, String name, String comment) {
+        Field f = new Field();
+        f.type = type;
+        f.name = name;
+        f.comment = comment;
+        switch (type) {
+            case "int8":   case "uint8":  f.size = 1; break;
+            case "int16":  case "uint16": f.size = 2; break;
+            case "int32":  case "uint32": f.size = 4; break;
+            case "float":                 f.size = 4; break;
+            default:
+                if (type.matches("char\\[[0-9]+\\]")) {
+                    f.length = Integer.parseInt(type.substring(5, type.length() - 1));
+                    f.size = f.length;
+                    if (f.length < 1) {
+                        throw error(n, "char[0]");
+                    }
+                } else {
+                    throw error(n, "unknown type " + type);
+                }
+        }
+        return f;
+    }
+
+    private static void layout(Struct s) {
+        int offset = 0;
+        int align = 1;
+        for (Field f : s.fields) {
+            int a = 0 == f.length ? f.size : 1;
+            if (0 != offset % a) {
+                throw new IllegalArgumentException(s.name + "." + f.name + " at offset " + offset + " isn't aligned, reorder the fields");
+            }
+            f.offset = offset;
+            offset += f.size;
+            align = Math.max(align, a);
+        }
+        if (0 != offset % align) {
+            throw new IllegalArgumentException(s.name + " needs padding at the end, reorder the fields");
+        }
+        // the command id goes in front of it
+        if (offset > FrameCodec.MAX_PAYLOAD - 1) {
+            throw new IllegalArgumentException(s.name + " is " + offset + " bytes, more than fits into a frame");
+        }
+        s.size = offset;
+    }
+
+    // app_id_t -> AppId
+    private static String className(String struct) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : struct.substring(0, struct.length() - 2).split("_")) {
+            sb.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+        }
+        return sb.toString();
+    }
+
+    private static String javaType(Field f) {
+        if (0 != f.length) {
+            return "String";
+        }
+        return "float".equals(f.type) ? "float" : "int";
+    }
+
+    private static String getter(Field f) {
+        String at = "b, o + " + f.name.toUpperCase(Locale.US);
+        switch (f.type) {
+            case "int8":   return "b[o + " + f.name.toUpperCase(Locale.US) + "]";
+            case "uint8":  return "b[o + " + f.name.toUpperCase(Locale.US) + "] & 0xFF";
+            case "int16":  return "(short)getShort(" + at + ")";
+            case "uint16": return "getShort(" + at + ")";
+            case "int32":
+            case "uint32": return "getInt(" + at + ")";
+            case "float":  return "Float.intBitsToFloat(getInt(" + at + "))";
+        }
+        return "getString(" + at + ", " + f.length + ")";
+    }
+
+    private static String setter(Field f) {
+        String at = "b, o + " + f.name.toUpperCase(Locale.US);
+        switch (f.type) {
+            case "int8":
+            case "uint8":  return "b[o + " + f.name.toUpperCase(Locale.US) + "] = (byte)" + f.name + ";";
+            case "int16":
+            case "uint16": return "putShort(" + at + ", " + f.name + ");";
+            case "int32":
+            case "uint32": return "putInt(" + at + ", " + f.name + ");";
+            case "float":  return "putInt(" + at + ", Float.floatToIntBits(" + f.name + "));";
+        }
+        return "putString(" + at + ", " + f.length + ", " + f.name + ");";
+    }
+
+    String java() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("package org.vancouverroboticsclub.robot_rfcomm;");
+        out.println();
+        out.println("/**");
+        out.println(" * Generated from " + schemaName + " by CodecGenerator, don't edit.");
+        out.println(" *");
+        out.println(" * Command ids, tags, and a codec for each data structure exchanged with the robot.");
+        out.println(" * A decoder reads one field of a struct from the response of a CommandStream at the");
+        out.println(" * given offset, \\c write appends the whole struct to the request.");
+        out.println(" */");
+        out.println();
+        out.println("public final class Protocol {");
+        out.println();
+        for (Constant c : commands) {
+            constant(out, "CMD_" + c.name, c.value, c.comment);
+        }
+        out.println();
+        for (Constant c : tags) {
+            constant(out, c.name, c.value, c.comment);
+        }
+        if (!constants.isEmpty()) {
+            out.println();
+        }
+        for (Constant c : constants) {
+            out.println(String.format(Locale.US, "    public final static int %-16s = %d;%s",
+                    c.name, c.value, c.comment.isEmpty() ? "" : " // " + c.comment));
+        }
+
+        for (Struct s : structs) {
+            out.println();
+            out.println("    // " + s.name + (s.comment.isEmpty() ? "" : ", " + s.comment));
+            out.println("    public final static class " + className(s.name) + " {");
+            out.println("        public final static int SIZE = " + s.size + ";");
+            for (Field f : s.fields) {
+                out.println("        public final static int " + f.name.toUpperCase(Locale.US) + " = " + f.offset + ";"
+                        + (f.comment.isEmpty() ? "" : " // " + f.comment));
+            }
+
+            for (Field f : s.fields) {
+                out.println();
+                out.println("        public static " + javaType(f) + " " + f.name + "(CommandStream s) {");
+                out.println("            return " + f.name + "(s, 0);");
+                out.println("        }");
+                out.println("        public static " + javaType(f) + " " + f.name + "(CommandStream s, int o) {");
+                out.println("            byte[] b = s.responseBuffer();");
+                out.println("            return " + getter(f) + ";");
+                out.println("        }");
+            }
+
+            out.println();
+            StringBuilder params = new StringBuilder();
+            for (Field f : s.fields) {
+                params.append(", ").append(javaType(f)).append(' ').append(f.name);
+            }
+            out.println("        public static boolean write(CommandStream s" + params + ") {");
+            out.println("            int o = s.claim(SIZE);");
+            out.println("            if (o < 0) {");
+            out.println("                return false;");
+            out.println("            }");
+            out.println("            byte[] b = s.requestBuffer();");
+            for (Field f : s.fields) {
+                out.println("            " + setter(f));
+            }
+            out.println("            s.addToChecksum(o, SIZE);");
+            out.println("            return true;");
+            out.println("        }");
+            out.println("    }");
+        }
+
+        out.println();
+        out.println("    private Protocol() {");
+        out.println("    }");
+        out.println();
+        out.println("    static int getShort(byte[] b, int o) {");
+        out.println("        return (b[o] & 0xFF) | (b[o + 1] & 0xFF) << 8;");
+        out.println("    }");
+        out.println("    static int getInt(byte[] b, int o) {");
+        out.println("        return (b[o] & 0xFF) | (b[o + 1] & 0xFF) << 8 | (b[o + 2] & 0xFF) << 16 | (b[o + 3] & 0xFF) << 24;");
+        out.println("    }");
+        out.println("    // up to the terminating 0, or size bytes");
+        out.println("    static String getString(byte[] b, int o, int size) {");
+        out.println("        int length = 0;");
+        out.println("        while (length < size && 0 != b[o + length]) {");
+        out.println("            ++length;");
+        out.println("        }");
+        out.println("        return new String(b, o, length);");
+        out.println("    }");
+        out.println("    static void putShort(byte[] b, int o, int v) {");
+        out.println("        b[o] = (byte)v;");
+        out.println("        b[o + 1] = (byte)(v >> 8);");
+        out.println("    }");
+        out.println("    static void putInt(byte[] b, int o, int v) {");
+        out.println("        b[o] = (byte)v;");
+        out.println("        b[o + 1] = (byte)(v >> 8);");
+        out.println("        b[o + 2] = (byte)(v >> 16);");
+        out.println("        b[o + 3] = (byte)(v >> 24);");
+        out.println("    }");
+        out.println("    // truncated to size - 1 chars, the rest is filled with 0");
+        out.println("    static void putString(byte[] b, int o, int size, String v) {");
+        out.println("        int length = null == v ? 0 : Math.min(v.length(), size - 1);");
+        out.println("        for (int i = 0; i < size; ++i) {");
+        out.println("            b[o + i] = i < length ? (byte)v.charAt(i) : 0;");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+        out.flush();
+        return sw.toString();
+    }
+
+    private static void constant(PrintWriter out, String name, int value, String comment) {
+        out.println(String.format(Locale.US, "    public final static int %-16s = 0x%02X;%s",
+                name, value, comment.isEmpty() ? "" : " // " + comment));
+    }
+
+    String header() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("/**");
+        out.println(" * Generated from " + schemaName + " by CodecGenerator, don't edit.");
+        out.println(" *");
+        out.println(" * The command ids and the data structures used for the communication with the app,");
+        out.println(" * which has the same definitions in Protocol.java.");
+        out.println(" * */");
+        out.println("#ifndef INCLUDED_protocol_h_");
+        out.println("#define INCLUDED_protocol_h_");
+        out.println();
+        out.println("#include <stdint.h>");
+        out.println();
+        for (Constant c : commands) {
+            define(out, "CMD_" + c.name, c.value, c.comment);
+        }
+        out.println();
+        out.println("// While streaming every transmission starts with one of these tags");
+        for (Constant c : tags) {
+            define(out, c.name, c.value, c.comment);
+        }
+        if (!constants.isEmpty()) {
+            out.println();
+        }
+        for (Constant c : constants) {
+            out.println(String.format(Locale.US, "#define %-15s %d%s", c.name, c.value, c.comment.isEmpty() ? "" : "  // " + c.comment));
+        }
+        for (Struct s : structs) {
+            out.println();
+            if (!s.comment.isEmpty()) {
+                out.println("// " + s.comment);
+            }
+            out.println("typedef struct {");
+            for (Field f : s.fields) {
+                String decl;
+                if (0 != f.length) {
+                    decl = "char     " + f.name + "[" + f.length + "];";
+                } else {
+                    String type = "float".equals(f.type) ? "float" : f.type + "_t";
+                    decl = String.format(Locale.US, "%-8s %s;", type, f.name);
+                }
+                out.println("  " + decl + (f.comment.isEmpty() ? "" : " // " + f.comment));
+            }
+            out.println("} " + s.name + ";");
+        }
+        out.println();
+        out.println("// the app relies on these sizes, fails to compile if the compiler disagrees");
+        for (Struct s : structs) {
+            out.println("typedef char " + s.name + "_size_check[sizeof(" + s.name + ") == " + s.size + " ? 1 : -1];");
+        }
+        out.println();
+        out.println("#endif");
+        out.flush();
+        return sw.toString();
+    }
+
+    private static void define(PrintWriter out, String name, int value, String comment) {
+        out.println(String.format(Locale.US, "#define %-15s 0x%02X%s", name, value, comment.isEmpty() ? "" : "  // " + comment));
+    }
+}
@@ -0,0 +1,283 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuzzing of the framed protocol, run with
+ *     ./gradlew :bench:fuzz
+ *
+ * The decoder fuzz feeds a stream of random frames, with bytes dropped, flipped and
+ * inserted at random, through FrameCodec in random sized reads. Every frame which made
+ * it through undamaged has to be decoded, and nothing that wasn't sent - apart from the
+ * odd CRC collision, a CRC-16 misses one in 65536 corrupted frames. The other
+ * exception is a frame which lost the last byte of its CRC: if the sync byte of the
+ * next frame happens to take its place it is (correctly) decoded, but the next frame
+ * is lost.
+ *
+ * The link fuzz runs a framed Robot against a RobotSimulator on a lossy link. Every
+ * command has to either complete or be aborted individually, no queued command may be
+ * discarded and every ID received has to be the simulator's.
+ *
+ * Any violation ends the run with a non-zero exit code.
+ */
+
+public class FrameFuzz {
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        double[] rates = { 0.0, 0.001, 0.01, 0.05 };
+
+        for (double rate : rates) {
+            fuzzDecoder(seed, 20000, rate);
+        }
+        for (double rate : rates) {
+            fuzzLink(seed, 2000, rate);
+        }
+        if (0 != failures) {
+            System.out.println(failures + " failure(s)");
+            System.exit(1);
+        }
+    }
+
+    private static void fail(String msg) {
+        System.out.println("FAIL: " + msg);
+        ++failures;
+    }
+
+    private static void fuzzDecoder(long seed, int count, double rate) throws IOException {
+        Random random = new Random(seed);
+        List<byte[]> sent = new ArrayList<>();
+        boolean[] intact = new boolean[count];
+        boolean[] decodedOk = new boolean[count];
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] payload = new byte[FrameCodec.MAX_PAYLOAD];
+        byte[] frame = new byte[FrameCodec.MAX_PAYLOAD + FrameCodec.OVERHEAD];
+
+        for (int i = 0; i < count; ++i) {
+            int size = 1 + random.nextInt(FrameCodec.MAX_PAYLOAD);
+            random.nextBytes(payload);
+            int length = FrameCodec.encode(i, payload, size, frame, 0);
+            sent.add(Arrays.copyOfRange(payload, 0, size));
+            intact[i] = true;
+            for (int j = 0; j < length; ++j) {
+                double r = random.nextDouble();
+                if (r < rate) {
+                    intact[i] = false;                           // dropped
+                } else if (r < 2 * rate) {
+                    intact[i] = false;                           // flipped
+                    wire.write(frame[j] ^ (1 << random.nextInt(8)));
+                } else if (r < 3 * rate) {
+                    wire.write(random.nextBoolean() ? FrameCodec.SYNC : random.nextInt(256));
+                    wire.write(frame[j]);
+                    if (0 != j) {
+                        intact[i] = false;                       // inserted
+                    }
+                } else {
+                    wire.write(frame[j]);
+                }
+            }
+        }
+
+        final Random chunks = new Random(seed + 1);
+        InputStream is = new ByteArrayInputStream(wire.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1 + chunks.nextInt(64)));
+            }
+        };
+        RingBuffer ring = new RingBuffer(256);
+        FrameCodec codec = new FrameCodec();
+        byte[] decoded = new byte[FrameCodec.MAX_PAYLOAD];
+        int next = 0;
+        int received = 0;
+        int bogus = 0;
+        int missed = 0;
+        int swallowed = 0;
+        boolean eof = false;
+
+        while (true) {
+            int size = codec.next(ring);
+            if (size < 0) {
+                if (!eof) {
+                    int read = ring.fill(is);
+                    eof = read < 0;
+                    if (!eof) {
+                        ring.accept(read);
+                    }
+                    continue;
+                }
+                if (0 == ring.available()) {
+                    break;
+                }
+                // nothing left to complete the partial frame, same as a timeout
+                codec.resync(ring);
+                continue;
+            }
+            ring.skip(FrameCodec.HEADER_SIZE);
+            ring.read(decoded, 0, size);
+            ring.skip(FrameCodec.CRC_SIZE);
+
+            // the sequence number only has 8 bits, look for the frame in the vicinity
+            int match = -1;
+            for (int i = next; i < count && i < next + 512; ++i) {
+                if ((i & 0xFF) == codec.sequence() && Arrays.equals(sent.get(i), Arrays.copyOf(decoded, size))) {
+                    match = i;
+                    break;
+                }
+            }
+            if (-1 == match) {
+                ++bogus;
+                continue;
+            }
+            decodedOk[match] = true;
+            ++received;
+            next = match + 1;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (intact[i] && !decodedOk[i]) {
+                if (0 < i && decodedOk[i - 1] && !intact[i - 1]) {
+                    ++swallowed;
+                } else {
+                    ++missed;
+                }
+            }
+        }
+
+        int expected = 0;
+        for (boolean ok : intact) {
+            expected += ok ? 1 : 0;
+        }
+        System.out.println(String.format("decoder rate=%.3f: %d frames, %d intact, %d decoded, %d missed, %d swallowed, %d bogus, %d crc errors, %d bytes dropped",
+                rate, count, expected, received, missed, swallowed, bogus, codec.crcErrors(), codec.dropped()));
+        if (0 != missed || bogus > 1 + codec.crcErrors() / 16384) {
+            fail("decoder rate=" + rate + " missed " + missed + " and accepted " + bogus + " bogus frames");
+        }
+    }
+
+    private static void fuzzLink(final long seed, final int count, final double rate) throws InterruptedException {
+        final RobotSimulator sim = new RobotSimulator();
+        sim.setErrorRate(rate, rate, seed);
+        final HandlerThread thread = new HandlerThread("FrameFuzz");
+        thread.start();
+
+        final int[] ids = new int[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        final Handler handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_ID == msg.what) {
+                    Robot.Id id = (Robot.Id)msg.obj;
+                    ids["java-sim".equals(id.name) && "00:00:00".equals(id.time) ? 0 : 1] += 1;
+                }
+                return true;
+            }
+        });
+
+        final FuzzRobot[] robot = new FuzzRobot[1];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0] = new FuzzRobot(sim, handler, done);
+                robot[0].setFraming(true);
+                robot[0].setWindow(4);
+                robot[0].setAdaptiveTimeouts(20, 200);
+                // all commands are queued at once, none of them may be dropped
+                robot[0].setQueueLimit(2 * count, CommandQueue.Overflow.DROP_NEWEST);
+                Random random = new Random(seed ^ Double.doubleToLongBits(rate));
+                for (int i = 0; i < count; ++i) {
+                    switch (random.nextInt(4)) {
+                        case 0: robot[0].ping(); break;
+                        case 1: robot[0].getID(); break;
+                        case 2: robot[0].getValue(); break;
+                        case 3: robot[0].setValue(random.nextFloat(), 1); robot[0].getValue(); break;
+                    }
+                }
+            }
+        });
+
+        boolean finished = done.await(60, TimeUnit.SECONDS);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final int[] result = new int[3];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = robot[0].completed;
+                result[1] = robot[0].aborted;
+                result[2] = robot[0].sent;
+                robot[0].disconnect();
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        thread.quit();
+
+        FrameCodec codec = robot[0].frameDecoder();
+        System.out.println(String.format("link rate=%.3f: %d commands, %d completed, %d aborted, %d link errors, %d crc errors, %d bytes dropped, %d bad ids",
+                rate, result[2], result[0], result[1], sim.errors(), codec.crcErrors(), codec.dropped(), ids[1]));
+        if (!finished) {
+            fail("link rate=" + rate + " stalled after " + (result[0] + result[1]) + " of " + result[2] + " commands");
+        }
+        if (0 != ids[1]) {
+            fail("link rate=" + rate + " delivered " + ids[1] + " corrupted IDs");
+        }
+        if (0 == rate && 0 != result[1]) {
+            fail("link rate=0 aborted " + result[1] + " commands");
+        }
+    }
+
+    // Counts the outcome of every command which expects a response.
+    private static class FuzzRobot extends Robot {
+        final CountDownLatch done;
+        int sent;
+        int completed;
+        int aborted;
+
+        FuzzRobot(Transport transport, Handler handler, CountDownLatch latch) {
+            super(transport, handler);
+            done = latch;
+        }
+
+        @Override
+        protected void sendCommand(CommandStream cmd) {
+            if (cmd.requiresResponse()) {
+                ++sent;
+            }
+            super.sendCommand(cmd);
+        }
+
+        @Override
+        protected void processResponse() {
+            super.processResponse();
+            ++completed;
+            check();
+        }
+
+        @Override
+        protected void abortResponse() {
+            super.abortResponse();
+            ++aborted;
+            check();
+        }
+
+        private void check() {
+            if (completed + aborted == sent) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recovery from dropouts of the link, run with
+ *     ./gradlew :bench:dropout
+ *
+ * A producer thread keeps sending VALUE_GET, VALUE_SET and PING commands to a Robot
+ * while the link to the RobotSimulator (38400 baud) is cut again and again, with the
+ * robot out of range for 0 to 2000ms (see RobotSimulator.dropLink). For each dropout
+ * the time from cutting the link until the Robot reports it's connected again is
+ * measured, i.e. the time the robot is out of range plus what the reconnect costs on
+ * top of it. At the end the outcome of the commands is reported.
+ *
+ * The dropouts are repeated with links that fade out silently (RobotSimulator.fadeLink),
+ * which only the keepalive can detect (see Keepalive). These take up to another
+ * (MISSED + 1) * INTERVAL_MS to notice, meanwhile commands can time out - which is
+ * reported, but not a failure.
+ *
+ * The run fails with a non-zero exit code if the link isn't back within the time the
+ * robot is out of range plus the longest backoff (plus the keepalive's detection time),
+ * if an idempotent command (VALUE_GET, VALUE_SET) failed while the links were closed,
+ * or if a command never finished. PINGs lost with the link are aborted, that's expected.
+ */
+
+public class LinkDropout {
+
+    private final static int[] DOWN_MS = { 0, 100, 500, 2000 };
+    private final static int ROUNDS = 3;
+    private final static int INITIAL_MS = 250;
+    private final static int MAX_MS = 2000;
+    private final static int INTERVAL_MS = 100;
+    private final static int MISSED = 3;
+    // commands per second sent by the producer
+    private final static int RATE = 100;
+
+    private static volatile CountDownLatch connected;
+    private static volatile long connectedAt;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        final RobotSimulator sim = new RobotSimulator(38400, 5);
+        final HandlerThread thread = new HandlerThread("LinkDropout");
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CONNECTED == msg.obj) {
+                    connectedAt = System.nanoTime();
+                    connected.countDown();
+                }
+                return true;
+            }
+        });
+
+        connected = new CountDownLatch(1);
+        final Robot[] robot = new Robot[1];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0] = new Robot(sim, handler);
+                robot[0].setWindow(4);
+                robot[0].setReconnect(INITIAL_MS, MAX_MS);
+                robot[0].setKeepalive(INTERVAL_MS, MISSED);
+            }
+        });
+        connected.await();
+
+        // outcome of the commands by Command, see CommandStream.Callback
+        final AtomicInteger[][] outcomes = new AtomicInteger[Command.values().length][6];
+        for (AtomicInteger[] o : outcomes) {
+            for (int i = 0; i < o.length; ++i) {
+                o[i] = new AtomicInteger();
+            }
+        }
+        final Semaphore unfinished = new Semaphore(0);
+        final CommandStream.Callback done = new CommandStream.Callback() {
+            @Override
+            public void onDone(CommandStream cmd, int status) {
+                outcomes[cmd.command().ordinal()][status].incrementAndGet();
+                unfinished.release();
+            }
+        };
+        final AtomicInteger sent = new AtomicInteger();
+        final CommandFuture.Listener<Void> pinged = new CommandFuture.Listener<Void>() {
+            @Override
+            public void onDone(CommandFuture<Void> future) {
+                int status = future.isSuccess() ? CommandStream.COMPLETED : ((CommandException)future.failure()).status;
+                outcomes[Command.PING.ordinal()][status].incrementAndGet();
+                unfinished.release();
+            }
+        };
+
+        Thread producer = new Thread("LinkDropout.producer") {
+            @Override
+            public void run() {
+                for (int n = 0; !isInterrupted(); ++n) {
+                    switch (n % 3) {
+                        case 0: robot[0].getValue(done); break;
+                        case 1: robot[0].setValue(n, 1, done); break;
+                        case 2: robot[0].pingAsync().addListener(pinged); break;
+                    }
+                    sent.incrementAndGet();
+                    try {
+                        Thread.sleep(1000 / RATE);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        for (int down : DOWN_MS) {
+            dropouts(sim, down, false);
+        }
+        // whatever was replayed has been sent by now
+        Thread.sleep(1000);
+        int[] closedFailures = new int[outcomes.length];
+        for (Command c : Command.values()) {
+            AtomicInteger[] o = outcomes[c.ordinal()];
+            closedFailures[c.ordinal()] = o[CommandStream.ABORTED].get() + o[CommandStream.TIMED_OUT].get();
+        }
+        for (int down : DOWN_MS) {
+            dropouts(sim, down, true);
+        }
+        producer.interrupt();
+        producer.join();
+
+        // everything still queued is sent once the link is back
+        if (!unfinished.tryAcquire(sent.get(), 10, TimeUnit.SECONDS)) {
+            System.out.println("FAIL: " + (sent.get() - unfinished.availablePermits()) + " of " + sent.get() + " commands never finished");
+            ++failures;
+        }
+        final LinkMetrics.Snapshot[] metrics = new LinkMetrics.Snapshot[1];
+        final CountDownLatch stopped = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                metrics[0] = robot[0].metrics().snapshot();
+                robot[0].disconnect();
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        thread.quit();
+
+        for (Command c : new Command[] { Command.VALUE_GET, Command.VALUE_SET, Command.PING }) {
+            AtomicInteger[] o = outcomes[c.ordinal()];
+            System.out.println(String.format(Locale.US, "%-12s completed %5d, aborted %3d, dropped %3d, replaced %3d, timed out %3d",
+                    c, o[CommandStream.COMPLETED].get(), o[CommandStream.ABORTED].get(), o[CommandStream.DROPPED].get(),
+                    o[CommandStream.REPLACED].get(), o[CommandStream.TIMED_OUT].get()));
+            if (c.idempotent && 0 != closedFailures[c.ordinal()]) {
+                System.out.println("FAIL: " + c + " is idempotent but failed " + closedFailures[c.ordinal()] + " times while the links were closed");
+                ++failures;
+            }
+        }
+        System.out.println(metrics[0]);
+
+        if (0 != failures) {
+            System.out.println(failures + " failure(s)");
+            System.exit(1);
+        }
+    }
+
+    private static void dropouts(RobotSimulator sim, int down, boolean silent) throws InterruptedException {
+        int bound = down + MAX_MS + 100 + (silent ? (MISSED + 1) * INTERVAL_MS : 0);
+        long worst = 0;
+        long total = 0;
+        for (int round = 0; round < ROUNDS; ++round) {
+            Thread.sleep(500);
+            connected = new CountDownLatch(1);
+            long start = System.nanoTime();
+            if (silent) {
+                sim.fadeLink(down);
+            } else {
+                sim.dropLink(down);
+            }
+            if (!connected.await(2 * bound, TimeUnit.MILLISECONDS)) {
+                System.out.println("FAIL: no connection " + 2 * bound + "ms after a dropout of " + down + "ms");
+                ++failures;
+                continue;
+            }
+            long ms = (connectedAt - start) / 1000000L;
+            worst = Math.max(worst, ms);
+            total += ms;
+            if (ms > bound) {
+                System.out.println("FAIL: reconnecting after a dropout of " + down + "ms took " + ms + "ms");
+                ++failures;
+            }
+        }
+        System.out.println(String.format(Locale.US, "%-6s out of range %5dms: reconnected after %5dms on average, %5dms at worst",
+                silent ? "silent" : "closed", down, total / ROUNDS, worst));
+    }
+}
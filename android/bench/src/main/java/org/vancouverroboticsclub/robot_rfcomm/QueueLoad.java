@@ -0,0 +1,246 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Overload of the command queue, run with
+ *     ./gradlew :bench:queueLoad
+ *
+ * A producer thread sends VALUE_GET and VALUE_SET commands to a Robot at several times
+ * the rate a RobotSimulator at 38400 baud can answer them, once with an (effectively)
+ * unbounded queue and once for each Overflow policy of a bounded queue. For each run
+ * the time commands waited in the queue (see LinkMetrics) and the outcome of the
+ * commands (see CommandStream.Callback) are reported.
+ *
+ * Without a bound the queue wait grows for as long as the overload lasts. With a bound
+ * it has to stay below the time it takes to drain a full queue at the measured rate
+ * (Little's law), plus some slack for the link's jitter - otherwise the run fails with
+ * a non-zero exit code. An unbounded queue must not drop anything, the commands still
+ * queued when the robot disconnects at the end of a run are aborted.
+ *
+ * Finally senders blocked by a full queue (Overflow.BLOCK) have to be woken up when a
+ * command they waited behind never makes it into the queue: it's aborted because the
+ * robot is disconnected, answered by the ResponseCache, or it replaces a queued
+ * command. The link is down for these, so the queue itself never drains.
+ */
+
+public class QueueLoad {
+
+    private final static int CAPACITY = 16;
+    private final static int SECONDS = 5;
+    // commands per second offered by the producer
+    private final static int RATE = 1000;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        run("unbounded", Integer.MAX_VALUE, CommandQueue.Overflow.DROP_NEWEST);
+        for (CommandQueue.Overflow overflow : CommandQueue.Overflow.values()) {
+            run(overflow.toString(), CAPACITY, overflow);
+        }
+        for (Bypass bypass : Bypass.values()) {
+            wakeup(bypass);
+        }
+        if (0 != failures) {
+            System.out.println(failures + " failure(s)");
+            System.exit(1);
+        }
+    }
+
+    // How the commands of the blocked senders get past the queue.
+    private enum Bypass { ABORTED, CACHED, REPLACED }
+
+    private static void wakeup(final Bypass bypass) throws InterruptedException {
+        final RobotSimulator sim = new RobotSimulator();
+        sim.dropLink(60000);
+        final HandlerThread thread = new HandlerThread("QueueLoad");
+        thread.start();
+        // the first attempt to connect and the immediate retry failed, and there won't be
+        // another one for a minute which could send (and requeue) the queued commands
+        final CountDownLatch down = new CountDownLatch(2);
+        final Handler handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.RECONNECTING == msg.obj) {
+                    down.countDown();
+                }
+                return true;
+            }
+        });
+
+        final Robot[] robot = new Robot[1];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0] = new Robot(sim, handler);
+                robot[0].setReconnect(60000, 60000);
+            }
+        });
+        down.await();
+
+        final CountDownLatch ready = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                switch (bypass) {
+                    case ABORTED:
+                        robot[0].disconnect();
+                        robot[0].setQueueLimit(1, CommandQueue.Overflow.BLOCK);
+                        break;
+                    case CACHED:
+                        // later requests are merged onto the queued one
+                        robot[0].setCacheMaxAge(Command.VALUE_GET, 60000);
+                        robot[0].setQueueLimit(2, CommandQueue.Overflow.BLOCK);
+                        robot[0].getValue();
+                        break;
+                    case REPLACED:
+                        robot[0].setQueueLimit(2, CommandQueue.Overflow.BLOCK);
+                        robot[0].setValue(0, 0);
+                        break;
+                }
+                ready.countDown();
+            }
+        });
+        ready.await();
+
+        final int senders = 3;
+        final int commands = 20;
+        final AtomicInteger sent = new AtomicInteger();
+        Thread[] threads = new Thread[senders];
+        for (int i = 0; i < senders; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < commands; ++n) {
+                        if (Bypass.CACHED == bypass) {
+                            robot[0].getValue();
+                        } else {
+                            robot[0].setValue(n, 0);
+                        }
+                        sent.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0].disconnect();
+            }
+        });
+        thread.quitSafely();
+
+        System.out.println(String.format(Locale.US, "blocked senders, %-8s sent %3d of %3d commands",
+                bypass, sent.get(), senders * commands));
+        if (senders * commands != sent.get()) {
+            failures += 1;
+            System.out.println(String.format(Locale.US, "FAIL: senders still blocked after %s commands", bypass));
+        }
+    }
+
+    private static void run(String name, final int capacity, final CommandQueue.Overflow overflow) throws InterruptedException {
+        final RobotSimulator sim = new RobotSimulator(38400, 5);
+        final HandlerThread thread = new HandlerThread("QueueLoad");
+        thread.start();
+        // the commands still queued are finished once the link is closed
+        final CountDownLatch closed = new CountDownLatch(1);
+        final Handler handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CLOSED == msg.obj) {
+                    closed.countDown();
+                }
+                return true;
+            }
+        });
+
+        final Robot[] robot = new Robot[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0] = new Robot(sim, handler);
+                robot[0].setWindow(4);
+                robot[0].setQueueLimit(capacity, overflow);
+                created.countDown();
+            }
+        });
+        created.await();
+
+        final AtomicInteger[] outcomes = new AtomicInteger[6];
+        for (int i = 0; i < outcomes.length; ++i) {
+            outcomes[i] = new AtomicInteger();
+        }
+        CommandStream.Callback done = new CommandStream.Callback() {
+            @Override
+            public void onDone(CommandStream cmd, int status) {
+                outcomes[status].incrementAndGet();
+            }
+        };
+
+        // the producer is this thread, so BLOCK really blocks
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        long next = start;
+        int offered = 0;
+        while (System.nanoTime() < end) {
+            if (0 == offered % 4) {
+                robot[0].setValue(offered, 0, done);
+            } else {
+                robot[0].getValue(done);
+            }
+            ++offered;
+            next += TimeUnit.SECONDS.toNanos(1) / RATE;
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        final LinkMetrics.Snapshot[] metrics = new LinkMetrics.Snapshot[1];
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                metrics[0] = robot[0].metrics().snapshot();
+                robot[0].disconnect();
+            }
+        });
+        closed.await();
+        thread.quit();
+
+        LatencyHistogram.Snapshot wait = metrics[0].queueWait;
+        int completed = outcomes[CommandStream.COMPLETED].get();
+        double drainRate = completed / elapsed;
+        System.out.println(String.format(Locale.US,
+                "%-12s offered %5d (%4.0f/s), completed %5d (%3.0f/s), dropped %5d, replaced %5d, aborted %5d, max queue %5d, queue wait p50=%.1fms p99=%.1fms max=%.1fms",
+                name, offered, offered / elapsed, completed, drainRate,
+                outcomes[CommandStream.DROPPED].get(), outcomes[CommandStream.REPLACED].get(),
+                outcomes[CommandStream.ABORTED].get(), metrics[0].maxQueueDepth,
+                wait.percentile(0.5) / 1000.0, wait.percentile(0.99) / 1000.0, wait.max / 1000.0));
+
+        if (Integer.MAX_VALUE == capacity) {
+            if (0 != outcomes[CommandStream.DROPPED].get()) {
+                failures += 1;
+                System.out.println(String.format(Locale.US, "FAIL: %s dropped commands", name));
+            }
+        } else {
+            double boundMS = 2 * 1000.0 * capacity / drainRate + 100;
+            if (wait.percentile(0.99) / 1000.0 > boundMS) {
+                failures += 1;
+                System.out.println(String.format(Locale.US, "FAIL: %s p99 queue wait above %.1fms", name, boundMS));
+            }
+        }
+    }
+}
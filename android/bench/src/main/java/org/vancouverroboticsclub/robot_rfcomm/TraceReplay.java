@@ -0,0 +1,243 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay of captured sessions (see TraceCapture and ReplayTransport), run with
+ *     ./gradlew :bench:replay
+ * or, to replay a capture pulled off a phone,
+ *     ./gradlew :bench:replay -Pcapture=FILE
+ *
+ * Without a capture a session is recorded against the RobotSimulator (38400 baud),
+ * plain and framed over a lossy link, each with the value streaming in between the
+ * responses. Each session is then replayed, the responses as fast as possible and in
+ * real time, with the requests sent at the pace they were recorded (see
+ * ReplayTransport.play). A replay has to produce exactly what the session did: the
+ * same bytes written, the same outcome for every command and the same decoded values -
+ * otherwise the run fails with a non-zero exit code. That makes any change to the
+ * decoding of the traffic show up without a robot. Each session is replayed once more
+ * with nothing paced, which has to write the same requests in well under the time the
+ * session took (the outcomes may differ, see ReplayTransport.play).
+ *
+ * A given capture is replayed as fast as possible, which reports the outcomes and
+ * fails if the requests diverge from the capture or it can't be played to the end.
+ */
+
+public class TraceReplay {
+
+    private final static int COMMANDS = 300;
+    private final static int WINDOW = 4;
+    // of the recorded session's time an unpaced replay may take at most
+    private final static double UNPACED_SHARE = 0.5;
+
+    private static int failures;
+
+    // What the robot made of a session.
+    static class Session {
+        final List<Object> decoded = new ArrayList<>();
+        // by CommandStream.Callback status
+        final int[] outcomes = new int[6];
+        long divergence = -1;
+        double seconds;
+
+        // Commands which never made it onto the link (replaced or dropped) aren't part
+        // of the capture, so they don't count.
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Session)) {
+                return false;
+            }
+            Session other = (Session)o;
+            for (int status : new int[] { CommandStream.COMPLETED, CommandStream.ABORTED, CommandStream.TIMED_OUT, CommandStream.REJECTED }) {
+                if (outcomes[status] != other.outcomes[status]) {
+                    return false;
+                }
+            }
+            return decoded.equals(other.decoded);
+        }
+
+        @Override
+        public int hashCode() {
+            return decoded.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "completed %4d, aborted %3d, timed out %3d, %4d values decoded in %6.3fs",
+                    outcomes[CommandStream.COMPLETED], outcomes[CommandStream.ABORTED], outcomes[CommandStream.TIMED_OUT],
+                    decoded.size(), seconds);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (0 < args.length) {
+            File capture = new File(args[0]);
+            ReplayTransport replay = new ReplayTransport(capture, false);
+            Session s = replay(replay, WINDOW * 4, false);
+            System.out.println(String.format(Locale.US, "%s: %d chunks, %d bytes received, %s", capture, replay.chunks(), replay.receivedBytes(), s));
+            if (0 <= s.divergence) {
+                System.out.println("FAIL: requests diverge from the capture at byte " + s.divergence);
+                ++failures;
+            }
+        } else {
+            for (boolean framed : new boolean[] { false, true }) {
+                File capture = File.createTempFile("TraceReplay", ".trace");
+                try {
+                    Session recorded = record(capture, framed);
+                    String name = framed ? "framed" : "plain";
+                    System.out.println(String.format(Locale.US, "%-6s recorded %s", name, recorded));
+                    for (boolean realtime : new boolean[] { false, true }) {
+                        Session replayed = replay(new ReplayTransport(capture, realtime), WINDOW, true);
+                        System.out.println(String.format(Locale.US, "%-6s %-8s %s", name, realtime ? "realtime" : "fast", replayed));
+                        if (0 <= replayed.divergence) {
+                            System.out.println("FAIL: requests diverge from the capture at byte " + replayed.divergence);
+                            ++failures;
+                        }
+                        if (!replayed.equals(recorded)) {
+                            System.out.println("FAIL: the replay doesn't match the recorded session");
+                            ++failures;
+                        }
+                    }
+                    Session unpaced = replay(new ReplayTransport(capture, false), WINDOW, false);
+                    System.out.println(String.format(Locale.US, "%-6s %-8s %s", name, "unpaced", unpaced));
+                    if (0 <= unpaced.divergence) {
+                        System.out.println("FAIL: requests diverge from the capture at byte " + unpaced.divergence);
+                        ++failures;
+                    }
+                    if (unpaced.seconds > recorded.seconds * UNPACED_SHARE) {
+                        System.out.println(String.format(Locale.US, "FAIL: the unpaced replay took more than %.0f%% of the session",
+                                UNPACED_SHARE * 100));
+                        ++failures;
+                    }
+                } finally {
+                    capture.delete();
+                }
+            }
+        }
+        if (0 != failures) {
+            System.out.println(failures + " failure(s)");
+            System.exit(1);
+        }
+    }
+
+    static Session record(File capture, final boolean framed) throws Exception {
+        final RobotSimulator sim = new RobotSimulator(38400, 5);
+        if (framed) {
+            sim.setErrorRate(0.002, 0.002, 42);
+        }
+        final Session session = new Session();
+        final Robot robot = start(sim, session, WINDOW, framed);
+        robot.startCapture(capture, 4 << 20);
+
+        final Semaphore done = new Semaphore(0);
+        final CommandStream.Callback callback = callback(session, done);
+        long start = System.nanoTime();
+        robot.subscribe(50);
+        // a little faster than the link can take them, so the window is used and
+        // a value set now and then is replaced in the queue
+        for (int i = 0; i < COMMANDS; ++i) {
+            switch (i % 4) {
+                case 0: robot.getValue(callback); break;
+                case 1: robot.setValue(i, i, callback); break;
+                case 2: robot.getID(); break;
+                case 3: robot.getValue(callback); break;
+            }
+            Thread.sleep(2);
+        }
+        done.acquire(COMMANDS / 4 * 3);
+        robot.unsubscribe();
+        Thread.sleep(500);
+        session.seconds = (System.nanoTime() - start) / 1e9;
+        stop(robot);
+        return session;
+    }
+
+    private static Session replay(ReplayTransport replay, int window, boolean paced) throws Exception {
+        final Session session = new Session();
+        Robot robot = start(replay, session, window, replay.isFramed());
+        long start = System.nanoTime();
+        Semaphore done = new Semaphore(0);
+        if (!replay.play(robot, callback(session, done), paced, 5000) || !replay.awaitDone(10000)) {
+            System.out.println("FAIL: replay stalled after " + replay.replayed() + " of " + replay.chunks() + " chunks");
+            ++failures;
+        }
+        // the last responses are still being decoded
+        Thread.sleep(100);
+        session.seconds = (System.nanoTime() - start) / 1e9;
+        session.divergence = replay.divergence();
+        stop(robot);
+        return session;
+    }
+
+    // Only VALUE_GET and VALUE_SET are sent with a callback while recording, the streams
+    // of a replay all have one.
+    private static CommandStream.Callback callback(final Session session, final Semaphore done) {
+        return new CommandStream.Callback() {
+            @Override
+            public void onDone(CommandStream cmd, int status) {
+                if (Command.VALUE_GET == cmd.command() || Command.VALUE_SET == cmd.command()) {
+                    synchronized (session) {
+                        ++session.outcomes[status];
+                    }
+                }
+                done.release();
+            }
+        };
+    }
+
+    private static Robot start(final Transport transport, final Session session, final int window, final boolean framed) throws InterruptedException {
+        HandlerThread thread = new HandlerThread("TraceReplay");
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                synchronized (session) {
+                    if (Robot.MSG_VALUE == msg.what) {
+                        session.decoded.add(((Robot.Value)msg.obj).value);
+                    } else if (Robot.MSG_ID == msg.what) {
+                        session.decoded.add(((Robot.Id)msg.obj).name);
+                    }
+                }
+                return true;
+            }
+        });
+        final Robot[] robot = new Robot[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                robot[0] = new Robot(transport, handler);
+                robot[0].setWindow(window);
+                robot[0].setFraming(framed);
+                robot[0].disableReconnect();
+                created.countDown();
+            }
+        });
+        created.await(5, TimeUnit.SECONDS);
+        return robot[0];
+    }
+
+    private static void stop(final Robot robot) throws InterruptedException {
+        final CountDownLatch stopped = new CountDownLatch(1);
+        robot.self.post(new Runnable() {
+            @Override
+            public void run() {
+                robot.stopCapture();
+                robot.disconnect();
+                stopped.countDown();
+            }
+        });
+        stopped.await();
+        robot.self.getLooper().quit();
+    }
+}
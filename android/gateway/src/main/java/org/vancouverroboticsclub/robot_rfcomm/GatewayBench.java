@@ -0,0 +1,206 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scaling of a RobotGateway to thousands of robots, each connected over its own loopback
+ * socket to LoopbackRobots. Run with
+ *     ./gradlew :gateway:run -Pjdk21=... [-Pargs="THREADS PERIOD_MS ROBOTS..."]
+ * where THREADS is virtual, platform, selector or all (the default), PERIOD_MS
+ * (default 500) how often each robot is polled, and ROBOTS the fleet sizes (default 100
+ * 1000 4000). With selector the links are serviced by a SelectorThread and the robots
+ * share a HandlerThread per core, see RobotGateway.
+ *
+ * For each fleet the gateway connects all robots and reports the memory a connection
+ * takes, after a GC and including the loopback robot at the other end: heap, where
+ * the stacks of virtual threads live, and resident memory, which includes the stacks
+ * of platform threads. Then a virtual thread per robot, the fleet controller, sends a
+ * VALUE_GET every PERIOD_MS for SECONDS (after WARMUP_SECONDS) and records the latency
+ * until it has the decoded value. With a PERIOD_MS of 0 each robot is polled as fast as
+ * it responds, which measures the throughput. The CPU time the process takes while
+ * measuring is reported per request and per robot, it includes the controller's and
+ * the loopback robots' threads, which are the same whatever THREADS is.
+ */
+
+public class GatewayBench {
+
+    private final static int WARMUP_SECONDS = 2;
+    private final static int SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        String threads = 0 < args.length ? args[0] : "all";
+        int periodMS = 1 < args.length ? Integer.parseInt(args[1]) : 500;
+        List<Integer> fleets = new ArrayList<>();
+        for (int i = 2; i < args.length; ++i) {
+            fleets.add(Integer.parseInt(args[i]));
+        }
+        if (fleets.isEmpty()) {
+            fleets.add(100);
+            fleets.add(1000);
+            fleets.add(4000);
+        }
+        try (LoopbackRobots loopback = new LoopbackRobots()) {
+            for (int robots : fleets) {
+                for (String mode : new String[] { "virtual", "platform", "selector" }) {
+                    if ("all".equals(threads) || mode.equals(threads)) {
+                        run(loopback, mode, robots, periodMS);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(LoopbackRobots loopback, String mode, int count, int periodMS) throws Exception {
+        gc();
+        long heapBefore = heap();
+        long rssBefore = rss();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        SelectorThread selector = null;
+        RobotGateway gateway;
+        if ("selector".equals(mode)) {
+            selector = new SelectorThread();
+            gateway = new RobotGateway(selector, Runtime.getRuntime().availableProcessors());
+        } else {
+            gateway = new RobotGateway("virtual".equals(mode));
+        }
+        final AtomicInteger connected = new AtomicInteger();
+        long start = System.nanoTime();
+        final Robot[] robots = new Robot[count];
+        for (int i = 0; i < count; ++i) {
+            robots[i] = gateway.add(loopback.transport(), msg -> {
+                if (Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CONNECTED == msg.obj) {
+                    connected.incrementAndGet();
+                }
+                return true;
+            });
+        }
+        while (connected.get() < count && System.nanoTime() - start < 60000000000L) {
+            Thread.sleep(10);
+        }
+        long connectMS = (System.nanoTime() - start) / 1000000L;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        gc();
+        long heap = (heap() - heapBefore) / count;
+        long rss = rssBefore < 0 ? -1 : (rss() - rssBefore) / count;
+
+        // each robot is polled by a virtual thread of its own, spread evenly over the period
+        final LatencyHistogram[] latency = new LatencyHistogram[count];
+        final AtomicLong failed = new AtomicLong();
+        final long periodNS = periodMS * 1000000L;
+        final long measureFrom = System.nanoTime() + WARMUP_SECONDS * 1000000000L;
+        final long end = measureFrom + SECONDS * 1000000000L;
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; ++i) {
+            final Robot robot = robots[i];
+            final LatencyHistogram h = latency[i] = new LatencyHistogram();
+            final long first = System.nanoTime() + i * periodNS / count;
+            Thread.ofVirtual().start(() -> {
+                try {
+                    for (long next = first; ; next += periodNS) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                        }
+                        long sent = System.nanoTime();
+                        if (sent >= end) {
+                            break;
+                        }
+                        try {
+                            robot.getValueAsync().get(1, TimeUnit.SECONDS);
+                            if (sent >= measureFrom) {
+                                h.record((System.nanoTime() - sent) / 1000L);
+                            }
+                        } catch (ExecutionException | TimeoutException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        long wait = measureFrom - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+        }
+        long cpuFrom = cpu();
+        long from = System.nanoTime();
+        done.await();
+        long cpuNS = cpu() - cpuFrom;
+        double seconds = (System.nanoTime() - from) / 1e9;
+
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[count];
+        for (int i = 0; i < count; ++i) {
+            snapshots[i] = latency[i].snapshot();
+        }
+        LatencyHistogram.Snapshot all = LatencyHistogram.merge(snapshots);
+        System.out.println(String.format(Locale.US,
+                "%-8s %5d robots: %5d/%5d connected in %5dms, %5d threads, heap %6.1f KB, rss %6.1f KB per robot; " +
+                "%7d requests (%6.0f/s), %d failed, p50=%.2f p99=%.2f max=%.2f ms; " +
+                "cpu %5.1f%%, %6.1f us per request, %6.1f us/s per robot",
+                mode, count, connected.get(), count, connectMS, threads,
+                heap / 1024.0, rss / 1024.0, all.count, all.count / (double)SECONDS, failed.get(),
+                all.percentile(0.5) / 1000.0, all.percentile(0.99) / 1000.0, all.max / 1000.0,
+                100 * cpuNS / 1e9 / seconds, 0 == all.count ? 0 : cpuNS / 1000.0 / all.count,
+                cpuNS / 1000.0 / seconds / count));
+
+        gateway.shutdown();
+        long closing = System.nanoTime();
+        while (0 < loopback.connections() && System.nanoTime() - closing < 30000000000L) {
+            Thread.sleep(10);
+        }
+        if (null != selector) {
+            selector.shutdown();
+        }
+    }
+
+    // CPU time the process has taken, -1 if it isn't known.
+    private static long cpu() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static void gc() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    private static long heap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // Resident memory of the process, -1 if it isn't known (not Linux).
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return 1024L * Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not available
+        }
+        return -1;
+    }
+}
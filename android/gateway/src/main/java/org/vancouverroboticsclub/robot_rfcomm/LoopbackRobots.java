@@ -0,0 +1,130 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Any number of robots behind serial-to-TCP bridges, on the loopback interface.
+ *
+ * Each connection accepted is a robot of its own, served by a virtual thread. The
+ * robots speak the plain (unframed, untagged) protocol, as much of it as GatewayBench
+ * needs:
+ *    PING      ... increments the value by (increment * 0.001) and responds with 0x00
+ *    ID        ... responds with an app_id_t
+ *    VALUE_GET ... responds with the value
+ *    VALUE_SET ... receives a value_t and the checksum, and applies it. No response.
+ * Anything else is ignored. The responses to the commands received in one read are
+ * written at once, which is what a UART bridge does with a window of commands.
+ *
+ * Unlike RobotSimulator the link isn't throttled, thousands of robots take a single
+ * ServerSocket and a virtual thread each.
+ */
+
+public class LoopbackRobots implements AutoCloseable {
+
+    private final ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public LoopbackRobots() throws IOException {
+        server = new ServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+        Thread.ofVirtual().name("loopback-accept").start(this::acceptLoop);
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    // A transport to a new robot.
+    public Transport transport() {
+        return new SocketTransport(server.getInetAddress().getHostAddress(), port());
+    }
+
+    // Number of robots currently connected.
+    public int connections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                Thread.ofVirtual().name("loopback-robot").start(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        connections.incrementAndGet();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] rx = new byte[256];
+            byte[] tx = new byte[1024];
+            byte[] appId = new byte[Protocol.AppId.SIZE];
+            Protocol.putString(appId, Protocol.AppId.NAME, 9, "loopback");
+            // value_t of a VALUE_SET and its checksum
+            byte[] payload = new byte[Protocol.Value.SIZE + 2];
+            int pending = 0;
+            float value = 0;
+            int increment = 1;
+            int count;
+            while ((count = in.read(rx)) > 0) {
+                int length = 0;
+                for (int i = 0; i < count; ++i) {
+                    int b = rx[i] & 0xFF;
+                    if (0 < pending) {
+                        payload[payload.length - pending--] = (byte)b;
+                        if (0 == pending) {
+                            value = Float.intBitsToFloat(Protocol.getInt(payload, Protocol.Value.V));
+                            increment = Protocol.getInt(payload, Protocol.Value.I);
+                        }
+                        continue;
+                    }
+                    if (length + appId.length > tx.length) {
+                        out.write(tx, 0, length);
+                        length = 0;
+                    }
+                    switch (b) {
+                        case Protocol.CMD_PING:
+                            value += increment * 0.001f;
+                            tx[length++] = 0;
+                            break;
+                        case Protocol.CMD_ID:
+                            System.arraycopy(appId, 0, tx, length, appId.length);
+                            length += appId.length;
+                            break;
+                        case Protocol.CMD_VALUE_GET:
+                            int bits = Float.floatToIntBits(value);
+                            for (int k = 0; k < 4; ++k) {
+                                tx[length++] = (byte)(bits >> (8 * k));
+                            }
+                            break;
+                        case Protocol.CMD_VALUE_SET:
+                            pending = payload.length;
+                            break;
+                    }
+                }
+                if (0 < length) {
+                    out.write(tx, 0, length);
+                }
+            }
+        } catch (IOException e) {
+            // the gateway closed the link
+        } finally {
+            connections.decrementAndGet();
+        }
+    }
+}
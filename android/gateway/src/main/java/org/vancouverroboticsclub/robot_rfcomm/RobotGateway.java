@@ -0,0 +1,208 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bridges any number of robots, e.g. over serial-to-TCP bridges (see SocketTransport),
+ * to a fleet controller on a plain JVM.
+ *
+ * By default each robot runs its Looper on a thread of its own, so all of its protocol
+ * state - the command queue, window, timeouts, keepalive and metrics - lives on that
+ * thread like it does on the phone and nothing is shared with the other robots. Its link
+ * is a ConnectionThread whose blocking reader and writer are threads of their own as
+ * well. With virtual threads (the default) that's three virtual threads per robot, but
+ * only as many carrier threads as there are cores: a reader blocked in the socket, or a
+ * Looper waiting for its next message, doesn't occupy one. With platform threads it's
+ * the same as a HandlerThread and a ConnectionThread per robot, which GatewayBench
+ * compares against.
+ *
+ * Given a SelectorThread instead, the links of all robots are serviced by that single
+ * thread, and the robots share a fixed number of Loopers - a robot's protocol state
+ * still only lives on the one thread it was created on, but that thread runs other
+ * robots as well. That takes no virtual threads at all.
+ *
+ * The robots are meant to be used with their asynchronous API (e.g.
+ * Robot.getValueAsync), whose futures can be waited on from any thread, virtual threads
+ * included. The messages a Robot sends to its handler (MSG_CONNECTION, MSG_VALUE, ...)
+ * are handed to the Handler.Callback given to \c add, on the robot's thread.
+ *
+ * Needs Java 21, see build.gradle.
+ */
+
+public class RobotGateway {
+
+    // makes a thread for each robot's Looper, null if the robots share the loops
+    private final ThreadFactory loops;
+    private final ThreadFactory links;
+    private final SelectorThread selector;
+    private final Loop[] shared;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<Robot, Node> robots = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    // A Looper and the number of robots running on it, which is only touched on its thread.
+    private static class Loop {
+        final Handler handler;
+        final boolean dedicated;
+        int robots;
+
+        Loop(Looper looper, boolean dedicated) {
+            handler = new Handler(looper);
+            this.dedicated = dedicated;
+        }
+    }
+
+    private static class Node {
+        Robot robot;
+        Handler handler;
+        Loop loop;
+        volatile boolean removed;
+        // on the loop's thread
+        boolean closed;
+    }
+
+    public RobotGateway() {
+        this(true);
+    }
+
+    // The robots run on virtual threads, or on platform threads if virtual is false.
+    public RobotGateway(boolean virtual) {
+        if (virtual) {
+            loops = Thread.ofVirtual().name("robot-", 0).factory();
+            links = Thread.ofVirtual().name("link-", 0).factory();
+        } else {
+            loops = Thread.ofPlatform().name("robot-", 0).daemon().factory();
+            links = Thread.ofPlatform().name("link-", 0).daemon().factory();
+        }
+        selector = null;
+        shared = null;
+    }
+
+    // The links are serviced by the given SelectorThread, and the robots share the given
+    // number of HandlerThreads. The SelectorThread is shut down by the caller, once the
+    // gateway has been.
+    public RobotGateway(SelectorThread selector, int threads) {
+        loops = null;
+        links = null;
+        this.selector = selector;
+        shared = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < shared.length; ++i) {
+            HandlerThread thread = new HandlerThread("robots-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            shared[i] = new Loop(thread.getLooper(), false);
+        }
+    }
+
+    // A new robot connected over the given Transport, its messages are handed to events
+    // (which may be null). Returns once the robot has been created on its thread, can be
+    // called from any thread.
+    public Robot add(final Transport transport, final Handler.Callback events) throws InterruptedException {
+        final Node node = new Node();
+        final CountDownLatch created = new CountDownLatch(1);
+        if (null == shared) {
+            loops.newThread(() -> {
+                Looper.prepare();
+                create(node, new Loop(Looper.myLooper(), true), transport, events);
+                created.countDown();
+                Looper.loop();
+            }).start();
+        } else {
+            final Loop loop = shared[Math.floorMod(next.getAndIncrement(), shared.length)];
+            loop.handler.post(() -> {
+                create(node, loop, transport, events);
+                created.countDown();
+            });
+        }
+        created.await();
+        robots.put(node.robot, node);
+        return node.robot;
+    }
+
+    // On the loop's thread.
+    private void create(final Node node, Loop loop, Transport transport, final Handler.Callback events) {
+        node.loop = loop;
+        node.handler = new Handler(Looper.myLooper(), msg -> {
+            // the robot is done once its link is closed for good
+            if (node.removed && Robot.MSG_CONNECTION == msg.what && RobotBase.Connection.CLOSED == msg.obj) {
+                closed(node);
+            }
+            return null != events && events.handleMessage(msg);
+        });
+        node.robot = null == selector ? new Robot(transport, node.handler, links) : new Robot(transport, node.handler, selector);
+        ++loop.robots;
+    }
+
+    // On the loop's thread: a dedicated loop ends with its robot, the shared ones once the
+    // gateway is shut down and their last robot is closed.
+    private void closed(Node node) {
+        if (node.closed) {
+            return;
+        }
+        node.closed = true;
+        Loop loop = node.loop;
+        --loop.robots;
+        if (loop.dedicated || (shutdown && 0 == loop.robots)) {
+            Looper.myLooper().quit();
+        }
+    }
+
+    // Disconnects the robot for good and ends its thread, can be called from any thread.
+    public void remove(final Robot robot) {
+        final Node node = robots.remove(robot);
+        if (null == node) {
+            return;
+        }
+        node.handler.post(() -> {
+            node.removed = true;
+            robot.disconnect();
+            if (RobotBase.Connection.CLOSED == robot.getConnection()) {
+                closed(node);
+            }
+        });
+    }
+
+    public List<Robot> robots() {
+        return new ArrayList<>(robots.keySet());
+    }
+
+    public int size() {
+        return robots.size();
+    }
+
+    // The metrics of all robots, can be called from any thread.
+    public LinkMetrics.Snapshot[] metrics() {
+        List<LinkMetrics.Snapshot> snapshots = new ArrayList<>();
+        for (Robot robot : robots.keySet()) {
+            snapshots.add(robot.metrics().snapshot());
+        }
+        return snapshots.toArray(new LinkMetrics.Snapshot[0]);
+    }
+
+    // Removes all robots, the threads end once their robots are closed.
+    public void shutdown() {
+        shutdown = true;
+        for (Robot robot : robots()) {
+            remove(robot);
+        }
+        if (null != shared) {
+            for (final Loop loop : shared) {
+                loop.handler.post(() -> {
+                    if (0 == loop.robots) {
+                        Looper.myLooper().quit();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Services the links to any number of robots behind serial-to-TCP bridges (see
+ * SocketTransport) with a single thread and a java.nio Selector.
+ *
+ * A ConnectionThread blocks a reader and a writer in the streams of each link, which
+ * virtual threads (see RobotGateway) make cheaper but don't get rid of. A SelectorThread
+ * connects, reads and writes the non-blocking SocketChannels of all its links itself,
+ * and only wakes up when one of them is ready or has something to write:
+ *    connect ... the channel connects in the background. MSG_STARTED is sent once it
+ *                is connected, MSG_CLOSED if that fails or takes longer than the
+ *                transport's connect timeout.
+ *    read    ... a channel ready for reading is read into the thread's direct
+ *                ByteBuffer, no more than there is room for in the link's RingBuffer,
+ *                and copied into that (MSG_READ). While the RingBuffer is full the
+ *                channel isn't selected for reading, the bytes wait in the socket, and
+ *                the link is checked every STALL_POLL_MS until its handler has caught
+ *                up.
+ *    write   ... \c write queues the message (see WriteQueue) and hands the link to the
+ *                thread. All messages queued for a link are gathered in the thread's
+ *                direct ByteBuffer and written with a single write, a MSG_WRITE is sent
+ *                for each message as soon as all of it has been written. What the
+ *                socket doesn't take is written once the channel is ready for writing
+ *                again.
+ * Links are handed to the thread through a lock-free queue. Only the first one queued
+ * while the thread waits in the Selector wakes it up, the others are handled along
+ * with it.
+ *
+ * The Links report exactly the messages a ConnectionThread does, so RobotBase can't
+ * tell the difference - each robot keeps its own command queue, metrics, keepalive and
+ * reconnects. MSG_CLOSED is the last message of a link, nothing follows it. A handler
+ * falling behind only holds up its own link, a link congested by its robot only its own
+ * writes.
+ */
+
+public class SelectorThread implements Link.Pool {
+
+    private final static String LOGTAG = "SELECTOR";
+
+    // how often links whose RingBuffer is full are checked for room again
+    private final static long STALL_POLL_MS = 1;
+    // how often connecting links are checked for their connect timeout
+    private final static long CONNECT_POLL_MS = 100;
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    // links which were started, have something to write or were cancelled
+    private final Queue<ChannelLink> tasks = new ConcurrentLinkedQueue<>();
+    // set while the thread is about to wait in the Selector, cleared by the first task
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    private volatile boolean shutdown;
+    // set by the thread once it's done, guarded by this
+    private boolean terminated;
+    private volatile int size;
+
+    // thread only
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Set<ChannelLink> links = new HashSet<>();
+    private final List<ChannelLink> connecting = new ArrayList<>();
+    private final List<ChannelLink> stalled = new ArrayList<>();
+    private final Consumer<SelectionKey> ready = this::ready;
+
+    public SelectorThread() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "SelectorThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Link open(Transport transport, Handler handler) {
+        if (!(transport instanceof SocketTransport)) {
+            throw new IllegalArgumentException("A SelectorThread needs a SocketTransport");
+        }
+        return new ChannelLink((SocketTransport)transport, handler);
+    }
+
+    // Number of links currently connected or connecting.
+    public int size() {
+        return size;
+    }
+
+    // Closes all links and stops the thread once it has sent MSG_CLOSED for each. Links
+    // started afterwards are closed right away.
+    public void shutdown() {
+        shutdown = true;
+        selecting.set(false);
+        selector.wakeup();
+    }
+
+    private class ChannelLink implements Link {
+        private final SocketTransport transport;
+        private final Handler handler;
+        private final RingBuffer buffer = new RingBuffer(1024);
+        private final WriteQueue writeQueue = new WriteQueue(Link.QUEUE_SIZE, CommandStream.MAX_REQUEST_SIZE);
+        // set while the link is in the thread's tasks
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private volatile boolean started;
+        private volatile boolean cancelled;
+        // thread only
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long connectDeadline;
+        private boolean connected;
+        private boolean closed;
+        // bytes of the oldest queued message which have already been written
+        private int partial;
+
+        ChannelLink(SocketTransport t, Handler h) {
+            transport = t;
+            handler = h;
+        }
+
+        @Override
+        public void start() {
+            synchronized (SelectorThread.this) {
+                if (terminated) {
+                    Log.e(LOGTAG, "Selector is shut down");
+                    Message msg = handler.obtainMessage(ConnectionThread.MSG_CLOSED, 0, 0, this);
+                    msg.sendToTarget();
+                    return;
+                }
+                started = true;
+                schedule(this);
+            }
+        }
+
+        @Override
+        public boolean write(byte[] bytes, int offset, int length) {
+            if (!writeQueue.offer(bytes, offset, length)) {
+                return false;
+            }
+            schedule(this);
+            return true;
+        }
+
+        // Can be called from any thread, MSG_CLOSED is sent once the link is done.
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule(this);
+        }
+    }
+
+    private void schedule(ChannelLink link) {
+        if (link.queued.compareAndSet(false, true)) {
+            tasks.add(link);
+            if (selecting.getAndSet(false)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                runTasks();
+                if (shutdown && terminate()) {
+                    break;
+                }
+                long timeout = !stalled.isEmpty() ? STALL_POLL_MS : !connecting.isEmpty() ? CONNECT_POLL_MS : 0;
+                selecting.set(true);
+                if (tasks.isEmpty() && !shutdown) {
+                    selector.select(ready, timeout);
+                } else {
+                    selector.selectNow(ready);
+                }
+                selecting.set(false);
+                if (!stalled.isEmpty()) {
+                    resume();
+                }
+                if (!connecting.isEmpty()) {
+                    expire();
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Selector failed", e);
+            synchronized (this) {
+                terminated = true;
+            }
+            for (ChannelLink link : new ArrayList<>(links)) {
+                close(link);
+            }
+            runTasks();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Closing selector failed", e);
+        }
+    }
+
+    // Closes all links, returns true if there's nothing left to do.
+    private boolean terminate() {
+        for (ChannelLink link : new ArrayList<>(links)) {
+            close(link);
+        }
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                terminated = true;
+            }
+            return terminated;
+        }
+    }
+
+    private void runTasks() {
+        ChannelLink link;
+        while (null != (link = tasks.poll())) {
+            link.queued.set(false);
+            if (link.closed || !link.started) {
+                continue;
+            }
+            if (link.cancelled || shutdown || terminated) {
+                close(link);
+            } else if (null == link.channel) {
+                connect(link);
+            } else if (link.connected && 0 == (link.key.interestOps() & SelectionKey.OP_WRITE)) {
+                // with OP_WRITE set the channel is congested, it's written once it's ready
+                flush(link);
+            }
+        }
+    }
+
+    private void connect(ChannelLink link) {
+        links.add(link);
+        size = links.size();
+        try {
+            link.channel = link.transport.openChannel();
+            link.key = link.channel.register(selector, 0, link);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Connection to socket failed", e);
+            close(link);
+            return;
+        }
+        if (link.channel.isConnectionPending()) {
+            link.key.interestOps(SelectionKey.OP_CONNECT);
+            link.connectDeadline = System.nanoTime() + link.transport.connectTimeoutMS() * 1000000L;
+            connecting.add(link);
+        } else {
+            connected(link);
+        }
+    }
+
+    private void connected(ChannelLink link) {
+        link.connected = true;
+        link.key.interestOps(SelectionKey.OP_READ);
+        Message msg = link.handler.obtainMessage(ConnectionThread.MSG_STARTED, 0, 0, link);
+        msg.sendToTarget();
+        // bytes written before the connection was up
+        flush(link);
+    }
+
+    // Links which haven't connected within their timeout are closed.
+    private void expire() {
+        long now = System.nanoTime();
+        for (int i = connecting.size() - 1; i >= 0; --i) {
+            ChannelLink link = connecting.get(i);
+            if (now - link.connectDeadline >= 0) {
+                Log.e(LOGTAG, "Connection to socket timed out");
+                close(link);
+            }
+        }
+    }
+
+    private void ready(SelectionKey key) {
+        ChannelLink link = (ChannelLink)key.attachment();
+        if (link.closed || !key.isValid()) {
+            return;
+        }
+        int ops = key.readyOps();
+        if (0 != (ops & SelectionKey.OP_CONNECT)) {
+            connecting.remove(link);
+            try {
+                link.channel.finishConnect();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Connection to socket failed", e);
+                close(link);
+                return;
+            }
+            connected(link);
+            return;
+        }
+        if (0 != (ops & SelectionKey.OP_READ)) {
+            read(link);
+        }
+        if (!link.closed && 0 != (ops & SelectionKey.OP_WRITE)) {
+            flush(link);
+        }
+    }
+
+    private void read(ChannelLink link) {
+        RingBuffer buffer = link.buffer;
+        in.clear().limit(Math.min(in.capacity(), buffer.free()));
+        int count;
+        try {
+            count = link.channel.read(in);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Reading message", e);
+            close(link);
+            return;
+        }
+        if (count < 0) {
+            Log.d(LOGTAG, "Connection closed");
+            close(link);
+            return;
+        }
+        if (0 < count) {
+            in.flip();
+            buffer.put(in);
+            Message msg = link.handler.obtainMessage(ConnectionThread.MSG_READ, count, -1, buffer);
+            msg.sendToTarget();
+        }
+        if (buffer.isFull()) {
+            // the handler hasn't caught up yet, the bytes wait in the socket
+            link.key.interestOps(link.key.interestOps() & ~SelectionKey.OP_READ);
+            stalled.add(link);
+        }
+    }
+
+    // Links whose handler has made room in their RingBuffer are read again.
+    private void resume() {
+        for (int i = stalled.size() - 1; i >= 0; --i) {
+            ChannelLink link = stalled.get(i);
+            if (link.closed) {
+                stalled.remove(i);
+            } else if (!link.buffer.isFull()) {
+                link.key.interestOps(link.key.interestOps() | SelectionKey.OP_READ);
+                stalled.remove(i);
+            }
+        }
+    }
+
+    // Writes the queued messages of the link until the queue is empty or the socket full.
+    private void flush(ChannelLink link) {
+        WriteQueue queue = link.writeQueue;
+        while (0 < queue.size()) {
+            out.clear();
+            int queued = queue.size();
+            for (int i = 0; i < queued && out.hasRemaining(); ++i) {
+                int offset = 0 == i ? link.partial : 0;
+                out.put(queue.buffer(i), offset, Math.min(queue.length(i) - offset, out.remaining()));
+            }
+            out.flip();
+            int count;
+            try {
+                count = link.channel.write(out);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Writing message", e);
+                close(link);
+                return;
+            }
+            // report the messages which have been written completely
+            count += link.partial;
+            while (0 < queue.size() && queue.length() <= count) {
+                int length = queue.length();
+                Message msg = link.handler.obtainMessage(ConnectionThread.MSG_WRITE, length, -1, queue.origin());
+                msg.sendToTarget();
+                count -= length;
+                queue.remove();
+            }
+            link.partial = count;
+            if (out.hasRemaining()) {
+                // the socket is full, the rest is written once the channel is ready again
+                link.key.interestOps(link.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        if (0 != (link.key.interestOps() & SelectionKey.OP_WRITE)) {
+            link.key.interestOps(link.key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(ChannelLink link) {
+        if (link.closed) {
+            return;
+        }
+        link.closed = true;
+        link.connected = false;
+        links.remove(link);
+        size = links.size();
+        connecting.remove(link);
+        if (null != link.key) {
+            link.key.cancel();
+        }
+        try {
+            link.transport.close();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Closing socket failed", e);
+        }
+        Message msg = link.handler.obtainMessage(ConnectionThread.MSG_CLOSED, 0, 0, link);
+        msg.sendToTarget();
+    }
+}
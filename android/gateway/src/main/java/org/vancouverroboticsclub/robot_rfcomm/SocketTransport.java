@@ -0,0 +1,89 @@
+package org.vancouverroboticsclub.robot_rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A robot reached over TCP, e.g. through a serial-to-TCP bridge, or one of the
+ * LoopbackRobots.
+ *
+ * Each \c connect opens a new socket, \c close closes it and with it any read blocking
+ * on its input, or a connect still in progress. Nagle's algorithm is disabled: the
+ * protocol's messages are a few bytes each and wait for each other anyway.
+ *
+ * A SelectorThread doesn't use the streams, it connects a non-blocking channel with
+ * \c openChannel instead. \c close closes that channel as well.
+ */
+
+public class SocketTransport implements Transport {
+
+    private final InetSocketAddress address;
+    private final int connectTimeoutMS;
+    private volatile Socket socket;
+    private volatile SocketChannel channel;
+
+    public SocketTransport(String host, int port) {
+        this(host, port, 5000);
+    }
+
+    public SocketTransport(String host, int port, int connectTimeoutMS) {
+        address = new InetSocketAddress(host, port);
+        this.connectTimeoutMS = connectTimeoutMS;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket s = new Socket();
+        socket = s;
+        s.setTcpNoDelay(true);
+        s.connect(address, connectTimeoutMS);
+    }
+
+    // A new channel in non-blocking mode, connecting to the robot: the connect is
+    // finished with SocketChannel.finishConnect once the channel is connectable, unless
+    // it already is connected.
+    public SocketChannel openChannel() throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        channel = ch;
+        try {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ch.connect(address);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    public int connectTimeoutMS() {
+        return connectTimeoutMS;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket s = socket;
+        if (null != s) {
+            s.close();
+        }
+        SocketChannel ch = channel;
+        if (null != ch) {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Framed commands and responses, see FrameCodec.java in the app.
+ *
+ *    SYNC      0x7E
+ *    LENGTH    size of the payload, 1..FRAME_MAX_PAYLOAD
+ *    SEQUENCE  sequence number of the request, echoed in the response
+ *    PAYLOAD   command id (or tag) followed by the data
+ *    CRC       CRC-16/CCITT-FALSE (big endian) over LENGTH, SEQUENCE and PAYLOAD
+ *
+ * A frame with an invalid length or CRC is dropped and reception resynchronizes
+ * on the next sync byte, which might already have been received.
+ * */
+#ifndef INCLUDED_frame_h
+#define INCLUDED_frame_h
+
+#include <stdint.h>
+
+#define FRAME_SYNC        0x7E
+#define FRAME_MAX_PAYLOAD 64
+#define FRAME_OVERHEAD    5
+
+typedef void (*frame_rx_cb)(uint8_t seq, const uint8_t *payload, unsigned size);
+
+uint16_t crc16(uint16_t crc, const uint8_t *data, unsigned size);
+
+int frameReceiving();
+void frameReceive(uint8_t byte, frame_rx_cb cb);
+void frameTx(uint8_t seq, uint8_t id, const uint8_t *data, unsigned size);
+
+#endif
@@ -1,3 +1,4 @@
+#include "commands.h"
 #include "events.h"
 #include "heartbeat.h"
 #include "uart.h"
@@ -67,5 +68,6 @@ void loop() {
   }
 
   uartLoop();
+  commandLoop();
 }
 
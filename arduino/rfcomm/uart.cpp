@@ -6,11 +6,19 @@
 
 #define SERIAL_DEVICE Serial1
 
-static const uint8_t *txPtr;
+// Responses are queued so the next command can be received (and answered)
+// while the previous response is still being sent. The size has to be a
+// power of 2, room for a few of the biggest responses (see CMD_ARRAY_GET).
+// TX_BUFFER_SIZE is in protocol.h, the app never has more responses
+// outstanding than fit.
+
+static uint8_t   txBuffer[TX_BUFFER_SIZE];
+static volatile unsigned txHead;
+static volatile unsigned txTail;
 static uint8_t       *rxPtr;
-static unsigned  txCnt;
 static unsigned  rxCnt;
 static unsigned  rxErr = 0;
+static unsigned  txDropped = 0;
 static uart_rx_complete_cb rxCb;
 
 
@@ -22,20 +30,31 @@ unsigned uartRxCount() {
 unsigned uartRxError() {
   return rxErr;
 }
+unsigned uartTxDropped() {
+  return txDropped;
+}
 
 
 // ----------------------- TX ---------------------------
 
 void uartTx(const uint8_t *data, unsigned size) {
-  txPtr = data;
-  txCnt = size;
+  // a response is queued whole or not at all, a cut off one would garble
+  // the responses after it
+  unsigned room = (txTail - txHead - 1) & (TX_BUFFER_SIZE - 1);
+  if (size > room) {
+    ++txDropped;
+    size = 0;
+  }
+  for (unsigned i=0; i<size; ++i) {
+    txBuffer[txHead] = data[i];
+    txHead = (txHead + 1) & (TX_BUFFER_SIZE - 1);
+  }
 }
 
 static void uartTxCharacter() {
-  if (txCnt) {
-    SERIAL_DEVICE.write(*txPtr);
-    --txCnt;
-    ++txPtr;
+  if (txHead != txTail) {
+    SERIAL_DEVICE.write(txBuffer[txTail]);
+    txTail = (txTail + 1) & (TX_BUFFER_SIZE - 1);
   }
 }
 
@@ -85,7 +104,8 @@ void uartLoop() {
 
 void uartInit() {
   SERIAL_DEVICE.begin(38400);
-  txCnt = 0;
+  txHead = 0;
+  txTail = 0;
   uartRx(0, 0, 0);
   while (!SERIAL_DEVICE) ;
 }
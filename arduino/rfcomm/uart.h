@@ -13,6 +13,7 @@ void uartRx(uint8_t *buffer, unsigned size, uart_rx_complete_cb cb);
 
 unsigned uartRxCount();
 unsigned uartRxError();
+unsigned uartTxDropped();
 
 void uartInit();
 void uartLoop();
@@ -1,26 +1,103 @@
 #include "commands.h"
 
+#include "frame.h"
 #include "uart.h"
+#include <os/os.h>
 #include <string.h>
 
 value_t value = { 0, 1 };
 const uint8_t zero = 0;
+const uint8_t one = 1;
 
 // note that the assigned time and date end up being the last time
 // commands.c was compiled.
 const app_id_t AppId = { "newt-rfc", __DATE__, __TIME__ };
 
-uint8_t rxBuffer[16];
+// the biggest response, CMD_ARRAY_GET with each channel a 3 byte varint
+#define RESPONSE_MAX (1 + sizeof(array_header_t) + 3 * ARRAY_CHANNELS)
 
-static int applyValue() {
+// big enough for the biggest request, CMD_ARRAY_SET with the size and checksum
+uint8_t rxBuffer[1 + sizeof(array_header_t) + 3 * ARRAY_CHANNELS + sizeof(uint16_t)];
+
+// the sensor array, which drifts a little with each CMD_ARRAY_GET
+static int16_t channels[ARRAY_CHANNELS] = {
+  -8000, -7000, -6000, -5000, -4000, -3000, -2000, -1000,
+      0,  1000,  2000,  3000,  4000,  5000,  6000,  7000 };
+// the channels as of the last snapshot sent, deltas are against these
+static int16_t sentChannels[ARRAY_CHANNELS];
+static uint8_t sentSnapshot = 0;
+static uint8_t arrayTx[RESPONSE_MAX];
+
+// 0 if not streaming, otherwise the ms between two TAG_VALUE frames
+static uint16_t streamPeriod = 0;
+static int streamFramed = 0;
+static uint8_t streamSeq = 0;
+
+// sequence number of the frame being processed, -1 for a plain command
+static int16_t rxSeq = -1;
+static uint8_t rxId;
+static unsigned rxSize;
+
+static struct os_callout streamTimer;
+
+static void streamStart(uint16_t period) {
+  streamPeriod = period;
+  os_callout_reset(&streamTimer, (period * OS_TICKS_PER_SEC) / 1000);
+}
+
+static void streamStop() {
+  streamPeriod = 0;
+  os_callout_stop(&streamTimer);
+}
+
+static int checksumValid(unsigned size) {
   uint16_t cs = 0;
 
-  for (unsigned i=0; i<sizeof(value_t); ++i) {
+  if (rxSeq >= 0) {
+    return size == rxSize; // the frame's CRC covers the payload
+  }
+
+  for (unsigned i=0; i<size; ++i) {
     cs += 0x00FF & (uint16_t)(rxBuffer[i]);
   }
 
-  if (((cs >> 8) & 0x00FF) == rxBuffer[sizeof(value_t)]
-      && (cs & 0x00FF) == rxBuffer[sizeof(value_t) + 1]) {
+  return ((cs >> 8) & 0x00FF) == rxBuffer[size]
+      && (cs & 0x00FF) == rxBuffer[size + 1];
+}
+
+// Send a response to a command in the same format the command was received,
+// plain responses need to be tagged while streaming.
+// Each frame is queued with a single uartTx so a TAG_VALUE frame can't
+// end up in the middle of it.
+static void respond(const uint8_t *data, unsigned size) {
+  uint8_t frame[1 + RESPONSE_MAX];
+
+  if (rxSeq >= 0) {
+    frameTx(rxSeq, rxId, data, size);
+  } else if (!streamPeriod) {
+    uartTx(data, size);
+  } else {
+    frame[0] = TAG_RESPONSE;
+    memcpy(&frame[1], data, size);
+    uartTx(frame, size + 1);
+  }
+}
+
+static void streamValue() {
+  uint8_t frame[1 + sizeof(value.v)];
+
+  if (streamFramed) {
+    frameTx(streamSeq++, TAG_VALUE, (const uint8_t*)&value.v, sizeof(value.v));
+    return;
+  }
+
+  frame[0] = TAG_VALUE;
+  memcpy(&frame[1], &value.v, sizeof(value.v));
+  uartTx(frame, sizeof(frame));
+}
+
+static int applyValue() {
+  if (checksumValid(sizeof(value_t))) {
     memcpy(&value, rxBuffer, sizeof(value_t));
   } else {
     return -1;
@@ -29,26 +106,214 @@ static int applyValue() {
   return 0;
 }
 
-int commandProcess(uint8_t cmd) {
+static int applySubscribe() {
+  subscribe_t sub;
+
+  memcpy(&sub, rxBuffer, sizeof(subscribe_t));
+  if (!checksumValid(sizeof(subscribe_t)) || 0 == sub.period) {
+    respond(&one, 1);
+    return -1;
+  }
+
+  // the status is sent in the current mode, everything after is tagged
+  respond(&zero, 1);
+  streamFramed = rxSeq >= 0;
+  streamStart(sub.period);
+
+  return 0;
+}
+
+// Zigzag encode the value and append it as varint, returns the number of bytes.
+static unsigned putVarint(uint8_t *dst, int32_t v) {
+  uint32_t z = ((uint32_t)v << 1) ^ (uint32_t)(v >> 31);
+  unsigned n = 0;
+
+  while (z >= 0x80) {
+    dst[n++] = (uint8_t)(z | 0x80);
+    z >>= 7;
+  }
+  dst[n++] = (uint8_t)z;
+  return n;
+}
+
+// Decode a zigzag encoded varint, returns the number of bytes or 0 if it doesn't
+// end within size bytes.
+static unsigned getVarint(const uint8_t *src, unsigned size, int32_t *v) {
+  uint32_t z = 0;
+
+  for (unsigned n=0; n<size && n<5; ++n) {
+    z |= (uint32_t)(src[n] & 0x7F) << (7 * n);
+    if (!(src[n] & 0x80)) {
+      *v = (int32_t)(z >> 1) ^ -(int32_t)(z & 1);
+      return n + 1;
+    }
+  }
+  return 0;
+}
+
+// Send the next snapshot of the channels, as delta only if the app has the last one.
+static int applyArrayGet() {
+  array_get_t req;
+  array_header_t *hdr = (array_header_t*)&arrayTx[1];
+  unsigned size = sizeof(array_header_t);
+
+  memcpy(&req, rxBuffer, sizeof(array_get_t));
+  if (!checksumValid(sizeof(array_get_t))) {
+    return -1;
+  }
+
+  hdr->encoding = req.encoding;
+  if (ARRAY_RAW != req.encoding && (ARRAY_DELTA != req.encoding || 0 == req.base || req.base != sentSnapshot)) {
+    hdr->encoding = ARRAY_VARINT;
+  }
+  hdr->snapshot = sentSnapshot % 255 + 1;
+  hdr->base = ARRAY_DELTA == hdr->encoding ? sentSnapshot : 0;
+  hdr->count = ARRAY_CHANNELS;
+  for (unsigned i=0; i<ARRAY_CHANNELS; ++i) {
+    channels[i] += (int16_t)(i % 5) - 2;
+    if (ARRAY_RAW == hdr->encoding) {
+      memcpy(&arrayTx[1 + size], &channels[i], sizeof(int16_t));
+      size += sizeof(int16_t);
+    } else if (ARRAY_DELTA == hdr->encoding) {
+      size += putVarint(&arrayTx[1 + size], (int32_t)channels[i] - sentChannels[i]);
+    } else {
+      size += putVarint(&arrayTx[1 + size], channels[i]);
+    }
+    sentChannels[i] = channels[i];
+  }
+  sentSnapshot = hdr->snapshot;
+
+  arrayTx[0] = size;
+  respond(arrayTx, size + 1);
+  return 0;
+}
+
+// rxBuffer holds the size, array_header_t and the channels (and the checksum).
+static int applyArraySet() {
+  array_header_t hdr;
+  unsigned end = 1 + rxBuffer[0];
+  unsigned offset = 1 + sizeof(array_header_t);
+  int16_t values[ARRAY_CHANNELS];
+
+  memcpy(&hdr, &rxBuffer[1], sizeof(array_header_t));
+  if (end < offset || !checksumValid(end) || hdr.count > ARRAY_CHANNELS) {
+    return -1;
+  }
+  for (unsigned i=0; i<hdr.count; ++i) {
+    int32_t v = 0;
+    unsigned n = 0;
+    if (ARRAY_RAW == hdr.encoding && offset + sizeof(int16_t) <= end) {
+      memcpy(&values[i], &rxBuffer[offset], sizeof(int16_t));
+      n = sizeof(int16_t);
+    } else if (ARRAY_VARINT == hdr.encoding && 0 != (n = getVarint(&rxBuffer[offset], end - offset, &v))) {
+      values[i] = (int16_t)v;
+    }
+    if (!n) {
+      return -1;
+    }
+    offset += n;
+  }
+  memcpy(channels, values, hdr.count * sizeof(int16_t));
+
+  return 0;
+}
+
+// The size of a plain CMD_ARRAY_SET arrived, receive the rest and the checksum.
+static int receiveArraySet() {
+  if (1 + rxBuffer[0] + sizeof(uint16_t) > sizeof(rxBuffer)) {
+    return -1;
+  }
+  uartRx(&rxBuffer[1], rxBuffer[0] + sizeof(uint16_t), applyArraySet);
+  return 0;
+}
+
+static void commandExecute(uint8_t cmd) {
   switch (cmd) {
 
     case CMD_PING:
       value.v += value.i * 0.001;
-      uartTx(&zero, 1);
+      respond(&zero, 1);
       break;
 
     case CMD_ID:
-      uartTx((const uint8_t*)&AppId, sizeof(app_id_t));
+      respond((const uint8_t*)&AppId, sizeof(app_id_t));
       break;
 
     case CMD_VALUE_GET:
-      uartTx((const uint8_t*)&value.v, sizeof(value.v));
+      respond((const uint8_t*)&value.v, sizeof(value.v));
+      break;
+
+    case CMD_UNSUBSCRIBE:
+      respond(&zero, 1);
+      streamStop();
       break;
 
     case CMD_VALUE_SET:
-      uartRx(&rxBuffer[0], sizeof(value_t) + sizeof(uint16_t), applyValue);
+      if (rxSeq >= 0) {
+        applyValue();
+      } else {
+        uartRx(&rxBuffer[0], sizeof(value_t) + sizeof(uint16_t), applyValue);
+      }
+      break;
+
+    case CMD_SUBSCRIBE:
+      if (rxSeq >= 0) {
+        applySubscribe();
+      } else {
+        uartRx(&rxBuffer[0], sizeof(subscribe_t) + sizeof(uint16_t), applySubscribe);
+      }
+      break;
+
+    case CMD_ARRAY_GET:
+      if (rxSeq >= 0) {
+        applyArrayGet();
+      } else {
+        uartRx(&rxBuffer[0], sizeof(array_get_t) + sizeof(uint16_t), applyArrayGet);
+      }
+      break;
+
+    case CMD_ARRAY_SET:
+      if (rxSeq >= 0) {
+        applyArraySet();
+      } else {
+        uartRx(&rxBuffer[0], 1, receiveArraySet);
+      }
       break;
   }
+}
+
+// A framed command, the payload is the command id followed by its data. A command
+// too long for rxBuffer is answered with TAG_REJECTED, so the app doesn't have to
+// wait for its timeout.
+static void commandFrame(uint8_t seq, const uint8_t *payload, unsigned size) {
+  rxSeq = seq;
+  rxId = payload[0];
+  rxSize = size - 1;
+  if (rxSize <= sizeof(rxBuffer)) {
+    memcpy(rxBuffer, &payload[1], rxSize);
+    commandExecute(rxId);
+  } else {
+    frameTx(seq, TAG_REJECTED, payload, 0);
+  }
+  rxSeq = -1;
+}
+
+int commandProcess(uint8_t byte) {
+  if (frameReceiving() || FRAME_SYNC == byte) {
+    frameReceive(byte, commandFrame);
+  } else {
+    commandExecute(byte);
+  }
   return 0;
 }
 
+static void streamEvent(struct os_event *event) {
+  if (streamPeriod) {
+    streamValue();
+    os_callout_reset(&streamTimer, (streamPeriod * OS_TICKS_PER_SEC) / 1000);
+  }
+}
+
+void commandInit() {
+  os_callout_init(&streamTimer, os_eventq_dflt_get(), streamEvent, 0);
+}
@@ -1,30 +1,13 @@
 /**
- * The commands the robot understands and the data structures used for their
- * communication.
+ * Entry points of the command processing. The commands and their data structures
+ * are generated from protocol/commands.schema, see protocol.h.
  * */
 #ifndef INCLUDED_commands_h_
 #define INCLUDED_commands_h_
 
-#include <stdint.h>
-
-#define CMD_PING        0x00  // respond by sending a 0x00 byte back
-#define CMD_ID          0x01  // respond by sending app_id_t back
-#define CMD_VALUE_GET   0x02  // respond by sending a float value back
-#define CMD_VALUE_SET   0x82  // set value, no response what so ever
-
-// CMD_ID response
-typedef struct {
-  const char name[9];
-  const char date[12];
-  const char time[9];
-} app_id_t;
-
-// CMD_VALUE_SET payload
-typedef struct {
-  float   v;
-  int32_t i;
-} value_t;
+#include "protocol.h"
 
 int commandProcess(uint8_t cmd);
+void commandInit();
 
 #endif
@@ -0,0 +1,75 @@
+#include "frame.h"
+
+#include "uart.h"
+#include <string.h>
+
+#define CRC_INIT 0xFFFF
+
+// the frame being received, starting with the sync byte
+static uint8_t rxFrame[FRAME_MAX_PAYLOAD + FRAME_OVERHEAD];
+static unsigned rxCount = 0;
+
+uint16_t crc16(uint16_t crc, const uint8_t *data, unsigned size) {
+  for (unsigned i=0; i<size; ++i) {
+    crc ^= (uint16_t)data[i] << 8;
+    for (unsigned b=0; b<8; ++b) {
+      crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : (crc << 1);
+    }
+  }
+  return crc;
+}
+
+// Drop the sync byte and everything up to the next one.
+static void frameResync() {
+  unsigned skip = 1;
+  while (skip < rxCount && FRAME_SYNC != rxFrame[skip]) {
+    ++skip;
+  }
+  memmove(rxFrame, &rxFrame[skip], rxCount - skip);
+  rxCount -= skip;
+}
+
+int frameReceiving() {
+  return 0 != rxCount;
+}
+
+void frameReceive(uint8_t byte, frame_rx_cb cb) {
+  rxFrame[rxCount++] = byte;
+  while (rxCount) {
+    unsigned length = rxFrame[1];
+    if (FRAME_SYNC != rxFrame[0]
+        || (rxCount > 1 && (0 == length || length > FRAME_MAX_PAYLOAD))) {
+      frameResync();
+      continue;
+    }
+    if (rxCount < 2 || rxCount < length + FRAME_OVERHEAD) {
+      return;
+    }
+    unsigned end = 3 + length;
+    uint16_t crc = crc16(CRC_INIT, &rxFrame[1], length + 2);
+    if (((crc >> 8) & 0x00FF) != rxFrame[end] || (crc & 0x00FF) != rxFrame[end + 1]) {
+      frameResync();
+      continue;
+    }
+    cb(rxFrame[2], &rxFrame[3], length);
+    // after a resync there might be more than one frame in the buffer
+    rxCount -= end + 2;
+    memmove(rxFrame, &rxFrame[end + 2], rxCount);
+  }
+}
+
+void frameTx(uint8_t seq, uint8_t id, const uint8_t *data, unsigned size) {
+  uint8_t frame[FRAME_MAX_PAYLOAD + FRAME_OVERHEAD];
+
+  frame[0] = FRAME_SYNC;
+  frame[1] = size + 1;
+  frame[2] = seq;
+  frame[3] = id;
+  memcpy(&frame[4], data, size);
+  uint16_t crc = crc16(CRC_INIT, &frame[1], size + 3);
+  frame[size + 4] = (crc >> 8) & 0x00FF;
+  frame[size + 5] = crc & 0x00FF;
+
+  // a single uartTx, nothing can end up in the middle of the frame
+  uartTx(frame, size + FRAME_OVERHEAD + 1);
+}
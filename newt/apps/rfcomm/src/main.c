@@ -59,6 +59,7 @@ int main(int argc, char **argv) {
   monitorInit();
   uartInit(monitor);
   heartbeatInit(monitor);
+  commandInit();
 
   heartbeatStart();
   while (1) {
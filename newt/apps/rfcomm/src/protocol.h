@@ -0,0 +1,71 @@
+/**
+ * Generated from protocol/commands.schema by CodecGenerator, don't edit.
+ *
+ * The command ids and the data structures used for the communication with the app,
+ * which has the same definitions in Protocol.java.
+ * */
+#ifndef INCLUDED_protocol_h_
+#define INCLUDED_protocol_h_
+
+#include <stdint.h>
+
+#define CMD_PING        0x00  // respond by sending a 0x00 byte back
+#define CMD_ID          0x01  // respond by sending app_id_t back
+#define CMD_VALUE_GET   0x02  // respond by sending a float value back
+#define CMD_UNSUBSCRIBE 0x03  // stop streaming, respond with a status byte
+#define CMD_VALUE_SET   0x82  // set value, no response what so ever
+#define CMD_SUBSCRIBE   0x83  // stream the value, respond with a status byte
+#define CMD_ARRAY_GET   0x84  // respond with the sensor array, see array_header_t
+#define CMD_ARRAY_SET   0x85  // set the sensor array, no response what so ever
+
+// While streaming every transmission starts with one of these tags
+#define TAG_RESPONSE    0xA5  // followed by the response to a command
+#define TAG_VALUE       0xA6  // followed by the value (float)
+#define TAG_REJECTED    0xA7  // instead of the response to a framed command too long to take, no data
+
+#define ARRAY_CHANNELS  16  // channels of the sensor array, int16 each
+#define ARRAY_RAW       0  // each channel as int16
+#define ARRAY_VARINT    1  // each channel as zigzag varint
+#define ARRAY_DELTA     2  // each channel's change since the base snapshot as zigzag varint
+#define TX_BUFFER_SIZE  256  // bytes of responses the robot can queue, a power of 2
+
+// CMD_ID response
+typedef struct {
+  char     name[9];
+  char     date[12];
+  char     time[9];
+} app_id_t;
+
+// CMD_VALUE_SET payload
+typedef struct {
+  float    v;
+  int32_t  i;
+} value_t;
+
+// CMD_SUBSCRIBE payload
+typedef struct {
+  uint16_t period; // ms between TAG_VALUE frames, 0 is invalid
+} subscribe_t;
+
+// CMD_ARRAY_GET payload
+typedef struct {
+  uint8_t  encoding; // ARRAY_RAW, ARRAY_VARINT or ARRAY_DELTA
+  uint8_t  base; // the snapshot the app has, 0 for none
+} array_get_t;
+
+// CMD_ARRAY_GET response and CMD_ARRAY_SET payload, followed by the channels
+typedef struct {
+  uint8_t  encoding; // ARRAY_RAW, ARRAY_VARINT or ARRAY_DELTA
+  uint8_t  snapshot; // number of this snapshot, 1..255, 0 in CMD_ARRAY_SET
+  uint8_t  base; // snapshot the delta is against, 0 unless ARRAY_DELTA
+  uint8_t  count; // number of channels, at most ARRAY_CHANNELS
+} array_header_t;
+
+// the app relies on these sizes, fails to compile if the compiler disagrees
+typedef char app_id_t_size_check[sizeof(app_id_t) == 30 ? 1 : -1];
+typedef char value_t_size_check[sizeof(value_t) == 8 ? 1 : -1];
+typedef char subscribe_t_size_check[sizeof(subscribe_t) == 2 ? 1 : -1];
+typedef char array_get_t_size_check[sizeof(array_get_t) == 2 ? 1 : -1];
+typedef char array_header_t_size_check[sizeof(array_header_t) == 4 ? 1 : -1];
+
+#endif
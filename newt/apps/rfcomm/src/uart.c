@@ -8,11 +8,19 @@
 
 static struct uart_dev *uart;
 
-static const uint8_t *txPtr;
+// Responses are queued so the next command can be received (and answered)
+// while the previous response is still being sent. The size has to be a
+// power of 2, room for a few of the biggest responses (see CMD_ARRAY_GET).
+// TX_BUFFER_SIZE is in protocol.h, the app never has more responses
+// outstanding than fit.
+
+static uint8_t   txBuffer[TX_BUFFER_SIZE];
+static volatile unsigned txHead;
+static volatile unsigned txTail;
 static uint8_t       *rxPtr;
-static unsigned  txCnt;
 static unsigned  rxCnt;
 static unsigned  rxErr = 0;
+static unsigned  txDropped = 0;
 static uart_rx_complete_cb rxCb;
 
 
@@ -24,23 +32,37 @@ unsigned uartRxCount() {
 unsigned uartRxError() {
   return rxErr;
 }
+unsigned uartTxDropped() {
+  return txDropped;
+}
 
 
 // ----------------------- TX ---------------------------
 
 void uartTx(const uint8_t *data, unsigned size) {
-  txPtr = data;
-  txCnt = size;
-  if (txCnt) {
+  os_sr_t sr;
+  OS_ENTER_CRITICAL(sr);
+  // a response is queued whole or not at all, a cut off one would garble
+  // the responses after it
+  unsigned room = (txTail - txHead - 1) & (TX_BUFFER_SIZE - 1);
+  if (size > room) {
+    ++txDropped;
+    size = 0;
+  }
+  for (unsigned i=0; i<size; ++i) {
+    txBuffer[txHead] = data[i];
+    txHead = (txHead + 1) & (TX_BUFFER_SIZE - 1);
+  }
+  OS_EXIT_CRITICAL(sr);
+  if (size) {
     uart_start_tx(uart);
   }
 }
 
 static int uartTxCharacter(void *arg) {
-  if (txCnt) {
-    uint8_t byte = *txPtr;
-    --txCnt;
-    ++txPtr;
+  if (txHead != txTail) {
+    uint8_t byte = txBuffer[txTail];
+    txTail = (txTail + 1) & (TX_BUFFER_SIZE - 1);
     return byte;
   }
   return -1;
@@ -95,6 +117,8 @@ void uartInit(os_event_fn callback) {
     .uc_cb_arg = 0
 
   };
+  txHead = 0;
+  txTail = 0;
   uart = (struct uart_dev*)os_dev_open("uart0", OS_TIMEOUT_NEVER, &uartConf);
   assert(uart);
 